@@ -0,0 +1,139 @@
+package edu.umich.eecs.soar.delta;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Agent settings computed from compiled instructions, written as a Soar file to source after the PROPs library (_firstload_props.soar).
+ * The library's multi-attributes declarations are fixed guesses. These give Rete the actual greatest number of values each attribute takes:
+ * <ul>
+ * <li>For the instruction structures, such as ^delta per elab-context, ^prop per delta, and ^child and ^step in the wm-space trees.</li>
+ * <li>For task attributes that a rule references more than once from the same parent, such as ^object in "(<wm> object <ob1>) (<wm> object <ob2>)".</li>
+ * </ul>
+ * It also declares the index attributes (^0, ^1, ...) of const tuples and ^prop-rank objects as chunk singletons, up to the most values of any of them.
+ * The ^prop-rank values are identifiers, so an index that both kinds use is declared for any value.
+ * Problem-spaces loaded from the compile cache have only their text, so they aren't counted.
+ */
+public class AgentTuning {
+
+	private int contexts = 0,
+				skipped = 0,
+				maxDeltas = 0,		// ^delta per elab-context
+				maxProps = 0,		// ^prop (and ^cond-id1, ^cond-id2, ^cond-success) per delta
+				maxChildren = 0,	// ^child per wm-space node
+				maxSteps = 0,		// ^step per wm-space root, which collects every resolved node of the tree
+				maxConsts = 0,		// Indices in a const tuple
+				maxRanks = 0;		// Indices in a ^prop-rank object
+	private final Map<String, Integer> taskFanOuts = new TreeMap<String, Integer>();	// The most values of each task attribute referenced from one id
+
+	/**
+	 * Count the given compiled problem-space.
+	 * @param elab A compiled problem-space. Those loaded from the compile cache are only counted as skipped.
+	 */
+	public void add(ElaborationContext elab) {
+		if (elab.isCached()) {
+			++skipped;
+			return;
+		}
+		++contexts;
+
+		maxDeltas = Math.max(maxDeltas, elab.getRules().size());
+		for (Rule rule : elab.getRules()) {
+			maxProps = Math.max(maxProps, rule.getCondPrims().size());
+			maxConsts = Math.max(maxConsts, rule.getConsts().size());
+			if (rule.isPropsRanked()) {
+				maxRanks = Math.max(maxRanks, rule.getCondPrims().size());
+			}
+		}
+		if (elab.getWM() != null) {
+			maxSteps = Math.max(maxSteps, elab.getWMNodeCount());
+			maxChildren = Math.max(maxChildren, getMaxChildren(elab.getWM()));
+		}
+
+		// A ref path's last attribute is where its var may be one of several values. The steps before it are taken to be shared.
+		for (WMERef ref : elab.getRefs()) {
+			Map<String, Integer> counts = new HashMap<String, Integer>();
+			for (WMEAddress addr : ref.getAddresses()) {
+				int last = addr.getPathLength() - 1;
+				String parent = addr.getIDName() + "." + String.join(".", addr.getPath().subList(0, last));
+				String key = parent + " " + addr.getPathAt(last);
+				Integer count = counts.get(key);
+				counts.put(key, (count == null ? 1 : count + 1));
+
+				Integer known = taskFanOuts.get(addr.getPathAt(last));
+				int fanOut = counts.get(key);
+				if (known == null || fanOut > known) {
+					taskFanOuts.put(addr.getPathAt(last), fanOut);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Count every problem-space of the given compiled instructions.
+	 * @param compiledIns The compiled instructions
+	 */
+	public void addAll(ContextMemory compiledIns) {
+		for (ElaborationContext elab : compiledIns.getElabContexts()) {
+			add(elab);
+		}
+	}
+
+	/**
+	 * @return The most list children of any node in the given wm tree, or 0 for a bare root such as "S1" with nothing merged into it
+	 */
+	private static int getMaxChildren(LispishObject node) {
+		if (!node.isList()) {
+			return 0;
+		}
+		int children = 0, retval = 0;
+		for (int i=0; i<node.size(); ++i) {
+			if (node.get(i).isList()) {
+				++children;
+				retval = Math.max(retval, getMaxChildren(node.get(i)));
+			}
+		}
+		return Math.max(retval, children);
+	}
+
+	/**
+	 * Write the settings as Soar commands.
+	 * @param out The destination
+	 * @throws IOException If the destination can't be written
+	 */
+	public void writeSoar(Appendable out) throws IOException {
+		out.append("# Generated by the instruction parser from ").append(String.valueOf(contexts)).append(" problem-space(s)");
+		if (skipped > 0) {
+			out.append(", not counting ").append(String.valueOf(skipped)).append(" loaded from the compile cache");
+		}
+		out.append(".\r\n# Source after _firstload_props.soar.\r\n\r\n");
+
+		// Declare the instruction structures first, then the task attributes, each at the most values seen for it
+		Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+		counts.put("delta", maxDeltas);
+		for (String attr : new String[] {"prop", "cond-id1", "cond-id2", "cond-success"}) {
+			counts.put(attr, maxProps);
+		}
+		counts.put("child", maxChildren);
+		counts.put("step", maxSteps);
+		for (Map.Entry<String, Integer> entry : taskFanOuts.entrySet()) {
+			Integer known = counts.get(entry.getKey());
+			counts.put(entry.getKey(), (known == null ? entry.getValue() : Math.max(known, entry.getValue())));
+		}
+		for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+			// Soar only takes declarations of more than one value
+			if (entry.getValue() > 1) {
+				out.append("multi-attributes ").append(entry.getKey()).append(" ").append(String.valueOf(entry.getValue())).append("\r\n");
+			}
+		}
+
+		out.append("\r\n");
+		for (int i=0; i<Math.max(maxConsts, maxRanks); ++i) {
+			String valueType = (i >= maxRanks ? "constant" : (i >= maxConsts ? "identifier" : "any"));
+			out.append("chunk singleton identifier ").append(String.valueOf(i)).append(" ").append(valueType).append("\r\n");
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package edu.umich.eecs.soar.delta;
+
+import java.util.Arrays;
+
+/**
+ * Maximum-weight bipartite matching between a rule's local multi-attribute branches and the existing branches of the main wm tree.
+ * This is the Hungarian (Kuhn-Munkres) algorithm on a rectangular weight matrix, taking O(r^2 * c) time for r rows and c columns, where r <= c.
+ */
+public class BranchMatcher {
+
+	private BranchMatcher() {}
+
+	/**
+	 * Assign each row to at most one column, and each column to at most one row, so that the total weight of the assigned pairs is maximal.
+	 * Weights must not be negative. Every row is assigned if there are at least as many columns as rows.
+	 * @param weights The weight of assigning each row to each column, as weights[row][column]. Every row must have the same length.
+	 * @return For each row, the index of its assigned column, or -1 if it was left unassigned
+	 */
+	public static int[] match(int[][] weights) {
+		int rows = weights.length,
+			cols = (rows == 0 ? 0 : weights[0].length);
+		int[] retval = new int[rows];
+		Arrays.fill(retval, -1);
+		if (rows == 0 || cols == 0) {
+			return retval;
+		}
+
+		// The algorithm needs no more rows than columns, so solve the transpose for tall matrices
+		if (rows > cols) {
+			int[][] transposed = new int[cols][rows];
+			for (int r=0; r<rows; ++r) {
+				for (int c=0; c<cols; ++c) {
+					transposed[c][r] = weights[r][c];
+				}
+			}
+			int[] colToRow = match(transposed);
+			for (int c=0; c<cols; ++c) {
+				retval[colToRow[c]] = c;
+			}
+			return retval;
+		}
+
+		// Minimize the negated weights. Arrays are 1-based, with index 0 as the sentinel.
+		long[] u = new long[rows + 1],
+			   v = new long[cols + 1];
+		int[] colOwner = new int[cols + 1],	// The row assigned to each column, or 0
+			  way = new int[cols + 1];
+		for (int r=1; r<=rows; ++r) {
+			colOwner[0] = r;
+			int col0 = 0;
+			long[] minv = new long[cols + 1];
+			Arrays.fill(minv, Long.MAX_VALUE);
+			boolean[] used = new boolean[cols + 1];
+
+			// Grow an alternating tree from row r until it reaches a free column
+			do {
+				used[col0] = true;
+				int row0 = colOwner[col0], col1 = 0;
+				long delta = Long.MAX_VALUE;
+				for (int c=1; c<=cols; ++c) {
+					if (!used[c]) {
+						long cur = -weights[row0 - 1][c - 1] - u[row0] - v[c];
+						if (cur < minv[c]) {
+							minv[c] = cur;
+							way[c] = col0;
+						}
+						if (minv[c] < delta) {
+							delta = minv[c];
+							col1 = c;
+						}
+					}
+				}
+				for (int c=0; c<=cols; ++c) {
+					if (used[c]) {
+						u[colOwner[c]] += delta;
+						v[c] -= delta;
+					}
+					else {
+						minv[c] -= delta;
+					}
+				}
+				col0 = col1;
+			} while (colOwner[col0] != 0);
+
+			// Flip the assignments along the augmenting path
+			do {
+				int col1 = way[col0];
+				colOwner[col0] = colOwner[col1];
+				col0 = col1;
+			} while (col0 != 0);
+		}
+
+		for (int c=1; c<=cols; ++c) {
+			if (colOwner[c] != 0) {
+				retval[colOwner[c] - 1] = c - 1;
+			}
+		}
+		return retval;
+	}
+
+	/**
+	 * @return The total weight of the given assignment from match()
+	 */
+	public static int totalWeight(int[][] weights, int[] assignment) {
+		int total = 0;
+		for (int r=0; r<assignment.length; ++r) {
+			if (assignment[r] != -1) {
+				total += weights[r][assignment[r]];
+			}
+		}
+		return total;
+	}
+}
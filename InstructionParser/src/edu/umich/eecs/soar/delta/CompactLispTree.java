@@ -0,0 +1,373 @@
+package edu.umich.eecs.soar.delta;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * A read-only tree of parsed lisp-style text, stored as flat arrays instead of one LispishObject per token.
+ * Each item of the tree is a node number. An atom stores the offset and length of its token in the source text,
+ * and a list stores its first item. Every node also stores its next sibling and its parent, for 16 bytes per node.
+ * Atom strings are only created when they are read, once per distinct text. Source text with only ISO-8859-1 chars is kept at a byte per char.
+ * The tree is read through LispishNode views, so parse_instructions() can walk it as it would a LispishObject tree.
+ */
+public class CompactLispTree {
+
+	private static final String ROOT_COMMAND = "instruct-elabs";
+
+	private char[] source;			// The source text, followed by ROOT_COMMAND, or null if it fits in latin1Source
+	private byte[] latin1Source;	// The same text stored a byte per char, if it only has ISO-8859-1 chars
+	private int[] start,			// The offset of each atom's token in source, or -1 for lists
+				  info,				// The length of each atom's token, or the first item of each list (-1 if empty)
+				  next,				// The next item in each node's parent list, or -1
+				  parent;			// The list each node is in, or -1 for the root
+	private int nodeCount = 0;
+	private String[] atomTable = new String[64];	// Open-addressed table of the distinct atom strings read so far
+	private int atomCount = 0;
+
+	private CompactLispTree(char[] source, int length) {
+		this.source = source;
+		this.latin1Source = null;
+		int capacity = Math.max(16, length / 8);
+		this.start = new int[capacity];
+		this.info = new int[capacity];
+		this.next = new int[capacity];
+		this.parent = new int[capacity];
+	}
+
+	/**
+	 * Read and parse the given delta file.
+	 * Like DeltaParser.read_lispish_file(), the root is a list starting with the command "instruct-elabs", followed by the top-level blocks of the file.
+	 * @param inPath The UTF-8 file to read
+	 * @return The parsed tree, or null if the file has unbalanced parentheses
+	 * @throws IOException If the file can't be read
+	 */
+	public static CompactLispTree read(Path inPath) throws IOException {
+		// Decode straight into the source array: UTF-8 never has more chars than bytes
+		byte[] bytes = Files.readAllBytes(inPath);
+		char[] source = new char[bytes.length + ROOT_COMMAND.length()];
+		CharBuffer text = CharBuffer.wrap(source);
+		CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		CoderResult result = decoder.decode(ByteBuffer.wrap(bytes), text, true);
+		if (result.isError()) {
+			result.throwException();	// Shouldn't happen: errors are replaced
+		}
+		decoder.flush(text);
+		bytes = null;
+
+		// Keep the root command in the same buffer, after the text, so that it is an atom like any other
+		int length = text.position();
+		ROOT_COMMAND.getChars(0, ROOT_COMMAND.length(), source, length);
+
+		CompactLispTree tree = new CompactLispTree(source, length);
+		if (!tree.parse(length, inPath.toString())) {
+			return null;
+		}
+		tree.compactSource(length + ROOT_COMMAND.length());
+		return tree;
+	}
+
+	/**
+	 * Build the node arrays from the first length chars of the source.
+	 * @return False if the parentheses are unbalanced
+	 */
+	private boolean parse(int length, String sourceName) throws IOException {
+		int root = addNode(-1, -1, -1);
+		int lastChild = addNode(length, ROOT_COMMAND.length(), root);
+		info[root] = lastChild;
+
+		// The open lists, with the last item added to each
+		int[] openLists = new int[16], lastItems = new int[16];
+		int depth = 0;
+		int curList = root;
+
+		try (DeltaLexer lexer = new DeltaLexer(source, length)) {
+			DeltaLexer.TokenType token;
+			while ((token = lexer.next()) != DeltaLexer.TokenType.EOF) {
+				if (token == DeltaLexer.TokenType.CLOSE) {
+					if (depth == 0) {
+						System.err.println("ERROR in CompactLispTree.read: Unmatched ')' at line " + lexer.getLine() + ", column " + lexer.getColumn() + " of " + sourceName);
+						return false;
+					}
+					--depth;
+					curList = openLists[depth];
+					lastChild = lastItems[depth];
+					continue;
+				}
+
+				// Add the new item to the current list
+				int node = (token == DeltaLexer.TokenType.OPEN ? addNode(-1, -1, curList)
+						: addNode(lexer.getOffset(), lexer.getEndOffset() - lexer.getOffset(), curList));
+				if (lastChild == -1) {
+					info[curList] = node;
+				}
+				else {
+					next[lastChild] = node;
+				}
+				lastChild = node;
+
+				if (token == DeltaLexer.TokenType.OPEN) {
+					// Descend into the new list
+					if (depth == openLists.length) {
+						openLists = Arrays.copyOf(openLists, depth * 2);
+						lastItems = Arrays.copyOf(lastItems, depth * 2);
+					}
+					openLists[depth] = curList;
+					lastItems[depth] = node;
+					++depth;
+					curList = node;
+					lastChild = -1;
+				}
+			}
+		}
+
+		if (depth != 0) {
+			System.err.println("ERROR in CompactLispTree.read: Unclosed '(' at end of " + sourceName);
+			return false;
+		}
+
+		// Release the unused capacity, if it is worth a copy
+		if (nodeCount < start.length - start.length / 8) {
+			start = Arrays.copyOf(start, nodeCount);
+			info = Arrays.copyOf(info, nodeCount);
+			next = Arrays.copyOf(next, nodeCount);
+			parent = Arrays.copyOf(parent, nodeCount);
+		}
+		return true;
+	}
+
+	/**
+	 * Store the source text a byte per char if it allows, which halves its size for the usual ASCII files.
+	 * @param length The number of chars of the source in use
+	 */
+	private void compactSource(int length) {
+		for (int i=0; i<length; ++i) {
+			if (source[i] > 0xFF) {
+				if (length < source.length) {
+					source = Arrays.copyOf(source, length);
+				}
+				return;
+			}
+		}
+
+		latin1Source = new byte[length];
+		for (int i=0; i<length; ++i) {
+			latin1Source[i] = (byte) source[i];
+		}
+		source = null;
+	}
+
+	private char sourceAt(int offset) {
+		return (source != null ? source[offset] : (char) (latin1Source[offset] & 0xFF));
+	}
+
+	private int addNode(int startOffset, int infoValue, int parentNode) {
+		if (nodeCount == start.length) {
+			int capacity = nodeCount + (nodeCount >> 1);
+			start = Arrays.copyOf(start, capacity);
+			info = Arrays.copyOf(info, capacity);
+			next = Arrays.copyOf(next, capacity);
+			parent = Arrays.copyOf(parent, capacity);
+		}
+		start[nodeCount] = startOffset;
+		info[nodeCount] = infoValue;
+		next[nodeCount] = -1;
+		parent[nodeCount] = parentNode;
+		return nodeCount++;
+	}
+
+	/**
+	 * @return The number of atoms and lists in the tree, including the root list and its command
+	 */
+	public int getNodeCount() { return nodeCount; }
+
+	/**
+	 * @return A view of the root list
+	 */
+	public Node getRoot() { return new Node(0); }
+
+	private boolean isListNode(int node) { return start[node] < 0; }
+
+	/**
+	 * Get the text of the given atom, without quotes.
+	 * Strings are made the first time each distinct text is read, and shared after that, so rereading an atom allocates nothing.
+	 * @return The atom's String
+	 */
+	private String atomText(int node) {
+		int offset = start[node], length = info[node];
+		if (sourceAt(offset) == '"') {
+			// Quoted atom: drop the opening quote, and the closing quote unless the quote was left open at the end of the file
+			++offset;
+			--length;
+			if (length > 0 && sourceAt(offset + length - 1) == '"') {
+				--length;
+			}
+		}
+
+		// Same hash as String.hashCode()
+		int hash = 0;
+		for (int i=0; i<length; ++i) {
+			hash = 31 * hash + sourceAt(offset + i);
+		}
+
+		int mask = atomTable.length - 1;
+		for (int slot = (hash ^ (hash >>> 16)) & mask; ; slot = (slot + 1) & mask) {
+			String atom = atomTable[slot];
+			if (atom == null) {
+				atom = (source != null ? new String(source, offset, length) : new String(latin1Source, offset, length, StandardCharsets.ISO_8859_1));
+				atomTable[slot] = atom;
+				if (++atomCount > atomTable.length / 2) {
+					growAtomTable();
+				}
+				return atom;
+			}
+			if (atom.hashCode() == hash && sourceEquals(atom, offset, length)) {
+				return atom;
+			}
+		}
+	}
+
+	private boolean sourceEquals(String atom, int offset, int length) {
+		if (atom.length() != length) {
+			return false;
+		}
+		for (int i=0; i<length; ++i) {
+			if (atom.charAt(i) != sourceAt(offset + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void growAtomTable() {
+		String[] old = atomTable;
+		atomTable = new String[old.length * 2];
+		int mask = atomTable.length - 1;
+		for (String atom : old) {
+			if (atom != null) {
+				int hash = atom.hashCode();
+				int slot = (hash ^ (hash >>> 16)) & mask;
+				while (atomTable[slot] != null) {
+					slot = (slot + 1) & mask;
+				}
+				atomTable[slot] = atom;
+			}
+		}
+	}
+
+	/**
+	 * A view of one node of the tree. Views are cheap to make, and hold no data except a cursor that makes reading a list's items in order fast.
+	 */
+	public class Node implements LispishNode {
+		private final int node;
+		private int size = -1,				// The number of items in this list, once counted
+					cursorIndex = 0,		// The index and node of the last item looked up by get(), for sequential access
+					cursorNode;
+		private Node lastItem = null;		// The view last returned by get(), which is reused when the same item is asked for again
+
+		private Node(int node) {
+			this.node = node;
+			this.cursorNode = (isListNode(node) ? info[node] : -1);
+		}
+
+		/**
+		 * @return The view of the list containing this node, or null for the root
+		 */
+		public Node getParent() {
+			return (parent[node] == -1 ? null : new Node(parent[node]));
+		}
+
+		@Override
+		public boolean isList() { return isListNode(node); }
+
+		@Override
+		public boolean isEmpty() { return false; }
+
+		@Override
+		public int size() {
+			if (!isListNode(node)) {
+				return 1;
+			}
+			if (size == -1) {
+				size = 0;
+				for (int item = info[node]; item != -1; item = next[item]) {
+					++size;
+				}
+			}
+			return size;
+		}
+
+		@Override
+		public String getString(int index) throws ArrayIndexOutOfBoundsException {
+			if (index == 0 && !isListNode(node)) {
+				return atomText(node);
+			}
+			int item = itemAt(index);
+			return (isListNode(item) ? new Node(item).toString() : atomText(item));
+		}
+
+		@Override
+		public Node get(int index) throws ArrayIndexOutOfBoundsException {
+			if (!isListNode(node)) {
+				throw new ArrayIndexOutOfBoundsException("Cannot get LispishNode at index " + index + ". The node has only a single string.");
+			}
+			int item = itemAt(index);
+			if (lastItem == null || lastItem.node != item) {
+				lastItem = new Node(item);
+			}
+			return lastItem;
+		}
+
+		/**
+		 * @return The node number of the item at the given index in this list
+		 */
+		private int itemAt(int index) {
+			if (!isListNode(node) || index < 0) {
+				throw new ArrayIndexOutOfBoundsException("Invalid index " + index + " in LispishNode. Size is " + size() + ".");
+			}
+
+			// Walk forward from the cursor if possible, otherwise from the first item
+			if (index < cursorIndex || cursorNode == -1) {
+				cursorIndex = 0;
+				cursorNode = info[node];
+			}
+			while (cursorIndex < index && cursorNode != -1) {
+				cursorNode = next[cursorNode];
+				++cursorIndex;
+			}
+			if (cursorNode == -1) {
+				throw new ArrayIndexOutOfBoundsException("Invalid index " + index + " in LispishNode. Size is " + size() + ".");
+			}
+			return cursorNode;
+		}
+
+		/**
+		 * @return The text of this atom, or a summary of this list in the same form as LispishObject.toString()
+		 */
+		@Override
+		public String toString() {
+			if (!isListNode(node)) {
+				return atomText(node);
+			}
+			else if (info[node] == -1) {
+				return "";
+			}
+
+			StringBuilder retval = new StringBuilder(" (");
+			for (int item = info[node]; item != -1; item = next[item]) {
+				retval.append(isListNode(item) ? " (...)" : " " + atomText(item));
+			}
+			retval.append(" )");
+			return retval.toString();
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package edu.umich.eecs.soar.delta;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An on-disk cache of compiled problem-spaces, so that unchanged (problem-space ...) blocks don't need to be recompiled.
+ * Each entry is keyed by a hash of the problem-space's token stream, and stores the smem text emitted for it.
+ * Entries are written atomically, so a crashed compile can't leave a partial entry behind.
+ */
+public class CompileCache {
+
+	/**
+	 * Bump this whenever the emitted smem text changes, so that stale entries are ignored.
+	 */
+	public static final int FORMAT_VERSION = 7;
+
+	private static final String ELAB_SUFFIX = ".elab",
+								PRIMS_SUFFIX = ".prims";
+
+	private final Path dir;
+	private final AtomicInteger hits = new AtomicInteger(),
+								misses = new AtomicInteger();
+
+	/**
+	 * Use the given directory for cache entries, creating it if needed.
+	 * @param dir The cache directory
+	 * @throws IOException If the directory can't be created
+	 */
+	public CompileCache(Path dir) throws IOException {
+		this.dir = dir;
+		Files.createDirectories(dir);
+	}
+
+	public Path getDirectory() { return dir; }
+	public int getHits() { return hits.get(); }
+	public int getMisses() { return misses.get(); }
+
+	/**
+	 * Get the cache key for the given parsed (problem-space ...) block.
+	 * The key covers every token in the block, the cache format version, and the compile options, so any edit to the block produces a new key.
+	 * @param problemSpace The parsed problem-space text
+	 * @param compileOptions The options that change how the problem-space compiles, from DeltaParser.getCompileOptions()
+	 * @return A hex string key
+	 */
+	public String keyOf(LispishNode problemSpace, String compileOptions) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);	// Every Java platform is required to support SHA-256
+		}
+
+		digest.update(("delta-cache-v" + FORMAT_VERSION + "-" + compileOptions).getBytes(StandardCharsets.UTF_8));
+		hashTokens(problemSpace, digest);
+
+		StringBuilder key = new StringBuilder(64);
+		for (byte b : digest.digest()) {
+			key.append(Character.forDigit((b >> 4) & 0xF, 16));
+			key.append(Character.forDigit(b & 0xF, 16));
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Feed the tokens of the given object to the digest in order.
+	 * Atoms are length-prefixed so that different token streams can't produce the same bytes.
+	 */
+	private static void hashTokens(LispishNode obj, MessageDigest digest) {
+		if (!obj.isList()) {
+			byte[] bytes = (obj.isEmpty() ? "" : obj.getString(0)).getBytes(StandardCharsets.UTF_8);
+			digest.update((bytes.length + ":").getBytes(StandardCharsets.UTF_8));
+			digest.update(bytes);
+			return;
+		}
+
+		digest.update((byte) '(');
+		for (int i=0; i<obj.size(); ++i) {
+			hashTokens(obj.get(i), digest);
+		}
+		digest.update((byte) ')');
+	}
+
+	/**
+	 * Look up a previously compiled problem-space.
+	 * @param key The key from keyOf()
+	 * @param container The ContextMemory the cached context will belong to
+	 * @param name The name of the problem-space
+	 * @return A precompiled ElaborationContext, or null if there is no usable entry for the key
+	 */
+	public ElaborationContext load(String key, ContextMemory container, String name) {
+		try {
+			String primSmem = new String(Files.readAllBytes(dir.resolve(key + PRIMS_SUFFIX)), StandardCharsets.UTF_8);
+			String elabSmem = new String(Files.readAllBytes(dir.resolve(key + ELAB_SUFFIX)), StandardCharsets.UTF_8);
+			hits.incrementAndGet();
+			return ElaborationContext.fromCache(container, name, key, elabSmem, primSmem);
+		} catch (NoSuchFileException e) {
+			// Not cached yet
+		} catch (IOException e) {
+			System.err.println("WARNING: Could not read compile cache entry " + key + ": " + e.getMessage());
+		}
+
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Save the emitted text of a newly compiled problem-space under its cache key.
+	 * Failures are reported but not fatal, since the cache is only an optimization.
+	 * @param elab A compiled context with a cache key
+	 */
+	public void store(ElaborationContext elab) {
+		if (elab.getCacheKey() == null || elab.isCached()) {
+			return;
+		}
+
+		try {
+			// Write the prims first: an entry is only complete once its elab file exists
+			write(elab.getCacheKey() + PRIMS_SUFFIX, elab.getPrimSmemString());
+			write(elab.getCacheKey() + ELAB_SUFFIX, elab.toSmemString());
+		} catch (IOException e) {
+			System.err.println("WARNING: Could not write compile cache entry for problem-space '" + elab.getName() + "': " + e.getMessage());
+		}
+	}
+
+	private void write(String fileName, String text) throws IOException {
+		Path tmp = SmemOutputSink.createTempFileFor(dir.resolve(fileName));
+		try {
+			Files.write(tmp, text.getBytes(StandardCharsets.UTF_8));
+			Files.move(tmp, dir.resolve(fileName), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package edu.umich.eecs.soar.delta;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The list of const values of a rule, such as "A" and "B" in "(== <ob> feature const A) (== <ob> feature const B)".
+ * Rules with the same const values share one ConstTuple (see ContextMemory.internConsts()), which is written as a single smem object.
+ * Prim args refer to a value by its index in the tuple.
+ */
+public class ConstTuple implements SmemWritable {
+
+	private final List<String> values;
+
+	/**
+	 * @param values The const values, in index order. The list must not change afterward.
+	 */
+	public ConstTuple(List<String> values) {
+		this.values = values;
+	}
+
+	public List<String> getValues() { return values; }
+
+	/**
+	 * @return The "<...>" label for this tuple's object in the smem --add file.
+	 */
+	public String getSmemVarName() {
+		SmemId id = new SmemId("Q");
+		for (String value : values) {
+			id.add(value);
+		}
+		return "<Q" + id + ">";
+	}
+
+	@Override
+	public void writeSmem(Appendable out) throws IOException {
+		out.append("(").append(getSmemVarName()).append(" ");
+		for (int i=0; i<values.size(); ++i) {
+			out.append("\r\n\t^").append(String.valueOf(i)).append(" ").append(values.get(i));
+		}
+		out.append(")\r\n");
+	}
+}
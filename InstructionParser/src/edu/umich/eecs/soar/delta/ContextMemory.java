@@ -1,18 +1,32 @@
 package edu.umich.eecs.soar.delta;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
-public class ContextMemory {
+public class ContextMemory implements SmemWritable {
+	
+	static final String PROBLEM_SPACES_HEADER = "##################### PROBLEM-SPACES #####################\r\n\r\n";
 	
 	private List<ElaborationContext> elabContexts;
 	private List<Prim> prims;
-	private List<WMEAddress> addresses;
+	private Map<Prim, Prim> primTable;	// Interning table: each distinct Prim maps to its one shared instance
+	private int primRequests;			// The number of Prims interned, including duplicates
+	private Map<List<String>, ConstTuple> constTable;	// Interning table: each distinct list of const values maps to its one shared tuple
+	private int constRequests;			// The number of const tuples interned, including duplicates
+	private Map<String, WMEAddress> addresses;	// Each registered address by its path string, in the order added
 	
 	public ContextMemory() {
 		elabContexts = new ArrayList<ElaborationContext>();
 		prims = new ArrayList<Prim>();
-		addresses = new ArrayList<WMEAddress>();
+		primTable = new HashMap<Prim, Prim>();
+		primRequests = 0;
+		constTable = new HashMap<List<String>, ConstTuple>();
+		constRequests = 0;
+		addresses = new LinkedHashMap<String, WMEAddress>();
 		//addresses.add(new WMEAddress("state"));
 		//addresses.add(new WMEAddress("const"));
 	}
@@ -20,41 +34,151 @@ public class ContextMemory {
 	public void clear() {
 		elabContexts.clear();
 		prims.clear();
+		primTable.clear();
+		primRequests = 0;
+		constTable.clear();
+		constRequests = 0;
 		addresses.clear();
 	}
 	
 	public void addElabContext(ElaborationContext elab) { elabContexts.add(elab); }
 	public void addPrim(Prim prim) { prims.add(prim); }
 	
+	public List<ElaborationContext> getElabContexts() { return elabContexts; }
+	public List<Prim> getPrims() { return prims; }
+	
+	/**
+	 * Get the shared instance of the given Prim, adding it to the global Prim list if it is new.
+	 * Structurally identical Prims (see Prim.equals()) are thus emitted once and linked from every rule that uses them.
+	 * @param prim A newly compiled Prim
+	 * @return The shared Prim to use in its place
+	 */
+	public Prim internPrim(Prim prim) {
+		++primRequests;
+		Prim shared = primTable.get(prim);
+		if (shared == null) {
+			primTable.put(prim, prim);
+			prims.add(prim);
+			shared = prim;
+		}
+		return shared;
+	}
+	
+	/**
+	 * @return The number of Prims interned so far, including duplicates
+	 */
+	public int getPrimRequests() { return primRequests; }
+	
+	/**
+	 * @return The fraction of interned Prims that were duplicates of an existing Prim
+	 */
+	public double getPrimDedupRatio() {
+		return (primRequests == 0 ? 0.0 : 1.0 - (double) prims.size() / primRequests);
+	}
+	
+	/**
+	 * Get the shared tuple for the given const values, making it if they are new.
+	 * Rules with the same consts thus link to one smem object, and a lookup costs one hash of the values, however many tuples there are.
+	 * @param values The const values of a rule, in index order
+	 * @return The shared ConstTuple with those values
+	 */
+	public ConstTuple internConsts(List<String> values) {
+		++constRequests;
+		ConstTuple shared = constTable.get(values);
+		if (shared == null) {
+			shared = new ConstTuple(new ArrayList<String>(values));
+			constTable.put(shared.getValues(), shared);
+		}
+		return shared;
+	}
+	
+	/**
+	 * @return The number of distinct const tuples interned so far
+	 */
+	public int getConstTupleCount() { return constTable.size(); }
+	
 	/**
-	 * Add the given WMEAddress to the list.
-	 * If the address is already in the list, it will not be added.
+	 * @return The number of const tuples interned so far, including duplicates
+	 */
+	public int getConstRequests() { return constRequests; }
+	
+	/**
+	 * Intern the condition Prims and const tuples of every rule in the given compiled context, in rule order.
+	 * Each rule is relinked to the shared instances of its Prims and consts.
+	 * @param elab A context whose refs have already been compiled
+	 */
+	public void collectPrims(ElaborationContext elab) {
+		for (Rule rule : elab.getRules()) {
+			for (int i=0; i<rule.getCondPrims().size(); ++i) {
+				rule.setCondPrim(i, internPrim(rule.getCondPrim(i)));
+			}
+			if (rule.getConsts().size() > 0) {
+				rule.setConstTuple(internConsts(rule.getConsts()));
+			}
+		}
+	}
+	
+	/**
+	 * Move the contents of the given ContextMemory to the end of this one, preserving their order.
+	 * The given ContextMemory is cleared.
+	 * @param other The ContextMemory to take contents from
+	 */
+	public void merge(ContextMemory other) {
+		for (ElaborationContext elab : other.elabContexts) {
+			elab.setContainer(this);
+			elabContexts.add(elab);
+		}
+		for (Prim prim : other.prims) {
+			internPrim(prim);
+		}
+		primRequests += other.primRequests - other.prims.size();
+		for (ConstTuple tuple : other.constTable.values()) {
+			internConsts(tuple.getValues());
+		}
+		constRequests += other.constRequests - other.constTable.size();
+		for (WMEAddress address : other.addresses.values()) {
+			addAddress(address);
+		}
+		other.clear();
+	}
+	
+	/**
+	 * Add the given WMEAddress to the registry.
+	 * If an address with the same path is already registered, it will not be added.
+	 * Prefixes aren't shared here: compiled rules reach wm through their problem-space's wm tree, which already has one node per path prefix.
 	 * @param address The WMEAddress to add
 	 */
 	public void addAddress(WMEAddress address) {
-		int index = addresses.indexOf(address);
-		if (index != -1) {
-			return;
+		String path = address.getPathString();
+		if (!addresses.containsKey(path)) {
+			addresses.put(path, address);
 		}
-		addresses.add(address);
 	}
 
-	public List<String> getSmemStrings() {
-		List<String> retval = new ArrayList<String>();
-
-		retval.add("##################### PROBLEM-SPACES #####################\r\n\r\n");
+	/**
+	 * Write the smem text for every compiled context and its Prims, one construct at a time.
+	 */
+	@Override
+	public void writeSmem(Appendable out) throws IOException {
+		out.append(PROBLEM_SPACES_HEADER);
 		for (ElaborationContext elab : elabContexts) {
-			// Add a subheader
-			retval.add("###\r\n# " + elab.getName().toUpperCase() + "\r\n###\r\n");
-			retval.add(elab.toSmemString());
+			writeContextHeader(elab, out);
+			elab.writeSmem(out);
+			out.append("\r\n");
 		}
 		
 		// Print the Prims for all contexts
-		retval.add("###################### CONDITION PRIMS ####################\r\n\r\n");
-		for (Prim prim : prims) {
-			retval.add(prim.toSmemString());
+		// (Printed per context, so that contexts loaded from the CompileCache print identically to freshly compiled ones)
+		out.append("###################### CONDITION PRIMS ####################\r\n\r\n");
+		for (ElaborationContext elab : elabContexts) {
+			elab.writePrimSmem(out);
 		}
-		
-		return retval;
+	}
+	
+	/**
+	 * Write the subheader that comes before a context's smem text.
+	 */
+	static void writeContextHeader(ElaborationContext elab, Appendable out) throws IOException {
+		out.append("###\r\n# ").append(elab.getName().toUpperCase()).append("\r\n###\r\n");
 	}
 }
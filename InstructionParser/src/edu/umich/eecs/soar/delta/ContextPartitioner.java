@@ -0,0 +1,340 @@
+package edu.umich.eecs.soar.delta;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * An optional compiler pass that splits a problem-space with many rules into sub-contexts with a bounded number of rules each.
+ * All of an elab-context's deltas are matched at once when it is retrieved, so this bounds the per-decision matching work of large problem-spaces.
+ *
+ * The rules are greedily clustered so that the rules of each sub-context share as many conditions as possible, where conditions are compared by
+ * the S1 paths and const values they test, not by their var labels. Sub-context i of problem-space P is named "P-part{i}".
+ * The problem-space keeps its name, and gets one routing delta per sub-context instead of its rules. A routing delta's op-name is its sub-context's name,
+ * so selecting it loads the sub-context like any other deeper problem-space, and its conditions are those shared by every rule of the sub-context.
+ * A routing delta therefore fires whenever one of its rules could, but may also fire when none of them will.
+ * A routing delta with no conditions would always be proposed, so a problem-space with a cluster of rules that share no condition isn't split.
+ */
+public class ContextPartitioner {
+
+	public static final String PART_SUFFIX = "-part";
+
+	private ContextPartitioner() {}
+
+	/**
+	 * A condition, identified by what it tests rather than by the var labels of its rule, so that the same test in different rules compares equal.
+	 * Each arg is either an S1 path or, for a "const" arg, the const value.
+	 */
+	private static final class CondKey {
+		final Prim.PrimType type;
+		final String path1, attr1, path2, attr2;	// A null path means the attr is a const value
+		final boolean hasArg2;
+
+		CondKey(Prim.PrimType type, String path1, String attr1, boolean hasArg2, String path2, String attr2) {
+			this.type = type;
+			this.path1 = path1;
+			this.attr1 = attr1;
+			this.hasArg2 = hasArg2;
+			this.path2 = path2;
+			this.attr2 = attr2;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof CondKey)) {
+				return false;
+			}
+			CondKey other = (CondKey) obj;
+			return type == other.type && hasArg2 == other.hasArg2
+					&& Objects.equals(path1, other.path1) && Objects.equals(attr1, other.attr1)
+					&& Objects.equals(path2, other.path2) && Objects.equals(attr2, other.attr2);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(type, path1, attr1, hasArg2, path2, attr2);
+		}
+	}
+
+	/**
+	 * Split the given problem-space into a routing context and sub-contexts of at most maxRules rules, if it has more rules than that.
+	 * The given context must not be compiled yet. The new contexts have no cache key, since one block of source text now makes several contexts.
+	 * @param elab The parsed problem-space
+	 * @param maxRules The most rules to leave in one context
+	 * @return The routing context followed by the sub-contexts, or just the given context if it is small enough or already compiled
+	 */
+	public static List<ElaborationContext> partition(ElaborationContext elab, int maxRules) {
+		List<Rule> rules = elab.getRules();
+		List<WMERef> refs = elab.getRefs();
+		if (maxRules < 1 || rules.size() <= maxRules || elab.isCompiled()) {
+			return Collections.singletonList(elab);
+		}
+		if (refs.size() != rules.size()) {
+			System.err.println("WARNING: Not partitioning problem-space '" + elab.getName() + "', since not every rule has one (ref ...).");
+			return Collections.singletonList(elab);
+		}
+
+		// Describe each rule's conditions independently of its var labels
+		List<Set<CondKey>> ruleKeys = new ArrayList<Set<CondKey>>(rules.size());
+		for (int r=0; r<rules.size(); ++r) {
+			ruleKeys.add(getCondKeys(rules.get(r), refs.get(r)));
+		}
+
+		// Find the conditions shared by every rule of each cluster, which its routing delta tests
+		List<List<Integer>> clusters = cluster(ruleKeys, maxRules);
+		List<Set<CondKey>> sharedKeys = new ArrayList<Set<CondKey>>(clusters.size());
+		for (List<Integer> cluster : clusters) {
+			Set<CondKey> shared = new LinkedHashSet<CondKey>(ruleKeys.get(cluster.get(0)));
+			for (int r : cluster) {
+				shared.retainAll(ruleKeys.get(r));
+			}
+			if (shared.isEmpty()) {
+				System.err.println("WARNING: Not partitioning problem-space '" + elab.getName() + "', since the rules starting with '" + rules.get(cluster.get(0)).getName()
+						+ "' share no condition to route by.");
+				return Collections.singletonList(elab);
+			}
+			dropImpliedExistence(shared);
+			sharedKeys.add(shared);
+		}
+
+		List<ElaborationContext> retval = new ArrayList<ElaborationContext>();
+		ElaborationContext router = new ElaborationContext(elab.getContainer(), elab.getName());
+		retval.add(router);
+
+		for (int c=0; c<clusters.size(); ++c) {
+			String subName = elab.getName() + PART_SUFFIX + retval.size();
+			ElaborationContext sub = new ElaborationContext(elab.getContainer(), subName);
+			for (int r : clusters.get(c)) {
+				sub.addRule(rules.get(r));
+				sub.addRef(refs.get(r));
+			}
+			retval.add(sub);
+			addRoute(router, subName, sharedKeys.get(c), refs.get(0).getSymbols());
+		}
+
+		return retval;
+	}
+
+	/**
+	 * Greedily group rules into clusters of at most maxRules. Each cluster starts from the first rule left in source order,
+	 * then repeatedly takes the rule that keeps the most conditions shared by the whole cluster, breaking ties by the most conditions shared with the first rule.
+	 * @return The rule indices of each cluster, each in source order
+	 */
+	private static List<List<Integer>> cluster(List<Set<CondKey>> ruleKeys, int maxRules) {
+		List<List<Integer>> retval = new ArrayList<List<Integer>>();
+		List<Integer> remaining = new LinkedList<Integer>();
+		for (int r=0; r<ruleKeys.size(); ++r) {
+			remaining.add(r);
+		}
+
+		while (!remaining.isEmpty()) {
+			int seed = remaining.remove(0);
+			List<Integer> cluster = new ArrayList<Integer>(maxRules);
+			cluster.add(seed);
+			Set<CondKey> shared = new HashSet<CondKey>(ruleKeys.get(seed));
+
+			while (cluster.size() < maxRules && !remaining.isEmpty()) {
+				Iterator<Integer> it = remaining.iterator();
+				int best = -1, bestShared = -1, bestSeed = -1;
+				while (it.hasNext()) {
+					int r = it.next();
+					int withShared = countCommon(shared, ruleKeys.get(r)),
+						withSeed = countCommon(ruleKeys.get(seed), ruleKeys.get(r));
+					if (withShared > bestShared || (withShared == bestShared && withSeed > bestSeed)) {
+						best = r;
+						bestShared = withShared;
+						bestSeed = withSeed;
+					}
+				}
+				remaining.remove(Integer.valueOf(best));
+				cluster.add(best);
+				shared.retainAll(ruleKeys.get(best));
+			}
+
+			Collections.sort(cluster);
+			retval.add(cluster);
+		}
+		return retval;
+	}
+
+	private static int countCommon(Set<CondKey> a, Set<CondKey> b) {
+		if (a.size() > b.size()) {
+			Set<CondKey> swap = a;
+			a = b;
+			b = swap;
+		}
+		int count = 0;
+		for (CondKey key : a) {
+			if (b.contains(key)) {
+				++count;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Get the conditions of a rule as CondKeys.
+	 * Besides its own key, a condition is keyed by an existence test of each attribute it reads, like "(? wm.object feature)" for
+	 * "(== &lt;ob1&gt; feature &lt;ob2&gt; feature)", which holds whenever the condition does. These let rules that test different values of the same
+	 * attribute share a route. Negations and inexistence tests don't need their attribute, so they get no existence keys.
+	 * A condition on a var whose S1 path is shared with another var of the rule (a multi-attribute, like two "wm.object" vars) only gets its existence keys,
+	 * since the path alone doesn't say which of the objects it tests. Conditions on vars that can't be traced back to S1 get no keys.
+	 */
+	private static Set<CondKey> getCondKeys(Rule rule, WMERef ref) {
+		// Find the S1 path of each var, and which paths are reached by more than one var
+		Map<String, String> varPaths = new HashMap<String, String>();
+		Map<String, Integer> pathCounts = new HashMap<String, Integer>();
+		for (WMEAddress addr : ref.getAddresses()) {
+			String path = getS1Path(ref, addr.getVarName());
+			if (path != null) {
+				varPaths.put(addr.getVarName(), path);
+				Integer count = pathCounts.get(path);
+				pathCounts.put(path, (count == null ? 1 : count + 1));
+			}
+		}
+
+		Set<CondKey> retval = new LinkedHashSet<CondKey>();
+		for (Condition c : rule.getConditions()) {
+			if (c.command == null) {
+				continue;
+			}
+			String path1 = getArgPath(c.idvar1, varPaths, pathCounts);
+			String attr1 = getArgAttr(rule, c.idvar1, c.attribute1);
+			boolean hasArg2 = (c.idvar2 != null);
+			String path2 = (hasArg2 ? getArgPath(c.idvar2, varPaths, pathCounts) : null);
+			String attr2 = (hasArg2 ? getArgAttr(rule, c.idvar2, c.attribute2) : null);
+			if ((path1 != null || c.idvar1.equals("const")) && (!hasArg2 || path2 != null || c.idvar2.equals("const"))) {
+				retval.add(new CondKey(c.command, path1, attr1, hasArg2, path2, attr2));
+			}
+			if (c.command != Prim.PrimType.NEGATION && c.command != Prim.PrimType.INEXISTENCE) {
+				addExistenceKey(c.idvar1, c.attribute1, varPaths, retval);
+				if (hasArg2) {
+					addExistenceKey(c.idvar2, c.attribute2, varPaths, retval);
+				}
+			}
+		}
+		return retval;
+	}
+
+	/**
+	 * @return The unambiguous S1 path of a condition arg's var, or null for a const arg or an ambiguous or unknown var
+	 */
+	private static String getArgPath(String idvar, Map<String, String> varPaths, Map<String, Integer> pathCounts) {
+		String path = varPaths.get(idvar);
+		return (path == null || pathCounts.get(path) > 1 ? null : path);
+	}
+
+	/**
+	 * Remove the existence keys that another of the given keys already implies, since it reads the same attribute at the same path.
+	 */
+	private static void dropImpliedExistence(Set<CondKey> keys) {
+		Set<String> read = new HashSet<String>();
+		for (CondKey key : keys) {
+			if (key.type != Prim.PrimType.EXISTENCE && key.type != Prim.PrimType.NEGATION && key.type != Prim.PrimType.INEXISTENCE) {
+				read.add(key.path1 + "^" + key.attr1);
+				if (key.hasArg2) {
+					read.add(key.path2 + "^" + key.attr2);
+				}
+			}
+		}
+		for (Iterator<CondKey> it = keys.iterator(); it.hasNext(); ) {
+			CondKey key = it.next();
+			if (key.type == Prim.PrimType.EXISTENCE && read.contains(key.path1 + "^" + key.attr1)) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Add a key that tests that the attribute of a condition arg exists on some object at the var's S1 path, if the var has one.
+	 */
+	private static void addExistenceKey(String idvar, String attr, Map<String, String> varPaths, Set<CondKey> keys) {
+		String path = varPaths.get(idvar);
+		if (path != null) {
+			keys.add(new CondKey(Prim.PrimType.EXISTENCE, path, attr, false, null, null));
+		}
+	}
+
+	/**
+	 * @return The attribute of a condition arg, or the const value itself for a const arg
+	 */
+	private static String getArgAttr(Rule rule, String idvar, String attr) {
+		return (idvar.equals("const") ? rule.getConst(Integer.parseInt(attr)) : attr);
+	}
+
+	/**
+	 * Follow a var's addresses back to S1, such as "wm.object.feature" for <f> in (s1 wm <wm>) (<wm> object.feature <f>).
+	 * @return The path, or null if the var doesn't lead back to S1
+	 */
+	private static String getS1Path(WMERef ref, String var) {
+		StringBuilder path = new StringBuilder();
+		for (int steps = 0; steps <= ref.getAddresses().size(); ++steps) {
+			WMEAddress addr = ref.getAddressTo(var);
+			if (addr == null) {
+				return null;
+			}
+			path.insert(0, addr.getPathString()).insert(0, '.');
+			var = addr.getIDName();
+			if (var.equals("S1")) {
+				return path.substring(1);
+			}
+		}
+		return null;	// The vars form a cycle
+	}
+
+	/**
+	 * Add a delta to the routing context that selects the given sub-context when the given conditions hold.
+	 */
+	private static void addRoute(ElaborationContext router, String subName, Set<CondKey> conditions, SymbolTable symbols) {
+		Rule route = new Rule(subName + "*route");
+		route.setAction(subName);
+		route.setDescription("Route to the rules of " + subName);
+
+		// Reference each path straight from S1
+		WMERef ref = new WMERef(symbols);
+		Map<String, String> pathVars = new LinkedHashMap<String, String>();
+		for (CondKey key : conditions) {
+			String var1 = getRouteVar(key.path1, pathVars, ref);
+			String attr1 = (key.path1 == null ? String.valueOf(route.addConst(key.attr1)) : key.attr1);
+			if (key.hasArg2) {
+				String var2 = getRouteVar(key.path2, pathVars, ref);
+				String attr2 = (key.path2 == null ? String.valueOf(route.addConst(key.attr2)) : key.attr2);
+				route.addCondition(new Condition(route, key.type, var1, attr1, var2, attr2));
+			}
+			else {
+				route.addCondition(new Condition(route, key.type, var1, attr1));
+			}
+		}
+
+		router.addRule(route);
+		router.addRef(ref);
+	}
+
+	/**
+	 * @return The var for the given S1 path in a routing delta, adding its address if it is new, or "const" for a null path
+	 */
+	private static String getRouteVar(String path, Map<String, String> pathVars, WMERef ref) {
+		if (path == null) {
+			return "const";
+		}
+		String var = pathVars.get(path);
+		if (var == null) {
+			var = "<r" + (pathVars.size() + 1) + ">";
+			pathVars.put(path, var);
+			ref.addWMEAddress("S1", path, var);
+		}
+		return var;
+	}
+}
@@ -0,0 +1,203 @@
+package edu.umich.eecs.soar.delta;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Writes synthetic .delta instruction corpora for benchmarking the parser. The same seed and settings always give the same corpus.
+ * Each rule references fanOut objects under (s1 wm &lt;wm&gt;), as a multi-attribute of ^object, and a chain of refDepth attributes below each object.
+ * Its conditions test the ends of those chains against each other and against consts drawn from a pool of constPool values,
+ * so a smaller pool means more reuse of const tuples and Prims.
+ *
+ * Usage: CorpusGenerator [-seed n] [-spaces n] [-rules n] [-depth n] [-fanout n] [-consts n] output.delta
+ */
+public class CorpusGenerator {
+
+	private static final String[] ATTRIBUTES = {"feature", "color", "size", "shape", "part", "slot", "value", "kind"};
+	private static final int OPERATORS_PER_SPACE = 4;
+
+	private long seed = 1;
+	private int spaces = 100,
+				rulesPerSpace = 20,
+				refDepth = 2,
+				fanOut = 2,
+				constPool = 20;
+
+	public void setSeed(long seed) { this.seed = seed; }
+	public void setSpaces(int spaces) { this.spaces = spaces; }
+	public void setRulesPerSpace(int rules) { this.rulesPerSpace = rules; }
+
+	/**
+	 * @param depth The number of attributes in the ref chain below each object, at least 1
+	 */
+	public void setRefDepth(int depth) { this.refDepth = depth; }
+
+	/**
+	 * @param fanOut The number of ^object values each rule references, at least 1
+	 */
+	public void setFanOut(int fanOut) { this.fanOut = fanOut; }
+
+	/**
+	 * @param consts The number of distinct const values that conditions draw from, at least 1
+	 */
+	public void setConstPool(int consts) { this.constPool = consts; }
+
+	/**
+	 * @return A description of the settings, such as "seed 1, 100 spaces x 20 rules, depth 2, fan-out 2, 20 consts"
+	 */
+	public String getDescription() {
+		return "seed " + seed + ", " + spaces + " spaces x " + rulesPerSpace + " rules, depth " + refDepth + ", fan-out " + fanOut + ", " + constPool + " consts";
+	}
+
+	/**
+	 * Write the corpus to the given file.
+	 * @param outPath The file to create or replace
+	 * @throws IOException If the file can't be written
+	 */
+	public void write(Path outPath) throws IOException {
+		try (BufferedWriter out = Files.newBufferedWriter(outPath, StandardCharsets.UTF_8)) {
+			write(out);
+		}
+	}
+
+	/**
+	 * Write the corpus as .delta text.
+	 * @param out The destination
+	 * @throws IOException If the destination can't be written
+	 */
+	public void write(Appendable out) throws IOException {
+		Random random = new Random(seed);
+		for (int s=0; s<spaces; ++s) {
+			out.append("(problem-space gen-space-").append(String.valueOf(s)).append("\r\n");
+			for (int r=0; r<rulesPerSpace; ++r) {
+				writeRule(out, random, s, r);
+			}
+			out.append(")\r\n\r\n");
+		}
+	}
+
+	private void writeRule(Appendable out, Random random, int space, int rule) throws IOException {
+		out.append("\t(ins gen-rule-").append(String.valueOf(space)).append("-").append(String.valueOf(rule)).append("\r\n");
+
+		// A chain of attributes below each object, ending at a var that conditions test
+		out.append("\t\t(ref (s1 wm <wm>)");
+		List<String> leaves = new ArrayList<String>(fanOut);
+		for (int o=1; o<=fanOut; ++o) {
+			String var = "<ob" + o + ">";
+			out.append(" (<wm> object ").append(var).append(")");
+			for (int d=1; d<=refDepth; ++d) {
+				String next = "<ob" + o + "-" + d + ">";
+				out.append(" (").append(var).append(" ").append(pick(random)).append(" ").append(next).append(")");
+				var = next;
+			}
+			leaves.add(var);
+		}
+		out.append(")\r\n");
+
+		// One to three conditions, mostly const tests
+		out.append("\t\t(condition");
+		int conditions = 1 + random.nextInt(3);
+		for (int c=0; c<conditions; ++c) {
+			String leaf = leaves.get(random.nextInt(leaves.size()));
+			int kind = random.nextInt(10);
+			if (kind < 5) {
+				out.append(" (== ").append(leaf).append(" ").append(pick(random)).append(" const v").append(String.valueOf(random.nextInt(constPool))).append(")");
+			}
+			else if (kind < 7) {
+				String other = leaves.get(random.nextInt(leaves.size()));
+				out.append(random.nextBoolean() ? " (== " : " (<> ").append(leaf).append(" ").append(pick(random)).append(" ").append(other).append(" ").append(pick(random)).append(")");
+			}
+			else if (kind < 9) {
+				out.append(random.nextBoolean() ? " (< " : " (>= ").append(leaf).append(" size const ").append(String.valueOf(random.nextInt(constPool))).append(")");
+			}
+			else {
+				out.append(random.nextBoolean() ? " (? " : " (- ").append(leaf).append(" ").append(pick(random)).append(")");
+			}
+		}
+		out.append(")\r\n");
+
+		out.append("\t\t(operator \"gen-op-").append(String.valueOf(random.nextInt(OPERATORS_PER_SPACE))).append("\")\r\n");
+		out.append("\t\t(description \"Generated rule\"))\r\n");
+	}
+
+	private static String pick(Random random) {
+		return ATTRIBUTES[random.nextInt(ATTRIBUTES.length)];
+	}
+
+	/**
+	 * Apply one command-line option, such as "-rules" with "50".
+	 * @param option The option name
+	 * @param value The option's value
+	 * @return False if the option isn't known or its value is out of range
+	 * @throws NumberFormatException If the value isn't a number
+	 */
+	public boolean setOption(String option, String value) {
+		if (option.equals("-seed")) {
+			setSeed(Long.parseLong(value));
+			return true;
+		}
+		int n = Integer.parseInt(value);
+		if (n < 1) {
+			return false;
+		}
+		switch (option) {
+		case "-spaces":
+			setSpaces(n);
+			return true;
+		case "-rules":
+			setRulesPerSpace(n);
+			return true;
+		case "-depth":
+			setRefDepth(n);
+			return true;
+		case "-fanout":
+			setFanOut(n);
+			return true;
+		case "-consts":
+			setConstPool(n);
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	public static void main(String[] args) {
+		CorpusGenerator generator = new CorpusGenerator();
+		Path outPath = null;
+		try {
+			for (int i=0; i<args.length; ++i) {
+				if (!args[i].startsWith("-")) {
+					outPath = Paths.get(args[i]);
+					continue;
+				}
+				String option = args[i];
+				if (i+1 >= args.length || !generator.setOption(option, args[++i])) {
+					System.err.println("ERROR: Bad option '" + option + "'. Each option takes a positive number, or any number for -seed.");
+					System.exit(1);
+				}
+			}
+		} catch (NumberFormatException e) {
+			System.err.println("ERROR: Options take a number: " + e.getMessage());
+			System.exit(1);
+		}
+		if (outPath == null) {
+			System.err.println("Usage: CorpusGenerator [-seed n] [-spaces n] [-rules n] [-depth n] [-fanout n] [-consts n] output.delta");
+			System.exit(1);
+		}
+
+		try {
+			generator.write(outPath);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+		System.out.println("Wrote " + outPath + " (" + generator.getDescription() + ").");
+	}
+}
@@ -0,0 +1,239 @@
+package edu.umich.eecs.soar.delta;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A single-pass, character-level tokenizer for lisp-style delta instruction text.
+ * Tokens are open parentheses, close parentheses, and atoms. Quoted atoms are returned without their quotes,
+ * and ';' at the start of a token comments out the rest of the line.
+ * File input is decoded in fixed-size blocks from a FileChannel, so the whole file is never held in memory.
+ */
+public class DeltaLexer implements Closeable {
+
+	public enum TokenType { OPEN, CLOSE, ATOM, EOF }
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final FileChannel channel;		// The file being read, or null if lexing in-memory text
+	private final CharsetDecoder decoder;
+	private final ByteBuffer byteBuf;
+	private final CharBuffer charBuf;		// Decoded text, always in read mode between calls
+	private boolean endOfInput = false,
+					flushed = false;
+
+	private final StringBuilder text = new StringBuilder(64);
+	private int line = 1,					// Position of the next unread character
+				column = 1,
+				offset = 0,
+				tokenLine = 0,				// Position of the first character of the last token
+				tokenColumn = 0,
+				tokenOffset = 0;
+
+	/**
+	 * Open a lexer over the given file, assumed to be UTF-8 text.
+	 * @param inPath The file to tokenize
+	 * @throws IOException If the file can't be opened
+	 */
+	public DeltaLexer(Path inPath) throws IOException {
+		this.channel = FileChannel.open(inPath, StandardOpenOption.READ);
+		this.decoder = StandardCharsets.UTF_8.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.byteBuf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		this.charBuf = CharBuffer.allocate(BUFFER_SIZE);
+		this.charBuf.flip();	// Start empty, in read mode
+	}
+
+	/**
+	 * Make a lexer over text that is already in memory.
+	 * @param source The text to tokenize
+	 */
+	public DeltaLexer(CharSequence source) {
+		this(source.toString().toCharArray(), source.length());
+	}
+
+	/**
+	 * Make a lexer over the start of a char array, without copying it.
+	 * @param source The text to tokenize
+	 * @param length The number of chars of the array to tokenize
+	 */
+	public DeltaLexer(char[] source, int length) {
+		this.channel = null;
+		this.decoder = null;
+		this.byteBuf = null;
+		this.charBuf = CharBuffer.wrap(source, 0, length);
+		this.endOfInput = true;
+		this.flushed = true;
+	}
+
+	/**
+	 * @return The text of the last ATOM token, without quotes
+	 */
+	public String getText() { return text.toString(); }
+
+	/**
+	 * @return The 1-based line number where the last token started
+	 */
+	public int getLine() { return tokenLine; }
+
+	/**
+	 * @return The 1-based column number where the last token started
+	 */
+	public int getColumn() { return tokenColumn; }
+
+	/**
+	 * @return The 0-based char offset in the input where the last token started. For a quoted atom, this is the opening quote.
+	 */
+	public int getOffset() { return tokenOffset; }
+
+	/**
+	 * @return The 0-based char offset in the input just past the end of the last token, including any closing quote
+	 */
+	public int getEndOffset() { return offset; }
+
+	/**
+	 * Read the next token from the input.
+	 * @return The type of the token read. Once EOF is returned, it will be returned for every following call.
+	 * @throws IOException If the underlying file can't be read
+	 */
+	public TokenType next() throws IOException {
+		text.setLength(0);
+
+		// Skip whitespace and comments
+		int c;
+		while (true) {
+			c = peek();
+			if (c == -1) {
+				tokenLine = line;
+				tokenColumn = column;
+				tokenOffset = offset;
+				return TokenType.EOF;
+			}
+			else if (c == ';') {
+				// Comment through end of line
+				while (c != -1 && c != '\n') {
+					advance();
+					c = peek();
+				}
+			}
+			else if (Character.isWhitespace(c)) {
+				advance();
+			}
+			else {
+				break;
+			}
+		}
+
+		tokenLine = line;
+		tokenColumn = column;
+		tokenOffset = offset;
+
+		if (c == '(') {
+			advance();
+			return TokenType.OPEN;
+		}
+		else if (c == ')') {
+			advance();
+			return TokenType.CLOSE;
+		}
+		else if (c == '"') {
+			// Quoted atom: read everything through the closing quote
+			advance();
+			c = peek();
+			while (c != -1 && c != '"') {
+				text.append((char) advance());
+				c = peek();
+			}
+			if (c == '"') {
+				advance();
+			}
+			return TokenType.ATOM;
+		}
+
+		// Plain atom: read until whitespace or a parenthesis
+		while (c != -1 && c != '(' && c != ')' && !Character.isWhitespace(c)) {
+			text.append((char) advance());
+			c = peek();
+		}
+		return TokenType.ATOM;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (channel != null) {
+			channel.close();
+		}
+	}
+
+	/**
+	 * @return The next character without consuming it, or -1 at the end of input
+	 */
+	private int peek() throws IOException {
+		if (!charBuf.hasRemaining() && !fill()) {
+			return -1;
+		}
+		return charBuf.get(charBuf.position());
+	}
+
+	/**
+	 * Consume the next character, which must exist (call peek() first), and update the line and column.
+	 * @return The consumed character
+	 */
+	private int advance() {
+		char c = charBuf.get();
+		++offset;
+		if (c == '\n') {
+			++line;
+			column = 1;
+		}
+		else {
+			++column;
+		}
+		return c;
+	}
+
+	/**
+	 * Decode the next block of the file into the (empty) char buffer.
+	 * @return False if there is no more text to read
+	 */
+	private boolean fill() throws IOException {
+		if (flushed) {
+			return false;
+		}
+
+		charBuf.clear();
+		while (true) {
+			if (!endOfInput && channel.read(byteBuf) < 0) {
+				endOfInput = true;
+			}
+			byteBuf.flip();
+			CoderResult result = decoder.decode(byteBuf, charBuf, endOfInput);
+			byteBuf.compact();
+			if (result.isError()) {
+				result.throwException();
+			}
+
+			if (endOfInput) {
+				decoder.flush(charBuf);
+				flushed = true;
+				break;
+			}
+			if (charBuf.position() > 0) {
+				break;
+			}
+		}
+		charBuf.flip();
+
+		return charBuf.hasRemaining();
+	}
+}
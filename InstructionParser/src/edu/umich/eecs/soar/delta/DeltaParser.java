@@ -1,17 +1,35 @@
 package edu.umich.eecs.soar.delta;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 public class DeltaParser {
+	
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	private CompileCache compileCache = null;
+	private ElaborationContext.MergeMode mergeMode = ElaborationContext.MergeMode.BLIND;
+	private boolean compareMerge = false;
+	private Path binaryOutPath = null;
+	private int maxContextRules = 0;
+	private boolean eliminateDeadRefs = false;
+	private RuleAnalyzer.Mode ruleCheckMode = null;
+	private boolean buildIndexes = false;
+	private SelectivityModel selectivityModel = null;
+	private boolean productionOutput = false;
+	private Path tuningOutPath = null;
+	private Path deltaBasePath = null,
+				 deltaOutPath = null;
+	private final ConcurrentHashMap<String, Integer> contextNameCounts = new ConcurrentHashMap<String, Integer>();	// How often each problem-space name was read by the current compile
+	private final SymbolTable symbols = new SymbolTable();	// Interns the attribute, var and const tokens of every file this parser reads
 
 	/**
 	 * Read the given delta instructions file and create the corresponding soar output file. 
@@ -22,28 +40,534 @@ public class DeltaParser {
 	 * @return Success status
 	 */
 	public boolean convert_file(String infile, String outfile) {
-		Path inPath = Paths.get(infile);
-		Path outPath = Paths.get(outfile);
+		return convert_files(Arrays.asList(Paths.get(infile)), Paths.get(outfile));
+	}
+	
+	/**
+	 * Read the given delta instruction files and create a single soar output file containing all of their instructions.
+	 * The instructions are compiled as in compile_files().
+	 * If the output file doesn't exist, it will be created. If it does exist it will be overwritten.
+	 * @param inPaths The files to open and parse
+	 * @param outPath The file to send output to
+	 * @return Success status
+	 */
+	public boolean convert_files(List<Path> inPaths, Path outPath) {
+		InstructionDelta.Snapshot base = null;
+		if (deltaOutPath != null && (base = InstructionDelta.Snapshot.read(deltaBasePath)) == null) { return false; }
 		
-		// Open or overwrite output file for writing and write output header data
-		if (!init_output_file(outPath)) { return false; }
+		ContextMemory parsedIns = compile_files(inPaths);
+		if (parsedIns == null) { return false; }
 		
-		LispishObject fileTextStructs = new LispishObject();
-		ContextMemory parsedIns = new ContextMemory();
+		// Create or replace the output file
+		if (!(productionOutput ? write_production_file(outPath, parsedIns) : write_output_file(outPath, parsedIns))) { return false; }
+		if (binaryOutPath != null) {
+			if (!DeltacFile.write(parsedIns, binaryOutPath)) {
+				System.err.println("ERROR in convert_files: Could not write '" + binaryOutPath + "'");
+				return false;
+			}
+			System.out.println("Wrote precompiled instructions to " + binaryOutPath + ".");
+		}
+		if (tuningOutPath != null) {
+			AgentTuning tuning = new AgentTuning();
+			tuning.addAll(parsedIns);
+			if (!write_tuning_file(tuningOutPath, tuning)) { return false; }
+		}
+		if (base != null && !write_delta_file(deltaOutPath, base, outPath)) { return false; }
+		
+		System.out.println("Done!");
+		
+		return true;
+	}
+	
+	/**
+	 * Read and compile the given delta instruction files into a single ContextMemory, without writing any output.
+	 * Files are read into CompactLispTrees and parsed in parallel, then each problem-space is compiled in parallel.
+	 * Precompiled .deltac files are loaded as they are, without parsing or compiling.
+	 * Problem-spaces are in the order of the given files, and the order of problem-spaces within each file, regardless of thread scheduling.
+	 * @param inPaths The files to open and parse
+	 * @return The compiled instructions, or null if any file couldn't be read, parsed or compiled
+	 */
+	public ContextMemory compile_files(List<Path> inPaths) {
+		contextNameCounts.clear();
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			ContextMemory parsedIns = new ContextMemory();
+			
+			// Read and parse each file on its own task
+			long startTime = System.nanoTime();
+			List<Callable<ContextMemory>> parseTasks = new ArrayList<Callable<ContextMemory>>(inPaths.size());
+			for (final Path inPath : inPaths) {
+				parseTasks.add(new Callable<ContextMemory>() {
+					@Override
+					public ContextMemory call() throws IOException {
+						if (DeltacFile.isDeltacPath(inPath)) {
+							return DeltacFile.read(inPath);
+						}
+						CompactLispTree fileText = CompactLispTree.read(inPath);
+						if (fileText == null) { return null; }
+						LispishNode fileTextStructs = fileText.getRoot();
+						ContextMemory fileIns = new ContextMemory();
+						if (compileCache != null) {
+							if (!parse_cached_instructions(fileTextStructs, fileIns)) { return null; }
+						}
+						else if (!parse_instructions(fileTextStructs, fileIns)) { return null; }
+						return fileIns;
+					}
+				});
+			}
+			
+			// Merge the results in file order
+			List<Future<ContextMemory>> parsedFiles = pool.invokeAll(parseTasks);
+			for (int i=0; i<parsedFiles.size(); ++i) {
+				ContextMemory fileIns = parsedFiles.get(i).get();
+				if (fileIns == null) {
+					System.err.println("ERROR in compile_files: Could not parse '" + inPaths.get(i) + "'");
+					return null;
+				}
+				parsedIns.merge(fileIns);
+			}
+			long parseTime = System.nanoTime() - startTime;
+			
+			// Compile each problem-space on its own task
+			startTime = System.nanoTime();
+			if (!compile_instructions(parsedIns, pool)) { return null; }
+			long compileTime = System.nanoTime() - startTime;
+			
+			System.out.println(String.format("Parsed %d file(s) in %.1f ms, compiled %d problem-space(s) in %.1f ms, using %d thread(s).",
+					inPaths.size(), parseTime / 1000000.0, parsedIns.getElabContexts().size(), compileTime / 1000000.0, pool.getParallelism()));
+			if (parsedIns.getPrimRequests() > 0) {
+				System.out.println(String.format("Condition prims: %d distinct of %d compiled (%.1f%% deduplicated).",
+						parsedIns.getPrims().size(), parsedIns.getPrimRequests(), 100.0 * parsedIns.getPrimDedupRatio()));
+			}
+			if (parsedIns.getConstRequests() > 0) {
+				System.out.println(String.format("Const tuples: %d distinct of %d rules with consts.",
+						parsedIns.getConstTupleCount(), parsedIns.getConstRequests()));
+			}
+			printTreeSizes(parsedIns);
+			if (compileCache != null) {
+				System.out.println("Compile cache: " + compileCache.getHits() + " problem-space(s) reused, " + compileCache.getMisses() + " recompiled.");
+			}
 			
-		// If reading an problem-space instruction, parse it and send to output
-		if (!read_lispish_file(inPath, fileTextStructs)) { return false; }
-		if (!parse_instructions(fileTextStructs, parsedIns)) { return false; }
-		if (!write_parsed_elab_context(outPath, parsedIns)) { return false; }
+			return parsedIns;
+		} catch (InterruptedException | ExecutionException e) {
+			e.printStackTrace();
+			return null;
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	/**
+	 * Read the given delta instruction files and create a single soar output file containing all of their instructions, in bounded memory.
+	 * The files are read one at a time as token events, and each problem-space is compiled and written as soon as its block is closed,
+	 * then released. Memory use thus depends on the largest problem-space, not on the size of the input.
+	 * Precompiled .deltac files are loaded whole and written out as they are.
+	 * Unlike convert_files(), condition Prims are only shared within each problem-space, and each problem-space's Prims follow it in the output.
+	 * @param inPaths The files to open and parse
+	 * @param outPath The file to send output to
+	 * @return Success status
+	 */
+	public boolean convert_files_streaming(List<Path> inPaths, Path outPath) {
+		contextNameCounts.clear();
+		long startTime = System.nanoTime();
+		StreamingCompiler compiler;
+		AgentTuning tuning = (tuningOutPath == null ? null : new AgentTuning());
+		InstructionDelta.Snapshot base = null;
+		if (deltaOutPath != null && (base = InstructionDelta.Snapshot.read(deltaBasePath)) == null) { return false; }
 		
-		// Write output file footers and return
-		if (!finish_output_file(outPath)) { return false; }
+		try (SmemOutputSink sink = new SmemOutputSink(outPath)) {
+			compiler = new StreamingCompiler(this, mergeMode, compileCache, sink.getWriter());
+			compiler.setTuning(tuning);
+			compiler.start();
+			for (Path inPath : inPaths) {
+				if (DeltacFile.isDeltacPath(inPath)) {
+					ContextMemory compiledIns = DeltacFile.read(inPath);
+					if (compiledIns == null || !compiler.writeCompiled(compiledIns)) {
+						System.err.println("ERROR in convert_files_streaming: Could not load '" + inPath + "'");
+						return false;
+					}
+				}
+				else if (!read_lispish_events(inPath, compiler)) {
+					System.err.println("ERROR in convert_files_streaming: Could not compile '" + inPath + "'");
+					return false;
+				}
+			}
+			sink.commit();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
 		
+		System.out.println(String.format("Streamed %d problem-space(s) from %d file(s) in %.1f ms.",
+				compiler.getContextCount(), inPaths.size(), (System.nanoTime() - startTime) / 1000000.0));
+		if (compiler.getPrimRequests() > 0) {
+			System.out.println(String.format("Condition prims: %d distinct of %d compiled (%.1f%% deduplicated within problem-spaces).",
+					compiler.getDistinctPrimCount(), compiler.getPrimRequests(), 100.0 * (1.0 - (double) compiler.getDistinctPrimCount() / compiler.getPrimRequests())));
+		}
+		if (compileCache != null) {
+			System.out.println("Compile cache: " + compileCache.getHits() + " problem-space(s) reused, " + compileCache.getMisses() + " recompiled.");
+		}
+		if (tuning != null && !write_tuning_file(tuningOutPath, tuning)) { return false; }
+		if (base != null && !write_delta_file(deltaOutPath, base, outPath)) { return false; }
 		System.out.println("Done!");
 		
 		return true;
 	}
 	
+	/**
+	 * Set the number of threads used by convert_files(). Defaults to the number of available processors.
+	 * @param threads The number of threads to use, at least 1
+	 */
+	public void setParallelism(int threads) {
+		parallelism = Math.max(1, threads);
+	}
+	
+	/**
+	 * Reuse previously compiled problem-spaces from the given cache in convert_files(), instead of recompiling them.
+	 * Newly compiled problem-spaces are added to the cache.
+	 * @param cache The cache to use, or null to always compile
+	 */
+	public void setCompileCache(CompileCache cache) {
+		compileCache = cache;
+	}
+	
+	/**
+	 * Set how compile_instructions() merges each rule's referenced WM branches into its problem-space's wm tree. Defaults to blind merging.
+	 * @param mode The merge mode
+	 */
+	public void setMergeMode(ElaborationContext.MergeMode mode) {
+		mergeMode = mode;
+	}
+	
+	/**
+	 * Also report how many wm tree nodes blind merging would have compiled, when merging some other way. This merges every tree again, so it is off by default.
+	 * @param compare Whether to compare with blind merging
+	 */
+	public void setCompareMerge(boolean compare) {
+		compareMerge = compare;
+	}
+	
+	/**
+	 * Also write the compiled instructions to the given .deltac file in convert_files(), so later builds can load them without reparsing.
+	 * @param outPath The binary file to write, or null to only write smem text
+	 */
+	public void setBinaryOutput(Path outPath) {
+		binaryOutPath = outPath;
+	}
+	
+	/**
+	 * Check each compiled problem-space for rules that can never fire or are subsumed by another rule, as in check_rules().
+	 * @param mode Whether to only warn about the rules found or also remove them, or null to not check. Off by default.
+	 */
+	public void setRuleCheck(RuleAnalyzer.Mode mode) {
+		ruleCheckMode = mode;
+	}
+	
+	/**
+	 * Split problem-spaces with more than the given number of rules into sub-contexts in compile_instructions(), as described in ContextPartitioner.
+	 * @param maxRules The most rules to leave in one context, or 0 to never partition
+	 */
+	public void setMaxContextRules(int maxRules) {
+		maxContextRules = maxRules;
+	}
+	
+	public int getMaxContextRules() { return maxContextRules; }
+	
+	/**
+	 * @return The table that this parser interns the attribute, var and const tokens of parsed instructions in
+	 */
+	public SymbolTable getSymbols() { return symbols; }
+	
+	/**
+	 * Remove ref addresses that no condition uses before compiling each problem-space's wm tree, as in eliminate_dead_refs().
+	 * Productions written with setProductionOutput() then no longer require the unused WMEs to exist.
+	 * @param eliminate Whether to remove unused addresses. Off by default.
+	 */
+	public void setEliminateDeadRefs(boolean eliminate) {
+		eliminateDeadRefs = eliminate;
+	}
+	
+	/**
+	 * Write a DiscriminationIndex of each compiled problem-space's deltas after its wm tree, so agents can retrieve just the deltas that can match.
+	 * The PROPs engine doesn't read the indexes yet, so they only add to the output until it does.
+	 * @param build Whether to build the indexes. Off by default.
+	 */
+	public void setBuildIndexes(boolean build) {
+		buildIndexes = build;
+	}
+	
+	/**
+	 * Write Soar proposal productions from ProductionWriter in convert_files(), instead of smem instructions.
+	 * Productions can't be written for problem-spaces loaded from the compile cache, so don't use both.
+	 * @param productions Whether to write productions. Off by default.
+	 */
+	public void setProductionOutput(boolean productions) {
+		productionOutput = productions;
+	}
+	
+	/**
+	 * Also write an AgentTuning file of multi-attributes and chunk singleton settings for the compiled instructions,
+	 * for DeltaEnvironment to source after the PROPs library.
+	 * @param tuningPath The Soar file to write, or null to not write one
+	 */
+	public void setTuningOutput(Path tuningPath) {
+		tuningOutPath = tuningPath;
+	}
+	
+	/**
+	 * Also write an InstructionDelta script of the problem-spaces that changed since an earlier compile, for
+	 * DeltaEnvironment.applyInstructionDelta() to update an agent that loaded the earlier output without reloading it.
+	 * The earlier output is read before the new one is written, so it may be the same file.
+	 * @param basePath The earlier smem output, or null to not write a delta
+	 * @param deltaPath The Soar file to write the delta script to
+	 */
+	public void setDeltaOutput(Path basePath, Path deltaPath) {
+		deltaBasePath = basePath;
+		deltaOutPath = (basePath == null ? null : deltaPath);
+	}
+	
+	/**
+	 * Order each compiled rule's condition Prims from most to least selective, as estimated by the given model.
+	 * @param model The model to estimate with, or null to keep conditions in source order (the default)
+	 */
+	public void setSelectivityModel(SelectivityModel model) {
+		selectivityModel = model;
+	}
+	
+	/**
+	 * Order the condition Prims of each rule of the given newly compiled problem-space, if set to.
+	 * Run this before the context's Prims are collected, so the shared Prims are written in the new order too.
+	 * @param elab A problem-space whose refs were just compiled
+	 */
+	public void order_prims(ElaborationContext elab) {
+		if (selectivityModel == null) {
+			return;
+		}
+		for (Rule rule : elab.getRules()) {
+			selectivityModel.order(rule);
+		}
+	}
+	
+	/**
+	 * @return A description of the options that change the compiled text of a problem-space, for CompileCache keys
+	 */
+	public String getCompileOptions() {
+		return mergeMode.name() + (eliminateDeadRefs ? "-d" : "") + (ruleCheckMode == RuleAnalyzer.Mode.PRUNE ? "-u" : "") + (maxContextRules > 0 ? "-p" + maxContextRules : "") + (buildIndexes ? "-x" : "")
+				+ (selectivityModel != null ? "-r" + selectivityModel.getId() : "");
+	}
+	
+	/**
+	 * Build the DiscriminationIndex of the given compiled problem-space, if set to build indexes and it doesn't have one yet.
+	 * Contexts loaded from the compile cache are skipped, since their text already has their index.
+	 * @param elab A compiled problem-space
+	 */
+	public void index_context(ElaborationContext elab) {
+		if (buildIndexes && !elab.isCached() && elab.getIndex() == null) {
+			elab.buildIndex();
+		}
+	}
+	
+	/**
+	 * Check the rules of the given compiled problem-space with a RuleAnalyzer, if set to, and warn about or remove the rules that can never fire
+	 * or are subsumed. Also reports how many of the problem-space's per-decision condition checks the rules found account for.
+	 * When removing rules, the problem-space is compiled again without them, so their wm tree nodes aren't written either.
+	 * Must be called before the problem-space's Prims are collected, so that removed rules' Prims aren't kept.
+	 * @param elab A compiled problem-space. Those loaded precompiled are skipped.
+	 */
+	public void check_rules(ElaborationContext elab) {
+		if (ruleCheckMode == null || elab.isCached()) {
+			return;
+		}
+		
+		RuleAnalyzer analyzer = new RuleAnalyzer(elab);
+		if (!analyzer.hasFindings()) {
+			return;
+		}
+		boolean prune = (ruleCheckMode == RuleAnalyzer.Mode.PRUNE);
+		analyzer.printWarnings(prune);
+		System.out.println(String.format("Rule check of problem-space '%s': %d rule(s) can never fire and %d are subsumed, with %d of its %d condition checks per decision (%.1f%%), %s.",
+				elab.getName(), analyzer.getUnsatisfiableCount(), analyzer.getSubsumedCount(), analyzer.getFoundConditionCount(), analyzer.getConditionCount(),
+				100.0 * analyzer.getFoundConditionCount() / Math.max(analyzer.getConditionCount(), 1), (prune ? "removed" : "which removing them would save")));
+		if (prune) {
+			int nodes = elab.getWMNodeCount();
+			analyzer.prune();
+			elab.recompileRefs(mergeMode);
+			order_prims(elab);
+			System.out.println(String.format("Removed %d wm tree node(s) that only the removed rules used from problem-space '%s'.",
+					nodes - elab.getWMNodeCount(), elab.getName()));
+		}
+	}
+	
+	/**
+	 * Remove the ref addresses that no condition uses from each uncompiled problem-space in the given ContextMemory, and report how many
+	 * wm tree nodes that saves in each one. Does nothing unless setEliminateDeadRefs() turned it on.
+	 * @param parsedIns The parsed instructions
+	 */
+	public void eliminate_dead_refs(ContextMemory parsedIns) {
+		if (!eliminateDeadRefs) {
+			return;
+		}
+		
+		for (ElaborationContext elab : parsedIns.getElabContexts()) {
+			if (elab.isCompiled()) {
+				continue;
+			}
+			if (elab.getRefs().size() != elab.getRules().size()) {
+				System.err.println("WARNING: Not removing unused refs from problem-space '" + elab.getName() + "', since not every rule has one (ref ...).");
+				continue;
+			}
+			
+			int before = elab.countWMNodes(mergeMode);
+			int removed = elab.eliminateDeadRefs();
+			if (removed > 0) {
+				System.out.println(String.format("Removed %d unused ref address(es) from problem-space '%s', saving %d wm tree node(s).",
+						removed, elab.getName(), before - elab.countWMNodes(mergeMode)));
+			}
+		}
+	}
+	
+	/**
+	 * Replace each oversized, uncompiled problem-space in the given ContextMemory with its routing context and sub-contexts, in place.
+	 * Does nothing unless setMaxContextRules() was given a limit.
+	 * @param parsedIns The parsed instructions
+	 */
+	public void partition_contexts(ContextMemory parsedIns) {
+		if (maxContextRules < 1) {
+			return;
+		}
+		
+		List<ElaborationContext> elabs = parsedIns.getElabContexts();
+		List<ElaborationContext> partitioned = new ArrayList<ElaborationContext>(elabs.size());
+		int split = 0, parts = 0;
+		for (ElaborationContext elab : elabs) {
+			List<ElaborationContext> result = ContextPartitioner.partition(elab, maxContextRules);
+			if (result.size() > 1) {
+				++split;
+				parts += result.size() - 1;
+			}
+			partitioned.addAll(result);
+		}
+		
+		if (split > 0) {
+			elabs.clear();
+			elabs.addAll(partitioned);
+			System.out.println("Partitioned " + split + " problem-space(s) into " + parts + " sub-contexts of at most " + maxContextRules + " rules.");
+		}
+	}
+	
+	/**
+	 * Build the index of every compiled problem-space that needs one, including those loaded from .deltac files, and print their total size.
+	 * Does nothing unless set to build indexes.
+	 * @param compiledIns The compiled instructions
+	 */
+	public void index_contexts(ContextMemory compiledIns) {
+		if (!buildIndexes) {
+			return;
+		}
+		
+		int nodes = 0, depth = 0, indexed = 0;
+		for (ElaborationContext elab : compiledIns.getElabContexts()) {
+			index_context(elab);
+			DiscriminationIndex index = elab.getIndex();
+			if (index != null) {
+				++indexed;
+				nodes += index.getNodeCount();
+				depth = Math.max(depth, index.getDepth());
+			}
+		}
+		System.out.println(String.format("Delta indexes: %d nodes for %d problem-space(s), at most %d deep.", nodes, indexed, depth));
+	}
+	
+	/**
+	 * Print the total size of the compiled wm trees.
+	 * If set to compare merges and not merging blindly, the size that blind merging would give is also computed and printed for comparison.
+	 */
+	private void printTreeSizes(ContextMemory parsedIns) {
+		int nodes = 0, blindNodes = 0, compiled = 0;
+		for (ElaborationContext elab : parsedIns.getElabContexts()) {
+			if (elab.isCached()) {
+				continue;
+			}
+			++compiled;
+			nodes += elab.getWMNodeCount();
+			if (compareMerge && mergeMode != ElaborationContext.MergeMode.BLIND) {
+				blindNodes += elab.countWMNodes(ElaborationContext.MergeMode.BLIND);
+			}
+		}
+		
+		if (compiled == 0) {
+			return;
+		}
+		if (!compareMerge || mergeMode == ElaborationContext.MergeMode.BLIND) {
+			System.out.println(String.format("WM-space trees: %d nodes (%s merge).", nodes, mergeMode.name().toLowerCase()));
+		}
+		else {
+			System.out.println(String.format("WM-space trees: %d nodes (%s merge), %d with blind merge (%.1f%% smaller).",
+					nodes, mergeMode.name().toLowerCase(), blindNodes, 100.0 * (blindNodes - nodes) / blindNodes));
+		}
+	}
+	
+	/**
+	 * Compile the WMEAddress refs and condition Prims of every problem-space in the given ContextMemory, after removing unused refs and partitioning
+	 * oversized ones if set to, and then check their rules if set to.
+	 * Each problem-space compiles on its own task in the given pool, except for contexts loaded precompiled from the compile cache or a .deltac file.
+	 * Their Prims are then collected into the ContextMemory in problem-space order, and the new contexts are stored in the compile cache if there is one.
+	 * @param parsedIns The parsed, uncompiled instructions
+	 * @param pool The pool to run compile tasks in
+	 * @return Success status
+	 */
+	public boolean compile_instructions(ContextMemory parsedIns, ForkJoinPool pool) throws InterruptedException, ExecutionException {
+		eliminate_dead_refs(parsedIns);
+		partition_contexts(parsedIns);
+		
+		final List<ElaborationContext> toCompile = new ArrayList<ElaborationContext>(parsedIns.getElabContexts().size());
+		List<Callable<LispishObject>> compileTasks = new ArrayList<Callable<LispishObject>>(parsedIns.getElabContexts().size());
+		for (final ElaborationContext elab : parsedIns.getElabContexts()) {
+			if (elab.isCompiled()) {
+				continue;
+			}
+			toCompile.add(elab);
+			compileTasks.add(new Callable<LispishObject>() {
+				@Override
+				public LispishObject call() {
+					// Compile the WMEAddress refs for these instructions
+					LispishObject wm = elab.compileRefs(mergeMode);
+					order_prims(elab);
+					return wm;
+				}
+			});
+		}
+		
+		// Wait for all to finish (and surface any exceptions) before collecting in order
+		for (Future<LispishObject> f : pool.invokeAll(compileTasks)) {
+			f.get();
+		}
+		for (ElaborationContext elab : toCompile) {
+			check_rules(elab);
+			parsedIns.collectPrims(elab);
+		}
+		index_contexts(parsedIns);
+		
+		// Cache the newly compiled contexts once their Prims are shared, so that cached text matches what is written now
+		if (compileCache != null) {
+			List<Callable<Void>> storeTasks = new ArrayList<Callable<Void>>(toCompile.size());
+			for (final ElaborationContext elab : toCompile) {
+				storeTasks.add(new Callable<Void>() {
+					@Override
+					public Void call() {
+						compileCache.store(elab);
+						return null;
+					}
+				});
+			}
+			for (Future<Void> f : pool.invokeAll(storeTasks)) {
+				f.get();
+			}
+		}
+		
+		return true;
+	}
+	
 	/**
 	 * Read the contents of file with parentheses-separate text object.
 	 * Return the read lines in the given list, organized into a LispishObject hierarchy.
@@ -52,7 +576,7 @@ public class DeltaParser {
 	 * @param ret_insLines A returned LispishObject containing the hierarchy of parenthetical blocks in the file.
 	 * @return Success status
 	 */
-	public boolean read_lispish_file(Path inPath, LispishObject ret_insLines) {
+	public boolean read_lispish_file(Path inPath, final LispishObject ret_insLines) {
 		if (ret_insLines == null)
 			return false;
 		ret_insLines.clear();
@@ -60,43 +584,73 @@ public class DeltaParser {
 		// Init the object with the command to load instructions (for formatting consistency: each LispishObject starts with a command)
 		ret_insLines.addString("instruct-elabs");
 		
-		LispishObject curObj = ret_insLines; 
-		
-		try (Scanner scanner = new Scanner(inPath.toFile())) {
-			scanner.useDelimiter("[\\p{javaWhitespace}]+|(?<=\\()|(?=\\))"); // Delimit by whitespace or parentheses
+		// Organize the tokens in the file as LispishObjects
+		return read_lispish_events(inPath, new LispishHandler() {
+			private LispishObject curObj = ret_insLines;
 			
-			// Scan through all tokens in the file and organize as LispishObjects
-			while (scanner.hasNext()) {
-				
-				String token = scanner.next();
+			@Override
+			public boolean onOpen() {
+				// Start a new object
+				curObj = curObj.addObject();
+				return true;
+			}
+			
+			@Override
+			public boolean onAtom(String text) {
+				curObj.addString(text);
+				return true;
+			}
+			
+			@Override
+			public boolean onClose() {
+				// End current object
+				curObj = curObj.getParent();
+				return true;
+			}
+		});
+	}
+	
+	/**
+	 * Read the given file of parentheses-separated text, passing each token to the given handler as it is read.
+	 * No tree is built, so memory use doesn't grow with the file. Unbalanced parentheses are reported here, and end the read.
+	 * @param inPath The path of the file to read from
+	 * @param handler The handler to pass the tokens to
+	 * @return Success status: false if the file couldn't be read, was unbalanced, or the handler stopped the read
+	 */
+	public boolean read_lispish_events(Path inPath, LispishHandler handler) {
+		try (DeltaLexer lexer = new DeltaLexer(inPath)) {
+			int depth = 0;
+			
+			// Scan through all tokens in the file
+			DeltaLexer.TokenType token;
+			while ((token = lexer.next()) != DeltaLexer.TokenType.EOF) {
 				
-				if (token.equals("(")) {
-					// Start a new object
-					curObj = curObj.addObject();
-				}
-				else if (token.equals(")")) {
-					// End current object
-					curObj = curObj.getParent();
-				}
-				else if (token.startsWith("\"")) {
-					// Start a new object that includes this String
-					if (!token.endsWith("\"")) {
-						scanner.useDelimiter("\"");
-						token += scanner.next();
+				if (token == DeltaLexer.TokenType.OPEN) {
+					++depth;
+					if (!handler.onOpen()) {
+						return false;
 					}
-					scanner.useDelimiter("[\\p{javaWhitespace}]+|(?<=\\()|(?=\\))");
-					curObj.addString(token.replaceAll("\"", ""));
 				}
-				else if (token.startsWith(";")) {
-					// Skip comments
-					scanner.nextLine();
+				else if (token == DeltaLexer.TokenType.CLOSE) {
+					if (depth == 0) {
+						System.err.println("ERROR in read_lispish_events: Unmatched ')' at line " + lexer.getLine() + ", column " + lexer.getColumn() + " of " + inPath);
+						return false;
+					}
+					--depth;
+					if (!handler.onClose()) {
+						return false;
+					}
 				}
-				else {
-					curObj.addString(token);
+				else if (!handler.onAtom(lexer.getText())) {
+					return false;
 				}
 				
-				
-			} // End of while (scanner.hasNext())
+			} // End of while (lexer.next() != EOF)
+			
+			if (depth != 0) {
+				System.err.println("ERROR in read_lispish_events: Unclosed '(' at end of " + inPath);
+				return false;
+			}
 			
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -107,18 +661,56 @@ public class DeltaParser {
 	}
 
 	/**
-	 * Parse the instruction text given in the hierarchy included under the given LispishObject.
+	 * Parse the instruction text given in the hierarchy included under the given LispishNode, reusing cached problem-spaces.
+	 * Each (problem-space ...) block found in the compile cache is added to the given ContextMemory precompiled.
+	 * The rest are parsed as in parse_instructions(), and tagged with their cache key so they are stored once compiled.
+	 * @param insObj The source instruction text to parse, as returned by read_lispish_file() or CompactLispTree.read()
+	 * @param ret_parsedIns The return ContextMemory object
+	 * @return Success status
+	 */
+	public boolean parse_cached_instructions(LispishNode insObj, ContextMemory ret_parsedIns) {
+		for (int i=1; i<insObj.size(); ++i) {
+			LispishNode spaceObj = insObj.get(i);
+			
+			// Leave anything that isn't a named problem-space for parse_instructions() to report
+			if (!spaceObj.isList() || spaceObj.size() < 2 || !spaceObj.getString(0).equals("problem-space") || spaceObj.get(1).isList()) {
+				if (!parse_instructions(spaceObj, ret_parsedIns)) {
+					return false;
+				}
+				continue;
+			}
+			
+			String key = compileCache.keyOf(spaceObj, getCompileOptions());
+			ElaborationContext cached = compileCache.load(key, ret_parsedIns, spaceObj.getString(1));
+			if (cached != null) {
+				check_context_name(cached.getName());
+				ret_parsedIns.addElabContext(cached);
+				continue;
+			}
+			
+			int numContexts = ret_parsedIns.getElabContexts().size();
+			if (!parse_instructions(spaceObj, ret_parsedIns)) {
+				return false;
+			}
+			ret_parsedIns.getElabContexts().get(numContexts).setCacheKey(key);
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Parse the instruction text given in the hierarchy included under the given LispishNode.
 	 * Add the parsed information into the given ContextMemory structure
 	 * @param insObj The source instruction text to parse
 	 * @param ret_parsedIns The return ContextMemory object
 	 * @return Success status
 	 */
-	public boolean parse_instructions(LispishObject insObj, ContextMemory ret_parsedIns) {
+	public boolean parse_instructions(LispishNode insObj, ContextMemory ret_parsedIns) {
 		return parse_instructions(insObj, ret_parsedIns, null, null);
 	}
 	
 	/**
-	 * Parse the instruction text given in the hierarchy included under the given LispishObject.
+	 * Parse the instruction text given in the hierarchy included under the given LispishNode.
 	 * Add the parsed information into the given ContextMemory structure
 	 * @param insObj The source instruction text to parse
 	 * @param ret_parsedIns The return ContextMemory object
@@ -126,7 +718,7 @@ public class DeltaParser {
 	 * @param curRule The current ins rule being parsed, or null if none
 	 * @return Success status
 	 */
-	public boolean parse_instructions(LispishObject insObj, ContextMemory ret_parsedIns, ElaborationContext curElab, Rule curRule) {
+	public boolean parse_instructions(LispishNode insObj, ContextMemory ret_parsedIns, ElaborationContext curElab, Rule curRule) {
 		
 		// Argument error checking
 		if (insObj == null || !insObj.isList()) {
@@ -135,8 +727,8 @@ public class DeltaParser {
 			System.err.println("\t Current rule: " + (curRule == null ? "NULL" : curRule.getName()));
 			return false;
 		}
-		if (insObj.getDataList().size() == 0) {
-			System.err.println("ERROR in parse_instructions: Cannot parse LispishObject. It has no data.");
+		if (insObj.size() == 0) {
+			System.err.println("ERROR in parse_instructions: Cannot parse LispishNode. It has no data.");
 			System.err.println("\t Current problem-space: " + (curElab == null ? "NULL" : curElab.getName()));
 			System.err.println("\t Current rule: " + (curRule == null ? "NULL" : curRule.getName()));
 			return false;
@@ -190,10 +782,9 @@ public class DeltaParser {
 				}
 			}
 
-			// Compile the WMEAddress refs for these instructions
-			curElab.compileRefs();
-			
-			// Success: add this completed problem-space to the ContextMemory and clear the local elab marker
+			// Success: add this completed problem-space to the ContextMemory and clear the local elab marker.
+			// Its refs are compiled afterward by compile_instructions().
+			check_context_name(curElab.getName());
 			ret_parsedIns.addElabContext(curElab);
 			curElab = null;
 		}
@@ -252,7 +843,7 @@ public class DeltaParser {
 				return false;
 			}
 
-			WMERef thisRef = new WMERef();
+			WMERef thisRef = new WMERef(symbols);
 			
 			// Parse the wme address refs
 			for (int i=1; i<insObj.size(); ++i) {
@@ -362,13 +953,13 @@ public class DeltaParser {
 			}
 
 			// Assert that the second item is the WMERef name for arg1
-			String nm1 = insObj.getString(1);
+			String nm1 = symbols.intern(insObj.getString(1));
 			// Assert that the third item is the attribute name for arg1
-			String attr1 = insObj.getString(2);
+			String attr1 = symbols.intern(insObj.getString(2));
 			// Assert that the second item is the WMERef name for arg2
-			String nm2 = insObj.getString(3);
+			String nm2 = symbols.intern(insObj.getString(3));
 			// Assert that the third item is the attribute name for arg2
-			String attr2 = insObj.getString(4);
+			String attr2 = symbols.intern(insObj.getString(4));
 			
 			// Check for const values in refs
 			if (nm1.equals("const")) {
@@ -395,9 +986,9 @@ public class DeltaParser {
 			}
 
 			// Assert that the second item is the WMERef name for arg1
-			String nm1 = insObj.getString(1);
+			String nm1 = symbols.intern(insObj.getString(1));
 			// Assert that the third item is the attribute name for arg1
-			String attr1 = insObj.getString(2);
+			String attr1 = symbols.intern(insObj.getString(2));
 
 			// Add the condition
 			Condition c = new Condition(curRule, Prim.getType(cmd), nm1, attr1);
@@ -429,17 +1020,16 @@ public class DeltaParser {
 	}
 
 	/**
-	 * Append the parsed contents of an problem-space to file.
+	 * Write the compiled instructions to the given Soar file as a single smem --add command.
+	 * The file is opened once and replaced atomically; on failure, any existing file at the path is left untouched.
 	 * @param outPath The path of the file to write to
-	 * @param parsedInsLines A list of the line-lists to write for each (ins) block of the source problem-space.
+	 * @param parsedIns The compiled instructions to write.
 	 * @return Success status
 	 */
-	public boolean write_parsed_elab_context(Path outPath, ContextMemory parsedInsLines) {
-		// TODO: write in toString friendly format
-		List<String> outLines = parsedInsLines.getSmemStrings();
-		
-		try {
-			Files.write(outPath, outLines, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+	public boolean write_output_file(Path outPath, ContextMemory parsedIns) {
+		try (SmemOutputSink sink = new SmemOutputSink(outPath)) {
+			sink.write(parsedIns);
+			sink.commit();
 		} catch (IOException e) {
 			e.printStackTrace();
 			return false;
@@ -447,46 +1037,85 @@ public class DeltaParser {
 		
 		return true;
 	}
-
+	
 	/**
-	 * Create the given output file if it doesn't exist.
-	 * Overwrite it if it does.
-	 * Then write the header description and smem --add opening text. 
+	 * Write the given parsed instructions to a Soar file of proposal productions, through ProductionWriter.
+	 * As with write_output_file(), an existing file is only replaced once the whole file has been written.
+	 * @param outPath The file to write
+	 * @param parsedIns The parsed instructions, with their rules' conditions and refs
 	 * @return Success status
 	 */
-	public boolean init_output_file(Path outPath) {
-		List<String> lines = Arrays.asList("#############################################################################",
-										   "# THIS FILE TRANSLATES INSTRUCTIONS INTO SMEM FORMAT FOR A SOAR PROPS AGENT #",
-										   "#############################################################################",
-										   "",
-										   "smem --add {",
-										   "");
-		try {
-			Files.deleteIfExists(outPath);
-			Files.write(outPath, lines, StandardCharsets.UTF_8, StandardOpenOption.CREATE);
+	public boolean write_production_file(Path outPath, ContextMemory parsedIns) {
+		try (SmemOutputSink sink = new SmemOutputSink(outPath, ProductionWriter.HEADER, ProductionWriter.FOOTER)) {
+			if (!ProductionWriter.write(parsedIns, sink.getWriter())) {
+				return false;
+			}
+			sink.commit();
 		} catch (IOException e) {
 			e.printStackTrace();
 			return false;
 		}
 		
+		System.out.println("Wrote precompiled productions to " + outPath + ".");
 		return true;
 	}
 	
+	/**
+	 * Warn the first time a problem-space name is read again by the current compile_files() or convert_files_streaming() call. Smem labels are derived from the problem-space name (see SmemId),
+	 * so problem-spaces with the same name are written as one object, and are loaded as one problem-space with all of their rules.
+	 * @param name The name of a problem-space just read
+	 */
+	void check_context_name(String name) {
+		if (contextNameCounts.merge(name, 1, Integer::sum) == 2) {
+			System.err.println("WARNING: Problem-space '" + name + "' is defined more than once. Its definitions will be loaded as one problem-space.");
+		}
+	}
 	
 	/**
-	 * If the given file exists, close off the smem --add text command.
-	 * @return Success status
+	 * Compare the given output with an earlier one and write the script of the changes, as described in InstructionDelta.
+	 * @param deltaPath The file to create or replace
+	 * @param base The earlier output, read before the new output replaced it
+	 * @param outPath The new output
+	 * @return True on success
 	 */
-	public boolean finish_output_file(Path outPath) {
-		List<String> lines = Arrays.asList("}", "");
+	public boolean write_delta_file(Path deltaPath, InstructionDelta.Snapshot base, Path outPath) {
+		InstructionDelta.Snapshot current = InstructionDelta.Snapshot.read(outPath);
+		if (current == null) { return false; }
 		
-		try {
-			Files.write(outPath, lines, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+		InstructionDelta delta = new InstructionDelta(base, current);
+		try (SmemOutputSink sink = new SmemOutputSink(deltaPath, "", "")) {
+			delta.write(sink.getWriter(), deltaBasePath.getFileName().toString(), outPath.getFileName().toString());
+			sink.commit();
 		} catch (IOException e) {
+			System.err.println("ERROR in write_delta_file: Could not write '" + deltaPath + "'");
 			e.printStackTrace();
 			return false;
 		}
-
+		
+		if (delta.hasOtherChanges()) {
+			System.err.println("WARNING: Objects outside the problem-spaces changed since " + deltaBasePath + ". The delta doesn't update them.");
+		}
+		System.out.println("Wrote instruction delta to " + deltaPath + ": " + delta.getDescription() + ".");
+		return true;
+	}
+	
+	/**
+	 * Write the given agent settings to a Soar file.
+	 * @param outPath The file to create or replace
+	 * @param tuning The settings counted from the compiled instructions
+	 * @return True on success
+	 */
+	public boolean write_tuning_file(Path outPath, AgentTuning tuning) {
+		try (SmemOutputSink sink = new SmemOutputSink(outPath, "", "")) {
+			tuning.writeSoar(sink.getWriter());
+			sink.commit();
+		} catch (IOException e) {
+			System.err.println("ERROR in write_tuning_file: Could not write '" + outPath + "'");
+			e.printStackTrace();
+			return false;
+		}
+		
+		System.out.println("Wrote agent tuning to " + outPath + ".");
 		return true;
 	}
 	
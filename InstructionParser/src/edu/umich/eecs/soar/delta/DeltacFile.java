@@ -0,0 +1,501 @@
+package edu.umich.eecs.soar.delta;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The precompiled binary form of a ContextMemory (a ".deltac" file), so that instructions can be reloaded without lexing or compiling their text.
+ * A file holds a header, a table of every distinct string, then each context and finally the shared Prim table. All counts and references are varints.
+ * Strings are referenced by their index in the table, wm tree nodes by their preorder number in their context's tree, and Prims by their index in the Prim table.
+ * Loading rebuilds the contexts, rules, refs, wm trees and Prims, and ContextMemory.writeSmem() then gives the same smem text as the original compile.
+ */
+public class DeltacFile {
+
+	/**
+	 * Bump this whenever the layout below changes. Files with another version are refused rather than misread.
+	 */
+	public static final int FORMAT_VERSION = 2;
+
+	public static final String EXTENSION = ".deltac";
+
+	private static final byte[] MAGIC = { 'D', 'L', 'T', 'C' };
+
+	// How each wm tree node is stored
+	private static final int NODE_EMPTY = 0,
+							 NODE_ATOM = 1,		// Followed by the string
+							 NODE_LIST = 2;		// Followed by the item count and the items
+
+	// How each context is stored
+	private static final int CONTEXT_COMPILED = 0,	// Followed by its wm tree, rules and refs
+							 CONTEXT_CACHED = 1;	// Followed by its cache key and its smem text, as loaded from a CompileCache
+
+	// How each Prim arg address is stored, before the context and node numbers of wm addresses
+	private static final int ADDRESS_NONE = 0,
+							 ADDRESS_CONST = 1,
+							 ADDRESS_WM = 2;
+
+	private DeltacFile() {}
+
+	/**
+	 * @return True if the given file is named as a .deltac file
+	 */
+	public static boolean isDeltacPath(Path path) {
+		return path.getFileName().toString().endsWith(EXTENSION);
+	}
+
+	/**
+	 * Write the given compiled instructions to a .deltac file.
+	 * The file is written to a temporary file first and then moved into place, so an existing file is only replaced by a complete one.
+	 * @param compiledIns Instructions whose problem-spaces have all been compiled, and whose Prims have been collected
+	 * @param outPath The file to write
+	 * @return Success status
+	 */
+	public static boolean write(ContextMemory compiledIns, Path outPath) {
+		Encoder body = new Encoder();
+		if (!body.writeContexts(compiledIns)) {
+			return false;
+		}
+
+		try {
+			Path tmp = SmemOutputSink.createTempFileFor(outPath);
+			try {
+				try (OutputStream out = Files.newOutputStream(tmp)) {
+					out.write(MAGIC);
+					Encoder header = new Encoder();
+					header.writeVarint(FORMAT_VERSION);
+					header.writeStringTable(body.strings);
+					header.bytes.writeTo(out);
+					body.bytes.writeTo(out);
+				}
+				try {
+					Files.move(tmp, outPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				} catch (AtomicMoveNotSupportedException e) {
+					Files.move(tmp, outPath, StandardCopyOption.REPLACE_EXISTING);
+				}
+			} finally {
+				Files.deleteIfExists(tmp);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Load the compiled instructions from a .deltac file.
+	 * @param inPath The file to read
+	 * @return The compiled instructions, or null if the file isn't a .deltac file of this version or is damaged
+	 * @throws IOException If the file can't be read
+	 */
+	public static ContextMemory read(Path inPath) throws IOException {
+		byte[] bytes = Files.readAllBytes(inPath);
+		for (int i=0; i<MAGIC.length; ++i) {
+			if (i >= bytes.length || bytes[i] != MAGIC[i]) {
+				System.err.println("ERROR in DeltacFile.read: '" + inPath + "' is not a .deltac file.");
+				return null;
+			}
+		}
+
+		Decoder in = new Decoder(bytes, MAGIC.length);
+		try {
+			int version = in.readVarint();
+			if (version != FORMAT_VERSION) {
+				System.err.println("ERROR in DeltacFile.read: '" + inPath + "' has format version " + version + ", but version " + FORMAT_VERSION + " is needed. Recompile it from its .delta source.");
+				return null;
+			}
+			in.readStringTable();
+			return in.readContexts();
+		} catch (RuntimeException e) {
+			// Damaged input shows up as a bad index, count or name somewhere in the decoding
+			System.err.println("ERROR in DeltacFile.read: '" + inPath + "' is damaged: " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Encodes a ContextMemory into a byte buffer, collecting its strings into a table as they are written.
+	 */
+	private static class Encoder {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 16);
+		private final Map<String, Integer> strings = new HashMap<String, Integer>();
+		private final Map<LispishObject, Integer> nodeContexts = new IdentityHashMap<LispishObject, Integer>(),	// The context of every wm tree node written
+												  nodeNumbers = new IdentityHashMap<LispishObject, Integer>();	// The preorder number of every wm tree node in its context
+		private int contextIndex = 0,
+					nodeCount = 0;		// The number of nodes written for the current context
+
+		void writeVarint(int value) {
+			while ((value & ~0x7F) != 0) {
+				bytes.write((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			bytes.write(value);
+		}
+
+		/**
+		 * Write a reference to the given string, which may be null.
+		 */
+		void writeString(String str) {
+			if (str == null) {
+				writeVarint(0);
+				return;
+			}
+			Integer index = strings.get(str);
+			if (index == null) {
+				index = strings.size();
+				strings.put(str, index);
+			}
+			writeVarint(index + 1);
+		}
+
+		void writeStringTable(Map<String, Integer> table) {
+			String[] ordered = new String[table.size()];
+			for (Map.Entry<String, Integer> entry : table.entrySet()) {
+				ordered[entry.getValue()] = entry.getKey();
+			}
+			writeVarint(ordered.length);
+			for (String str : ordered) {
+				byte[] utf8 = str.getBytes(StandardCharsets.UTF_8);
+				writeVarint(utf8.length);
+				bytes.write(utf8, 0, utf8.length);
+			}
+		}
+
+		boolean writeContexts(ContextMemory compiledIns) {
+			List<ElaborationContext> elabs = compiledIns.getElabContexts();
+			writeVarint(elabs.size());
+			for (int c=0; c<elabs.size(); ++c) {
+				if (!writeContext(elabs.get(c), c)) {
+					return false;
+				}
+			}
+
+			// The Prims follow the contexts, since they point into the contexts' wm trees
+			Map<Prim, Integer> primIndices = new IdentityHashMap<Prim, Integer>();
+			for (Prim prim : compiledIns.getPrims()) {
+				primIndices.put(prim, primIndices.size());
+			}
+			writeVarint(compiledIns.getPrims().size());
+			for (Prim prim : compiledIns.getPrims()) {
+				writeString(prim.getType().name());
+				writeString(prim.getAttr1());
+				if (!writeAddress(prim.getAddress1())) {
+					return false;
+				}
+				writeString(prim.getAttr2());
+				if (!writeAddress(prim.getAddress2())) {
+					return false;
+				}
+			}
+
+			// Then each rule's links to them, in context and rule order, after whether the rule ranks them
+			for (ElaborationContext elab : elabs) {
+				for (Rule rule : elab.getRules()) {
+					writeVarint(rule.isPropsRanked() ? 1 : 0);
+					writeVarint(rule.getCondPrims().size());
+					for (Prim prim : rule.getCondPrims()) {
+						Integer index = primIndices.get(prim);
+						if (index == null) {
+							System.err.println("ERROR in DeltacFile.write: Prims of rule " + rule.getName() + " were not collected.");
+							return false;
+						}
+						writeVarint(index);
+					}
+				}
+			}
+			return true;
+		}
+
+		private boolean writeContext(ElaborationContext elab, int contextIndex) {
+			writeString(elab.getName());
+			if (elab.isCached()) {
+				writeVarint(CONTEXT_CACHED);
+				writeString(elab.getCacheKey());
+				writeString(elab.toSmemString());
+				writeString(elab.getPrimSmemString());
+				return true;
+			}
+			if (!elab.isCompiled()) {
+				System.err.println("ERROR in DeltacFile.write: Problem-space '" + elab.getName() + "' has not been compiled.");
+				return false;
+			}
+
+			writeVarint(CONTEXT_COMPILED);
+			this.contextIndex = contextIndex;
+			nodeCount = 0;
+			writeNode(elab.getWM());
+
+			writeVarint(elab.getRules().size());
+			for (Rule rule : elab.getRules()) {
+				writeString(rule.getName());
+				writeString(rule.getAction());
+				writeString(rule.getDescription());
+				writeVarint(rule.getConsts().size());
+				for (String c : rule.getConsts()) {
+					writeString(c);
+				}
+				writeVarint(rule.getConditions().size());
+				for (Condition c : rule.getConditions()) {
+					writeString(c.command == null ? null : c.command.name());
+					writeString(c.idvar1);
+					writeString(c.attribute1);
+					writeString(c.idvar2);
+					writeString(c.attribute2);
+				}
+			}
+
+			// The refs are kept so that a loaded context can still be inspected or recompiled
+			writeVarint(elab.getRefs().size());
+			for (WMERef ref : elab.getRefs()) {
+				writeVarint(ref.getAddresses().size());
+				for (WMEAddress addr : ref.getAddresses()) {
+					writeString(addr.getIDName());
+					writeString(addr.getPathString());
+					writeString(addr.getVarName());
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Write the given wm tree node and its descendants in preorder, numbering each node as it is written.
+		 */
+		private void writeNode(LispishObject node) {
+			nodeContexts.put(node, contextIndex);
+			nodeNumbers.put(node, nodeCount++);
+			if (node.isList()) {
+				writeVarint(NODE_LIST);
+				writeVarint(node.size());
+				for (LispishObject item : node.getDataList()) {
+					writeNode(item);
+				}
+			}
+			else if (node.isEmpty()) {
+				writeVarint(NODE_EMPTY);
+			}
+			else {
+				writeVarint(NODE_ATOM);
+				writeString(node.getData());
+			}
+		}
+
+		private boolean writeAddress(LispishObject address) {
+			if (address == null) {
+				writeVarint(ADDRESS_NONE);
+			}
+			else if (address == Prim.CONST_ADDRESS) {
+				writeVarint(ADDRESS_CONST);
+			}
+			else {
+				Integer context = nodeContexts.get(address);
+				if (context == null) {
+					System.err.println("ERROR in DeltacFile.write: A Prim refers to a node outside of every wm tree.");
+					return false;
+				}
+				writeVarint(ADDRESS_WM);
+				writeVarint(context);
+				writeVarint(nodeNumbers.get(address));
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Decodes a ContextMemory from the bytes of a .deltac file.
+	 */
+	private static class Decoder {
+		private final byte[] bytes;
+		private int pos;
+		private String[] strings;
+		private final SymbolTable symbols = new SymbolTable();	// For the refs read, whose path ids are only compared within one file
+		private final List<List<LispishObject>> contextNodes = new ArrayList<List<LispishObject>>();	// The wm tree nodes of each context, in preorder
+
+		Decoder(byte[] bytes, int pos) {
+			this.bytes = bytes;
+			this.pos = pos;
+		}
+
+		int readVarint() {
+			int value = 0;
+			for (int shift = 0; shift < 35; shift += 7) {
+				byte b = bytes[pos++];
+				value |= (b & 0x7F) << shift;
+				if (b >= 0) {
+					return value;
+				}
+			}
+			throw new IllegalArgumentException("varint too long at byte " + pos);
+		}
+
+		String readString() {
+			int index = readVarint();
+			return (index == 0 ? null : strings[index - 1]);
+		}
+
+		void readStringTable() {
+			strings = new String[readVarint()];
+			for (int i=0; i<strings.length; ++i) {
+				int length = readVarint();
+				if (length < 0 || pos + length > bytes.length) {
+					throw new IllegalArgumentException("string " + i + " runs past the end of the file");
+				}
+				strings[i] = new String(bytes, pos, length, StandardCharsets.UTF_8);
+				pos += length;
+			}
+		}
+
+		ContextMemory readContexts() {
+			ContextMemory retval = new ContextMemory();
+			int numContexts = readVarint();
+			for (int c=0; c<numContexts; ++c) {
+				retval.addElabContext(readContext(retval));
+			}
+
+			Prim[] prims = new Prim[readVarint()];
+			for (int i=0; i<prims.length; ++i) {
+				Prim.PrimType type = Prim.PrimType.valueOf(readString());
+				String attr1 = readString();
+				LispishObject address1 = readAddress();
+				String attr2 = readString();
+				LispishObject address2 = readAddress();
+				prims[i] = retval.internPrim(new Prim(type, address1, attr1, address2, attr2));
+			}
+
+			for (ElaborationContext elab : retval.getElabContexts()) {
+				for (Rule rule : elab.getRules()) {
+					rule.setPropsRanked(readVarint() != 0);
+					int numPrims = readVarint();
+					for (int p=0; p<numPrims; ++p) {
+						rule.addCondPrim(prims[readVarint()]);
+					}
+				}
+			}
+			return retval;
+		}
+
+		private ElaborationContext readContext(ContextMemory container) {
+			String name = readString();
+			int kind = readVarint();
+			if (kind == CONTEXT_CACHED) {
+				String cacheKey = readString();
+				String smem = readString();
+				String primSmem = readString();
+				contextNodes.add(new ArrayList<LispishObject>(0));
+				return ElaborationContext.fromCache(container, name, cacheKey, smem, primSmem);
+			}
+			else if (kind != CONTEXT_COMPILED) {
+				throw new IllegalArgumentException("unknown kind of problem-space " + kind + " for '" + name + "'");
+			}
+
+			ElaborationContext elab = new ElaborationContext(container, name);
+			List<LispishObject> nodes = new ArrayList<LispishObject>();
+			contextNodes.add(nodes);
+			elab.setWM(readRootNode(nodes));
+
+			int numRules = readVarint();
+			for (int r=0; r<numRules; ++r) {
+				Rule rule = new Rule(readString());
+				rule.setAction(readString());
+				rule.setDescription(readString());
+				int numConsts = readVarint();
+				for (int i=0; i<numConsts; ++i) {
+					rule.addConst(readString());
+				}
+				if (numConsts > 0) {
+					rule.setConstTuple(container.internConsts(rule.getConsts()));
+				}
+				int numConditions = readVarint();
+				for (int i=0; i<numConditions; ++i) {
+					String command = readString();
+					rule.addCondition(new Condition(rule, (command == null ? null : Prim.PrimType.valueOf(command)),
+							readString(), readString(), readString(), readString()));
+				}
+				elab.addRule(rule);
+			}
+
+			int numRefs = readVarint();
+			for (int r=0; r<numRefs; ++r) {
+				WMERef ref = new WMERef(symbols);
+				int numAddresses = readVarint();
+				for (int i=0; i<numAddresses; ++i) {
+					ref.addWMEAddress(readString(), readString(), readString());
+				}
+				elab.addRef(ref);
+			}
+			return elab;
+		}
+
+		/**
+		 * Read a wm tree, adding its nodes to the given list in preorder.
+		 */
+		private LispishObject readRootNode(List<LispishObject> nodes) {
+			int kind = readVarint();
+			LispishObject root;
+			if (kind == NODE_ATOM) {
+				root = new LispishObject(readString());
+				nodes.add(root);
+				return root;
+			}
+			root = new LispishObject();
+			nodes.add(root);
+			if (kind == NODE_LIST) {
+				readItems(root, nodes);
+			}
+			else if (kind != NODE_EMPTY) {
+				throw new IllegalArgumentException("unknown kind of wm node " + kind);
+			}
+			return root;
+		}
+
+		/**
+		 * Read the items of a list node into the given object, and their descendants.
+		 */
+		private void readItems(LispishObject list, List<LispishObject> nodes) {
+			int numItems = readVarint();
+			for (int i=0; i<numItems; ++i) {
+				int kind = readVarint();
+				if (kind == NODE_ATOM) {
+					list.addString(readString());
+					nodes.add(list.get(list.size() - 1));
+				}
+				else if (kind == NODE_LIST || kind == NODE_EMPTY) {
+					LispishObject item = list.addObject();
+					nodes.add(item);
+					if (kind == NODE_LIST) {
+						readItems(item, nodes);
+					}
+				}
+				else {
+					throw new IllegalArgumentException("unknown kind of wm node " + kind);
+				}
+			}
+		}
+
+		private LispishObject readAddress() {
+			int kind = readVarint();
+			switch (kind) {
+			case ADDRESS_NONE:
+				return null;
+			case ADDRESS_CONST:
+				return Prim.CONST_ADDRESS;
+			case ADDRESS_WM:
+				int context = readVarint();
+				return contextNodes.get(context).get(readVarint());
+			default:
+				throw new IllegalArgumentException("unknown kind of prim address " + kind);
+			}
+		}
+	}
+}
@@ -0,0 +1,291 @@
+package edu.umich.eecs.soar.delta;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * A discrimination tree over the constant tests of a problem-space's deltas, such as "(== <ob> feature const A)".
+ * It is written as its own smem object, queried by ^index-context-name, so that an agent can find the deltas whose constant tests can match
+ * the current WM without retrieving every delta of the problem-space.
+ *
+ * Each test node names a wm-space node (the same object as the Prims' ^address1) and an attribute:
+ * <pre>
+ * (&lt;dindex-...&gt; ^index-context-name |name| ^root &lt;dnode-...&gt;)
+ * (&lt;dnode-...&gt; ^address &lt;wm-...&gt; ^attribute feature ^branch &lt;dbranch-...&gt; ^other &lt;dnode-...&gt;)
+ * (&lt;dbranch-...&gt; ^value A ^node &lt;dnode-...&gt;)
+ * (&lt;dnode-...&gt; ^delta &lt;drule-...&gt; ...)
+ * </pre>
+ * A delta under a ^branch can only fire if some WME at the node's address has that attribute and value.
+ * Deltas under ^other don't test the attribute, so that subtree is always followed. Leaf nodes list their candidate ^deltas.
+ * Walking every matching branch and every ^other from the root therefore collects a superset of the deltas whose conditions can all be true.
+ * Deltas with no constant equality tests all end up on the ^other side, so they are always candidates.
+ *
+ * The index is only emitted. No rules in PROPsEngine walk ^index-context-name yet, so agents still retrieve every delta of a problem-space.
+ */
+public class DiscriminationIndex implements SmemWritable {
+
+	/**
+	 * The most deltas to list in a leaf without trying to split them further.
+	 */
+	public static final int MAX_LEAF_DELTAS = 2;
+
+	/**
+	 * What a constant test checks: an attribute of a wm-space node. The node is compared by identity, like in Prim.equals().
+	 */
+	private static final class TestKey {
+		final LispishObject address;
+		final String attribute;
+
+		TestKey(LispishObject address, String attribute) {
+			this.address = address;
+			this.attribute = attribute;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof TestKey)) {
+				return false;
+			}
+			TestKey other = (TestKey) obj;
+			return address == other.address && attribute.equals(other.attribute);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(System.identityHashCode(address), attribute);
+		}
+	}
+
+	/**
+	 * A constant test of one delta.
+	 */
+	private static final class Test {
+		final TestKey key;
+		final String value;
+
+		Test(TestKey key, String value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * A value of a test node's attribute, and the subtree of deltas that need it.
+	 */
+	private static final class Branch {
+		final int number;								// The order this branch was made in, for its smem var name
+		final Node node;
+
+		Branch(int number, Node node) {
+			this.number = number;
+			this.node = node;
+		}
+	}
+
+	/**
+	 * A tree node: either a test node with branches, or a leaf with deltas.
+	 */
+	private static final class Node {
+		final int number;								// The order this node was made in, for its smem var name
+		TestKey test = null;							// Null for a leaf
+		final Map<String, Branch> branches = new LinkedHashMap<String, Branch>();
+		Node other = null;
+		List<Rule> deltas = null;						// Only for a leaf
+
+		Node(int number) {
+			this.number = number;
+		}
+	}
+
+	private final String contextName;
+	private final Node root;
+	private int nodeCount = 0,
+				branchCount = 0,
+				depth = 0;
+
+	/**
+	 * Build the index for the given problem-space.
+	 * @param elab A compiled problem-space, not one loaded from the compile cache
+	 */
+	public DiscriminationIndex(ElaborationContext elab) {
+		this.contextName = elab.getName();
+
+		List<Rule> deltas = new ArrayList<Rule>(elab.getRules());
+		List<List<Test>> tests = new ArrayList<List<Test>>(deltas.size());
+		for (Rule rule : deltas) {
+			tests.add(getTests(rule));
+		}
+		root = build(deltas, tests, 1);
+	}
+
+	public int getNodeCount() { return nodeCount; }
+	public int getDepth() { return depth; }
+
+	/**
+	 * @return The equality tests between a WM arg and a const arg among the given rule's condition Prims
+	 */
+	private static List<Test> getTests(Rule rule) {
+		List<Test> retval = new ArrayList<Test>();
+		for (Prim prim : rule.getCondPrims()) {
+			if (prim.getType() != Prim.PrimType.EQUALITY || prim.getAddress2() == null) {
+				continue;
+			}
+			if (prim.getAddress2() == Prim.CONST_ADDRESS && prim.getAddress1() != Prim.CONST_ADDRESS) {
+				retval.add(new Test(new TestKey(prim.getAddress1(), prim.getAttr1()), rule.getConst(Integer.parseInt(prim.getAttr2()))));
+			}
+			else if (prim.getAddress1() == Prim.CONST_ADDRESS && prim.getAddress2() != Prim.CONST_ADDRESS) {
+				retval.add(new Test(new TestKey(prim.getAddress2(), prim.getAttr2()), rule.getConst(Integer.parseInt(prim.getAttr1()))));
+			}
+		}
+		return retval;
+	}
+
+	/**
+	 * Build the subtree for the given deltas, given the tests of each that aren't covered by the nodes above.
+	 * Splits on the test key that the most deltas check, and makes a leaf once no key is checked by two or more of them.
+	 */
+	private Node build(List<Rule> deltas, List<List<Test>> tests, int level) {
+		Node node = new Node(++nodeCount);
+		depth = Math.max(depth, level);
+
+		// Count how many deltas check each key
+		Map<TestKey, Integer> keyCounts = new LinkedHashMap<TestKey, Integer>();
+		for (List<Test> deltaTests : tests) {
+			Set<TestKey> seen = new HashSet<TestKey>();
+			for (Test t : deltaTests) {
+				if (seen.add(t.key)) {
+					Integer count = keyCounts.get(t.key);
+					keyCounts.put(t.key, (count == null ? 1 : count + 1));
+				}
+			}
+		}
+		TestKey best = null;
+		int bestCount = 1;
+		for (Map.Entry<TestKey, Integer> entry : keyCounts.entrySet()) {
+			if (entry.getValue() > bestCount) {
+				best = entry.getKey();
+				bestCount = entry.getValue();
+			}
+		}
+
+		if (deltas.size() <= MAX_LEAF_DELTAS || best == null) {
+			node.deltas = deltas;
+			return node;
+		}
+
+		// Count the values tested for the key, so a delta testing it for several values goes to the branch shared by the most deltas
+		Map<String, Integer> valueCounts = new LinkedHashMap<String, Integer>();
+		for (List<Test> deltaTests : tests) {
+			for (Test t : deltaTests) {
+				if (t.key.equals(best)) {
+					Integer count = valueCounts.get(t.value);
+					valueCounts.put(t.value, (count == null ? 1 : count + 1));
+				}
+			}
+		}
+
+		Map<String, List<Rule>> branchDeltas = new LinkedHashMap<String, List<Rule>>();
+		Map<String, List<List<Test>>> branchTests = new LinkedHashMap<String, List<List<Test>>>();
+		List<Rule> otherDeltas = new ArrayList<Rule>();
+		List<List<Test>> otherTests = new ArrayList<List<Test>>();
+		for (int d=0; d<deltas.size(); ++d) {
+			List<Test> deltaTests = tests.get(d);
+			Test chosen = null;
+			for (Test t : deltaTests) {
+				if (t.key.equals(best) && (chosen == null || valueCounts.get(t.value) > valueCounts.get(chosen.value))) {
+					chosen = t;
+				}
+			}
+			if (chosen == null) {
+				otherDeltas.add(deltas.get(d));
+				otherTests.add(deltaTests);
+				continue;
+			}
+
+			List<Test> remaining = new ArrayList<Test>(deltaTests);
+			remaining.remove(chosen);
+			if (!branchDeltas.containsKey(chosen.value)) {
+				branchDeltas.put(chosen.value, new ArrayList<Rule>());
+				branchTests.put(chosen.value, new ArrayList<List<Test>>());
+			}
+			branchDeltas.get(chosen.value).add(deltas.get(d));
+			branchTests.get(chosen.value).add(remaining);
+		}
+
+		node.test = best;
+		for (String value : branchDeltas.keySet()) {
+			node.branches.put(value, new Branch(++branchCount, build(branchDeltas.get(value), branchTests.get(value), level + 1)));
+		}
+		if (!otherDeltas.isEmpty()) {
+			node.other = build(otherDeltas, otherTests, level + 1);
+		}
+		return node;
+	}
+
+	/**
+	 * @return The "<...>" label for this index's root object in the smem --add file.
+	 */
+	public String getSmemVarName() {
+		return "<dindex-" + getSmemId() + ">";
+	}
+
+	private String getNodeSmemVarName(Node node) {
+		return "<dnode-" + getSmemId() + "-" + node.number + ">";
+	}
+
+	private String getBranchSmemVarName(Branch branch) {
+		return "<dbranch-" + getSmemId() + "-" + branch.number + ">";
+	}
+
+	/**
+	 * @return The hash that this index's labels start with. A context has at most one index, and it numbers its nodes and branches in the same order on every run.
+	 */
+	private String getSmemId() {
+		return new SmemId("dindex").add(contextName).toString();
+	}
+
+	@Override
+	public void writeSmem(Appendable out) throws IOException {
+		out.append("(").append(getSmemVarName()).append(" ^index-context-name |").append(contextName).append("|");
+		out.append("\r\n\t^root ").append(getNodeSmemVarName(root)).append(")\r\n");
+		writeNode(root, out);
+	}
+
+	private void writeNode(Node node, Appendable out) throws IOException {
+		out.append("(").append(getNodeSmemVarName(node));
+		if (node.test == null) {
+			for (Rule delta : node.deltas) {
+				out.append("\r\n\t^delta ").append(delta.getSmemVarName()).append(" ");
+			}
+			out.append(")\r\n");
+			return;
+		}
+
+		out.append(" ^address ").append(node.test.address.getSmemVarName());
+		out.append("\r\n\t^attribute ").append(node.test.attribute);
+		for (Branch branch : node.branches.values()) {
+			out.append("\r\n\t^branch ").append(getBranchSmemVarName(branch));
+		}
+		if (node.other != null) {
+			out.append("\r\n\t^other ").append(getNodeSmemVarName(node.other));
+		}
+		out.append(")\r\n");
+
+		for (Map.Entry<String, Branch> entry : node.branches.entrySet()) {
+			out.append("(").append(getBranchSmemVarName(entry.getValue())).append(" ^value ").append(entry.getKey());
+			out.append("\r\n\t^node ").append(getNodeSmemVarName(entry.getValue().node)).append(")\r\n");
+		}
+		for (Branch branch : node.branches.values()) {
+			writeNode(branch.node, out);
+		}
+		if (node.other != null) {
+			writeNode(node.other, out);
+		}
+	}
+}
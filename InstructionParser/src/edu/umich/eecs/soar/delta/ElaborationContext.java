@@ -1,18 +1,44 @@
 package edu.umich.eecs.soar.delta;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
-public class ElaborationContext {
+public class ElaborationContext implements SmemWritable {
+	
+	/**
+	 * How compileRefs() attaches each rule's multi-attribute branches to the branches already in the main wm tree.
+	 */
+	public enum MergeMode {
+		/** Attach the n-th local branch with an attribute to the n-th main branch with that attribute. Fast, but can grow the tree more than needed. */
+		BLIND,
+		/**
+		 * Attach each group of local branches with the same attribute to the main branches they overlap most, by maximum-weight bipartite matching
+		 * (BranchMatcher). This is greedy: each group is matched in turn, one rule at a time, so the tree is usually smaller than with BLIND,
+		 * but isn't guaranteed to be the smallest possible.
+		 */
+		OPTIMAL
+	}
 
 	private ContextMemory contextMem;
 	private String name;
 	private List<Rule> rules;
 	private LispishObject wm;
 	private List<WMERef> ruleRefs;
+	private String cacheKey;		// The CompileCache key for the source text of this context, if caching
+	private String cachedSmem,		// The previously compiled smem text for this context, if loaded from the CompileCache
+				   cachedPrimSmem;
+	private DiscriminationIndex index;	// The index of this context's deltas by their constant tests, if built
 	
 	public ElaborationContext(ContextMemory container, String name) {
 		this.contextMem = container;
@@ -20,143 +46,408 @@ public class ElaborationContext {
 		this.rules = new ArrayList<Rule>();
 		this.wm = null;								// The tree of potential WM paths to keep referenced for this context
 		this.ruleRefs = new ArrayList<WMERef>();	// The list of Refs for each rule instructed in this context
+		this.cacheKey = null;
+		this.cachedSmem = null;
+		this.cachedPrimSmem = null;
+		this.index = null;
 		
 		// Make default WMERefs
 		/*stateRef = new WMERef(new WMEAddress("state"),"state");
 		constRef = new WMERef(new WMEAddress("const"),"const");*/
 	}
 	
+	/**
+	 * Make a context that was already compiled in an earlier run, from its emitted smem text.
+	 * It has no rules or wm tree of its own, and needs no compiling.
+	 * @param container The ContextMemory this context belongs to
+	 * @param name The name of the problem-space
+	 * @param cacheKey The CompileCache key the text was stored under
+	 * @param smem The text previously written by writeSmem()
+	 * @param primSmem The text previously written by writePrimSmem()
+	 * @return The precompiled context
+	 */
+	public static ElaborationContext fromCache(ContextMemory container, String name, String cacheKey, String smem, String primSmem) {
+		ElaborationContext retval = new ElaborationContext(container, name);
+		retval.cacheKey = cacheKey;
+		retval.cachedSmem = smem;
+		retval.cachedPrimSmem = primSmem;
+		return retval;
+	}
+	
 	public String getName() { return name; }
+	public ContextMemory getContainer() { return contextMem; }
 	public Rule getRule(int index) { return rules.get(index); }
 	public List<Rule> getRules() { return rules; }
 	
-	public void addRule(Rule rule) { rules.add(rule); }
+	public void addRule(Rule rule) {
+		rule.setContextName(name);
+		rules.add(rule);
+	}
+	
+	/**
+	 * Remove the given rules, and the ref of each if every rule has one.
+	 * @param toRemove The rules to remove
+	 */
+	public void removeRules(Set<Rule> toRemove) {
+		boolean withRefs = (ruleRefs.size() == rules.size());
+		for (int i=rules.size()-1; i>=0; --i) {
+			if (toRemove.contains(rules.get(i))) {
+				rules.remove(i);
+				if (withRefs) {
+					ruleRefs.remove(i);
+				}
+			}
+		}
+	}
 	
 	public void addRef(WMERef ref) { ruleRefs.add(ref); }
+	public List<WMERef> getRefs() { return ruleRefs; }
+	
+	void setContainer(ContextMemory container) { this.contextMem = container; }
+	
+	public String getCacheKey() { return cacheKey; }
+	public void setCacheKey(String key) { this.cacheKey = key; }
+	public boolean isCached() { return (cachedSmem != null); }
+	
+	/**
+	 * @return True if this context needs no compiling: it was loaded precompiled, or its refs have already been compiled
+	 */
+	public boolean isCompiled() { return (isCached() || wm != null); }
+	
+	/**
+	 * @return The compiled wm tree, or null if it hasn't been compiled
+	 */
+	public LispishObject getWM() { return wm; }
+	
+	/**
+	 * Set the compiled wm tree, for a context whose rules are already linked to Prims in the tree, as when loaded from a DeltacFile.
+	 */
+	void setWM(LispishObject wm) {
+		this.wm = wm;
+		wm.setSmemScope(name);
+	}
+	
+	/**
+	 * Build the DiscriminationIndex of this context's deltas, to be written after its wm tree.
+	 * The context must be compiled, and not loaded from the compile cache, whose text already has its index if it was built with one.
+	 * @return The new index
+	 */
+	public DiscriminationIndex buildIndex() {
+		index = new DiscriminationIndex(this);
+		return index;
+	}
+	
+	/**
+	 * @return The DiscriminationIndex of this context, or null if it hasn't been built
+	 */
+	public DiscriminationIndex getIndex() { return index; }
+	
+	/**
+	 * Remove the ref addresses that no condition of their rule uses, so that they don't add nodes to the compiled wm tree.
+	 * Addresses only used as the source of unused addresses are removed too. The context must not be compiled yet.
+	 * @return The number of addresses removed
+	 */
+	public int eliminateDeadRefs() {
+		int removed = 0;
+		for (int i=0; i<ruleRefs.size() && i<rules.size(); ++i) {
+			List<WMEAddress> unused = ruleRefs.get(i).getUnusedAddresses(rules.get(i));
+			ruleRefs.get(i).removeAddresses(unused);
+			removed += unused.size();
+		}
+		return removed;
+	}
+	
+	/**
+	 * Compile the WMERefs from all instructed rules for this context into a single LispishObject WME graph, using blind merging.
+	 * @return The compiled graph object.
+	 */
+	public LispishObject compileRefs() {
+		return compileRefs(MergeMode.BLIND);
+	}
 	
 	/**
 	 * Compile the WMERefs from all instructed rules for this context into a single LispishObject WME graph.
 	 * This effectively performs a graph merge for each graph of reference WMEs for each rule.
+	 * @param mode How to attach multi-attribute branches to the existing tree
 	 * @return The compiled graph object.
 	 */
-	public LispishObject compileRefs() {
-		wm = new LispishObject("S1");
+	public LispishObject compileRefs(MergeMode mode) {
+		// Merge each instruction set into the main tree, mapping its var labels to objects in the tree
+		List<Map<String, LispishObject>> varToObj = compileWM(mode);
 		
-		// Track multi-attribute references with their magnitudes for each set of instructions
-		//Map<String, Integer> frontAttrToCount = new HashMap<String, Integer>(); // A map of attributes that are leaf connectors on the tree, with the count > 1 if multi-attributes
+		// Link each rule's conditions to the corresponding reference in the main wm tree
+		compileCondPrims(varToObj);
 
-		// Make a map for each instruction set, mapping var labels to objects in the tree
+		return wm;
+	}
+	
+	/**
+	 * Compile this context's WMERefs again, such as after removeRules(), so that the wm tree only has the nodes of the remaining rules.
+	 * The rules' earlier condition Prims are replaced.
+	 * @param mode How to attach multi-attribute branches to the existing tree
+	 * @return The compiled graph object.
+	 */
+	public LispishObject recompileRefs(MergeMode mode) {
+		for (Rule rule : rules) {
+			rule.clearCondPrims();
+		}
+		return compileRefs(mode);
+	}
+	
+	/**
+	 * The first stage of compileRefs(): merge the WMERefs into this context's wm tree, without compiling the rules' conditions.
+	 * Separate so that ParserBenchmark can time the stages on their own.
+	 * @param mode How to attach multi-attribute branches to the existing tree
+	 * @return The map of var labels to tree objects for each rule, for compileCondPrims()
+	 */
+	List<Map<String, LispishObject>> compileWM(MergeMode mode) {
 		List<Map<String, LispishObject>> varToObj = new ArrayList<Map<String, LispishObject>>(ruleRefs.size()); 
+		wm = mergeRefs(mode, varToObj);
+		wm.setSmemScope(name);
+		return varToObj;
+	}
+	
+	/**
+	 * @return The number of nodes in the compiled wm tree, or 0 if it hasn't been compiled
+	 */
+	public int getWMNodeCount() {
+		return (wm == null ? 0 : wm.countTreeNodes());
+	}
+	
+	/**
+	 * Count the nodes of the wm tree that the given merge mode would compile, without changing this context.
+	 * @param mode The merge mode to count for
+	 * @return The number of nodes in the tree
+	 */
+	public int countWMNodes(MergeMode mode) {
+		return mergeRefs(mode, null).countTreeNodes();
+	}
+	
+	/**
+	 * Merge the WMERefs of every rule into a new wm tree.
+	 * @param mode How to attach multi-attribute branches to the existing tree
+	 * @param ret_varToObj If not null, receives the map of var labels to tree objects for each rule, and unreachable refs are reported
+	 * @return The root of the tree
+	 */
+	private LispishObject mergeRefs(MergeMode mode, List<Map<String, LispishObject>> ret_varToObj) {
+		// Tree nodes are added with the symbol ids of their attributes and matched by them, which relies on every rule's ref sharing one symbol table,
+		// as the refs parsed from one file do. Unlike matching the names, this doesn't match a node's own name, as in "kind" for (kind (kind ...)).
+		LispishObject root = new LispishObject("S1");
 		for (int i=0; i<ruleRefs.size(); ++i) {
-			HashMap<String, LispishObject> newMap = new HashMap<String, LispishObject>();
-			newMap.put("S1", wm); // Start each rooted in the same S1
-			varToObj.add(newMap); 
+			String ruleName = (i < rules.size() ? rules.get(i).getName() : "#" + i);
+			Map<String, LispishObject> varToObj = mergeRef(root, ruleRefs.get(i), mode, (ret_varToObj == null ? null : ruleName));
+			if (ret_varToObj != null) {
+				ret_varToObj.add(varToObj);
+			}
 		}
+		return root;
+	}
+	
+	/**
+	 * Merge the addresses of one rule's WMERef into the main wm tree.
+	 * Var labels are resolved from a worklist seeded with S1, so each address is merged exactly once, when its source var is first resolved.
+	 * @param root The root of the main wm tree
+	 * @param ref The rule's references
+	 * @param mode How to attach multi-attribute branches to the existing tree
+	 * @param ruleName The name of the rule the references belong to, for error reporting, or null to not report errors
+	 * @return A map from the var labels of the ref to objects in the main tree
+	 */
+	private Map<String, LispishObject> mergeRef(LispishObject root, WMERef ref, MergeMode mode, String ruleName) {
+		Map<String, LispishObject> varToObj = new HashMap<String, LispishObject>();
+		varToObj.put("S1", root); // Start each rooted in the same S1
 		
-		// Go through each list of addresses from each set of instructions iteratively growing the main tree
-		boolean moreTodo = true;
-		List<ArrayList<Boolean>> processed = new ArrayList<ArrayList<Boolean>>();
-		for (WMERef r : ruleRefs) {
-			processed.add(new ArrayList<Boolean>(Collections.nCopies(r.getAddresses().size(), false)));
-		}
+		Deque<String> worklist = new ArrayDeque<String>();
+		worklist.add("S1");
+		int merged = 0;
 		
-		while (moreTodo) {
-			moreTodo = false;
+		while (!worklist.isEmpty()) {
+			String id = worklist.poll();
+			LispishObject curObj = varToObj.get(id);
 			
-			// For each set of instructions:
-			for (int i=0; i<ruleRefs.size(); ++i) {
-				WMERef ref = ruleRefs.get(i);
-
-				// Scan for addresses that begin with a known reference location
-				for (int j=0; j<ref.getAddresses().size(); ++j) {
-					// Skip elements that have already been processed here
-					if (processed.get(i).get(j))
-						continue;
-
-					WMEAddress thisAddr = ref.getAddresses().get(j);
-
-					// If the reference is known for this instruction
-					LispishObject curObj = varToObj.get(i).get(thisAddr.getIDName());
-					if (curObj != null) {
-						// Mark that there is more to do
-						moreTodo = true;
-						
-						// Get the number of child branches off the main tree ref that already have this attribute name
-						List<Integer> mainAttrChildren = curObj.getNamedSublistIndices(thisAddr.getPathAt(0));
-						// Get the indexes of the child branches off the local instruction ref that have this attribute name
-						List<Integer> lclAttrChildren = ref.getMultiAttributeIndices(thisAddr.getPathAt(0));
-						
-						// TODO: This graph combination could be made efficient by ensuring common multi-attr paths overlap.
-						// 		 As it is, this approach blindly attaches the local tree under the first available main branch.
-						//		 This might expand the smem size and thus Rete matching cost in PROPs, but shouldn't impair functionality.
-						
-						// For each (multi)attribute shared by both the main tree and this instruction
-						for (int b=0; b < mainAttrChildren.size() && b < lclAttrChildren.size(); ++b) {
-							// If necessary, append each attribute segment of this ref address path to the main tree at the parallel index of its multi-attribute branches
-							WMEAddress thisAddr2 = ref.getAddresses().get(lclAttrChildren.get(b));
-							
-							// For each segment of this WMEAddress path:
-							LispishObject curObjB = curObj;
-							for (String s : thisAddr2.getPath()) {
-								// Test if this path segment is already in the main tree
-								List<Integer> mainSubChildren = curObjB.getNamedSublistIndices(s);
-								if (mainSubChildren.size() == 0) {
-									// This path element is new, add it
-									curObjB = curObjB.addObject(s);
-								}
-								else {
-									// This path attribute already exists, link to the first available instance (arbitrary for now; TODO)
-									curObjB = curObjB.get(mainSubChildren.get(0));
+			// The addresses from this var with the same first attribute are the local multi-attribute branches
+			for (Map.Entry<Integer, List<WMEAddress>> entry : groupByFirstAttribute(ref.getAddressesFrom(id)).entrySet()) {
+				// Get the child branches off the main tree ref that already have this attribute name
+				List<Integer> mainAttrChildren = curObj.getSymbolSublistIndices(entry.getKey());
+				// Count the branches before any are added below. The list is a copy for short lists, but a view of the index that
+				// grows with the added branches for wide ones, so only its first mainAttrCount entries are used. Branches are only appended,
+				// so those entries stay valid.
+				int mainAttrCount = mainAttrChildren.size();
+				List<WMEAddress> lclAttrChildren = entry.getValue();
+				
+				// Choose the main branch for each local branch
+				int[] assignment;
+				if (mode == MergeMode.OPTIMAL && mainAttrCount > 0) {
+					// Pick the pairing that shares the most existing nodes, so the least is added to the tree
+					assignment = BranchMatcher.match(scoreBranches(ref, lclAttrChildren, curObj, mainAttrChildren, new HashSet<String>(Collections.singleton(id))));
+				}
+				else {
+					// Blindly attach each local branch under the main branch at the same index.
+					// This might expand the smem size and thus Rete matching cost in PROPs, but shouldn't impair functionality.
+					assignment = new int[lclAttrChildren.size()];
+					for (int b=0; b<assignment.length; ++b) {
+						assignment[b] = (b < mainAttrCount ? b : -1);
+					}
+				}
+				
+				for (int b=0; b<lclAttrChildren.size(); ++b) {
+					WMEAddress addr = lclAttrChildren.get(b);
+					
+					// Attach to the assigned main multi-attribute branch, adding a new branch if it has none
+					LispishObject curObjB;
+					if (assignment[b] != -1) {
+						curObjB = curObj.get(mainAttrChildren.get(assignment[b]));
+					}
+					else {
+						curObjB = curObj.addObject(addr.getPathAt(0), entry.getKey());
+					}
+					
+					// For each remaining segment of this WMEAddress path:
+					for (int s=1; s<addr.getPathLength(); ++s) {
+						// Test if this path segment is already in the main tree
+						int attr = addr.getPathSymbol(s);
+						List<Integer> mainSubChildren = curObjB.getSymbolSublistIndices(attr);
+						if (mainSubChildren.size() == 0) {
+							// This path element is new, add it
+							curObjB = curObjB.addObject(addr.getPathAt(s), attr);
+						}
+						else if (mode == MergeMode.OPTIMAL && mainSubChildren.size() > 1) {
+							// Link to the instance that already has the most of the rest of this branch
+							int best = 0, bestScore = -1;
+							for (int i=0; i<mainSubChildren.size(); ++i) {
+								int score = scoreSegment(ref, addr, s, curObjB.get(mainSubChildren.get(i)), new HashSet<String>(Collections.singleton(id)));
+								if (score > bestScore) {
+									best = i;
+									bestScore = score;
 								}
 							}
-
-							// Remember the var label referenced at the end of this branch
-							varToObj.get(i).put(thisAddr2.getVarName(), curObjB);
-							
-							// Mark this local multi-attribute branch as processed
-							processed.get(i).set(lclAttrChildren.get(b), true);
+							curObjB = curObjB.get(mainSubChildren.get(best));
 						}
-						// Add any needed branches to the main tree to fit remaining local branches
-						for (int b=mainAttrChildren.size(); b<lclAttrChildren.size(); ++b) {
-							WMEAddress thisAddr2 = ref.getAddresses().get(lclAttrChildren.get(b));
-							
-							// Build branches for this address off the referenced location
-							LispishObject curObjB = curObj; // FIXME: This is adding to the parent instead of the child
-							for (String s : thisAddr2.getPath()) {
-								curObjB = curObjB.addObject(s);
-							}
-							
-							// Remember the var label referenced at the end of this branch
-							varToObj.get(i).put(thisAddr2.getVarName(), curObjB);
-							
-							// Mark these local branches as processed
-							processed.get(i).set(lclAttrChildren.get(b), true);
+						else {
+							// This path attribute already exists, link to the first available instance
+							curObjB = curObjB.get(mainSubChildren.get(0));
 						}
-
-					}	// END if (curObj != null)
-				}	// END for (WMEaddress thisAddr : ref.getAddresses)
-			}	// END for (WMERef ref : ruleRefs)
-		}	// END while (moreToDo)
+					}
+					++merged;
+					
+					// Remember the var label referenced at the end of this branch, and queue the addresses that start from it
+					if (varToObj.put(addr.getVarName(), curObjB) == null) {
+						worklist.add(addr.getVarName());
+					}
+				}
+			}
+		}
 		
-		// TODO: Link each rule's conditions to the corresponding reference in the main wm tree
-		compileCondPrims(varToObj);
-
-		return wm;
+		// Any addresses left over start from a var that is never referenced from S1
+		if (ruleName != null && merged < ref.getAddresses().size()) {
+			for (WMEAddress addr : ref.getAddresses()) {
+				if (!varToObj.containsKey(addr.getIDName())) {
+					System.err.println("WARNING: Unreachable reference source '" + addr.getIDName() + "' in rule " + ruleName);
+				}
+			}
+		}
+		
+		return varToObj;
+	}
+	
+	/**
+	 * Group addresses by the symbol id of the first attribute of their paths, keeping the order in which each attribute first appears.
+	 */
+	private static Map<Integer, List<WMEAddress>> groupByFirstAttribute(List<WMEAddress> addresses) {
+		Map<Integer, List<WMEAddress>> attrToAddrs = new LinkedHashMap<Integer, List<WMEAddress>>();
+		for (WMEAddress addr : addresses) {
+			List<WMEAddress> group = attrToAddrs.get(addr.getPathSymbol(0));
+			if (group == null) {
+				group = new ArrayList<WMEAddress>(1);
+				attrToAddrs.put(addr.getPathSymbol(0), group);
+			}
+			group.add(addr);
+		}
+		return attrToAddrs;
+	}
+	
+	/**
+	 * Score how well each local branch overlaps each main branch with the same attribute.
+	 * @param ref The rule's references
+	 * @param locals The local branches, all starting with the same attribute from the same var
+	 * @param parent The main tree object the branches start from
+	 * @param mainIndices The indices of the main branches in parent
+	 * @param visiting The var labels on the current scoring path, to stop at cyclic refs
+	 * @return The number of nodes of each local branch that already exist in each main branch, as weights[local][main]
+	 */
+	private static int[][] scoreBranches(WMERef ref, List<WMEAddress> locals, LispishObject parent, List<Integer> mainIndices, Set<String> visiting) {
+		int[][] weights = new int[locals.size()][mainIndices.size()];
+		for (int l=0; l<locals.size(); ++l) {
+			for (int m=0; m<mainIndices.size(); ++m) {
+				weights[l][m] = scoreSegment(ref, locals.get(l), 0, parent.get(mainIndices.get(m)), visiting);
+			}
+		}
+		return weights;
 	}
 	
 	/**
-	 * Make Prim objects for each condition in this context's rules, and add them to the containing global ContextMemory.
+	 * Count the nodes of a local branch that already exist in the main tree, if the given path segment is placed at the given main object.
+	 * This includes the rest of the address path and every address that starts from its var, matched optimally at each multi-attribute.
+	 * @param ref The rule's references
+	 * @param addr The address being placed
+	 * @param seg The index of the path segment being placed
+	 * @param main The main tree object with the segment's attribute
+	 * @param visiting The var labels on the current scoring path, to stop at cyclic refs
+	 * @return The number of shared nodes
+	 */
+	private static int scoreSegment(WMERef ref, WMEAddress addr, int seg, LispishObject main, Set<String> visiting) {
+		if (seg + 1 < addr.getPathLength()) {
+			// Continue down the path through the best matching instance
+			int best = 0;
+			for (int i : main.getSymbolSublistIndices(addr.getPathSymbol(seg + 1))) {
+				best = Math.max(best, scoreSegment(ref, addr, seg + 1, main.get(i), visiting));
+			}
+			return 1 + best;
+		}
+		
+		// At the end of the path, score the addresses that continue from its var
+		String var = addr.getVarName();
+		if (!visiting.add(var)) {
+			return 1;
+		}
+		int score = 1;
+		for (Map.Entry<Integer, List<WMEAddress>> entry : groupByFirstAttribute(ref.getAddressesFrom(var)).entrySet()) {
+			List<Integer> mainIndices = main.getSymbolSublistIndices(entry.getKey());
+			if (mainIndices.size() > 0) {
+				int[][] weights = scoreBranches(ref, entry.getValue(), main, mainIndices, visiting);
+				score += BranchMatcher.totalWeight(weights, BranchMatcher.match(weights));
+			}
+		}
+		visiting.remove(var);
+		return score;
+	}
+	
+	/**
+	 * Get the wm tree node referenced by a condition arg's variable.
+	 * @param varToObj The map of variable labels for the arg's rule
+	 * @param idvar The variable label, or "const" for the rule's consts
+	 * @return The referenced node, Prim.CONST_ADDRESS for consts, or null if the variable isn't referenced
+	 */
+	private static LispishObject getArgAddress(Map<String, LispishObject> varToObj, String idvar) {
+		if (idvar.equals("const")) {
+			return Prim.CONST_ADDRESS;
+		}
+		return varToObj.get(idvar);
+	}
+	
+	/**
+	 * Make Prim objects for each condition in this context's rules.
 	 * This links each rule to its Prims so that printing to final smem network is possible.
+	 * The Prims are added to the containing global ContextMemory afterward by ContextMemory.collectPrims(), so that contexts can compile in parallel.
 	 * @param varToObj A map from variable names used within conditions to the corresponding main wm tree structure objects. 
 	 */
-	private boolean compileCondPrims(List<Map<String, LispishObject>> varToObj) {
+	boolean compileCondPrims(List<Map<String, LispishObject>> varToObj) {
 		// Go through each rule in this context
 		for (int r=0; r<rules.size(); ++r) {
 			Rule rule = rules.get(r);
 			// Compile each Prim for each condition in this rule
 			for (Condition c : rule.getConditions()) {
 				// Define the first arg id
-				LispishObject id1 = varToObj.get(r).get(c.idvar1);
+				LispishObject id1 = getArgAddress(varToObj.get(r), c.idvar1);
 				
 				// Error check
 				if (id1 == null) {
@@ -167,7 +458,7 @@ public class ElaborationContext {
 				LispishObject id2 = null;
 				// Define the second arg id if there is one
 				if (c.idvar2 != null) {
-					id2 = varToObj.get(r).get(c.idvar2);
+					id2 = getArgAddress(varToObj.get(r), c.idvar2);
 
 					// Error check
 					if (id2 == null) {
@@ -176,10 +467,9 @@ public class ElaborationContext {
 					}
 				}
 				
-				// Create the Prim and add it to the rule and the global ContextMemory
+				// Create the Prim and add it to the rule
 				Prim pnew = new Prim(c.command, id1, c.attribute1, id2, c.attribute2);
 				rule.addCondPrim(pnew);
-				contextMem.addPrim(pnew);
 
 			}
 		}
@@ -187,19 +477,80 @@ public class ElaborationContext {
 		return true;
 	}
 	
-	public String toSmemString() {
-		String retval = "(<elab-context-" + this.hashCode() + "> ^elab-context-name |" + name + "|";
+	/**
+	 * Write the smem text for the condition Prims of this context's rules.
+	 * @param out The destination to write to
+	 */
+	public void writePrimSmem(Appendable out) throws IOException {
+		if (isCached()) {
+			out.append(cachedPrimSmem);
+			return;
+		}
 		
-		// Print rule instructions
+		// Print each Prim once, even if it is shared by several rules
+		Set<Prim> printed = Collections.newSetFromMap(new IdentityHashMap<Prim, Boolean>());
 		for (Rule rule : rules) {
-			retval += "\r\n\t^delta <drule-" + rule.hashCode() + "> ";
+			for (Prim prim : rule.getCondPrims()) {
+				if (printed.add(prim)) {
+					prim.writeSmem(out);
+					out.append("\r\n");
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return The smem text for the condition Prims of this context's rules
+	 */
+	public String getPrimSmemString() {
+		StringBuilder retval = new StringBuilder();
+		try {
+			writePrimSmem(retval);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);	// Shouldn't happen: StringBuilder doesn't throw
+		}
+		return retval.toString();
+	}
+	
+	@Override
+	public void writeSmem(Appendable out) throws IOException {
+		if (isCached()) {
+			out.append(cachedSmem);
+			return;
+		}
+		
+		out.append("(<elab-context-").append(new SmemId("elab-context").add(name).toString()).append("> ^elab-context-name |").append(name).append("|");
+		
+		// Link the rule instructions and wm tree
+		for (Rule rule : rules) {
+			out.append("\r\n\t^delta ").append(rule.getSmemVarName()).append(" ");
+		}
+		if (wm != null) {
+			out.append("\r\n\t^wm-space ").append(wm.getSmemVarName()).append(" ");
+		}
+		out.append(") \r\n\r\n");
+		
+		// Print rule instructions, each followed by its consts unless an earlier rule shares them
+		Set<ConstTuple> printed = Collections.newSetFromMap(new IdentityHashMap<ConstTuple, Boolean>());
+		for (Rule rule : rules) {
+			rule.writeSmem(out);
+			ConstTuple consts = rule.getConstTuple();
+			if (consts != null && printed.add(consts)) {
+				consts.writeSmem(out);
+			}
+			out.append("\r\n");
 		}
-		retval += ") \r\n\r\n";
 		
 		// Print wm tree
-		retval += "### WM-SPACE ###\r\n";
-		retval += wm.toSmemString();
+		if (wm != null) {
+			out.append("### WM-SPACE ###\r\n");
+			wm.writeSmem(out);
+		}
 		
-		return retval;
+		// Print the delta index
+		if (index != null) {
+			out.append("\r\n### DELTA INDEX ###\r\n");
+			index.writeSmem(out);
+		}
 	}
 }
@@ -0,0 +1,324 @@
+package edu.umich.eecs.soar.delta;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The changes between two compiled versions of the smem instructions, by problem-space, for updating an agent that already loaded the first version.
+ * Since smem labels are derived from what each object contains (see SmemId), a problem-space is unchanged exactly when every object reachable from it
+ * has the same label and augmentations in both versions.
+ *
+ * The script written by write() has an "# unlink |name|" line for each removed or changed problem-space, followed by one smem --add of the added and
+ * changed ones. Labels in an smem --add are local to that command, so new objects can't be linked into ones already loaded, and a changed problem-space
+ * is added whole. DeltaEnvironment.applyInstructionDelta() removes the ^elab-context-name of each unlinked problem-space, which is what PROPs
+ * retrieves problem-spaces by, and then sources the script.
+ */
+public class InstructionDelta {
+
+	public static final String UNLINK_PREFIX = "# unlink ";
+	private static final String CONTEXT_NAME_ATTR = "^elab-context-name";
+
+	/**
+	 * The smem objects of one compiled version, read from the text of its smem --add commands.
+	 */
+	public static class Snapshot {
+		private final Map<String, Set<String>> objects = new LinkedHashMap<String, Set<String>>();	// Each object's label to its "^attr value" augmentations
+		private final Map<String, String> contexts = new LinkedHashMap<String, String>();			// Each problem-space name, in bars, to its object's label
+
+		/**
+		 * Read the smem objects of the given Soar file, such as one written by DeltaParser.write_output_file().
+		 * @param path The file to read
+		 * @return The objects, or null if the file couldn't be read or parsed
+		 */
+		public static Snapshot read(Path path) {
+			String text;
+			try {
+				text = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+			} catch (IOException e) {
+				System.err.println("ERROR in InstructionDelta.Snapshot.read(): Could not read '" + path + "': " + e.getMessage());
+				return null;
+			}
+			Snapshot retval = parse(text);
+			if (retval == null) {
+				System.err.println("\t File: " + path);
+			}
+			return retval;
+		}
+
+		/**
+		 * Parse the objects of the given smem text. Comment lines and anything outside parentheses, such as "smem --add {", are skipped.
+		 * @param text The text of a Soar file of smem --add commands
+		 * @return The objects, or null if the text is malformed
+		 */
+		public static Snapshot parse(CharSequence text) {
+			Snapshot retval = new Snapshot();
+			int pos = 0;
+			while (pos < text.length()) {
+				char c = text.charAt(pos);
+				if (c == '#') {
+					while (pos < text.length() && text.charAt(pos) != '\n') {
+						++pos;
+					}
+				}
+				else if (c == '(') {
+					pos = retval.parseObject(text, pos + 1);
+					if (pos < 0) {
+						return null;
+					}
+				}
+				else {
+					++pos;
+				}
+			}
+			return retval;
+		}
+
+		/**
+		 * Parse one "(<label> ^attr value ...)" object, merging it with any earlier object of the same label.
+		 * @param pos The position just after the opening parenthesis
+		 * @return The position just after the closing parenthesis, or -1 if the object is malformed
+		 */
+		private int parseObject(CharSequence text, int pos) {
+			List<String> tokens = new ArrayList<String>();
+			while (true) {
+				while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+					++pos;
+				}
+				if (pos >= text.length()) {
+					System.err.println("ERROR in InstructionDelta.Snapshot.parse(): Unclosed object" + (tokens.isEmpty() ? "" : " " + tokens.get(0)));
+					return -1;
+				}
+				if (text.charAt(pos) == ')') {
+					++pos;
+					break;
+				}
+
+				int start = pos;
+				if (text.charAt(pos) == '|') {
+					// A quoted symbol, which may hold spaces and parentheses
+					do {
+						++pos;
+					} while (pos < text.length() && text.charAt(pos) != '|');
+					++pos;
+				}
+				else {
+					while (pos < text.length() && !Character.isWhitespace(text.charAt(pos)) && text.charAt(pos) != ')' && text.charAt(pos) != '(') {
+						++pos;
+					}
+				}
+				if (pos == start || pos > text.length()) {
+					System.err.println("ERROR in InstructionDelta.Snapshot.parse(): Malformed object" + (tokens.isEmpty() ? "" : " " + tokens.get(0)));
+					return -1;
+				}
+				tokens.add(text.subSequence(start, pos).toString());
+			}
+
+			if (tokens.size() < 1 || tokens.get(0).startsWith("^") || (tokens.size() > 1 && !tokens.get(1).startsWith("^"))) {
+				System.err.println("ERROR in InstructionDelta.Snapshot.parse(): Object " + tokens + " doesn't have the form (<label> ^attr value ...)");
+				return -1;
+			}
+			String label = tokens.get(0);
+			Set<String> augmentations = objects.get(label);
+			if (augmentations == null) {
+				augmentations = new LinkedHashSet<String>();
+				objects.put(label, augmentations);
+			}
+
+			// Each value belongs to the latest ^attr, as in "^attr value1 value2"
+			String attr = null;
+			for (int t=1; t<tokens.size(); ++t) {
+				if (tokens.get(t).startsWith("^")) {
+					attr = tokens.get(t);
+					continue;
+				}
+				augmentations.add(attr + " " + tokens.get(t));
+				if (attr.equals(CONTEXT_NAME_ATTR) && !contexts.containsKey(tokens.get(t))) {
+					contexts.put(tokens.get(t), label);
+				}
+			}
+			return pos;
+		}
+
+		/**
+		 * @return The names of the problem-spaces, in bars as written
+		 */
+		public Set<String> getContextNames() { return contexts.keySet(); }
+
+		/**
+		 * @return The number of distinct objects
+		 */
+		public int getObjectCount() { return objects.size(); }
+
+		/**
+		 * Add the labels of the given object and every object linked from it, directly or through other objects, to the given set.
+		 * @param label The label to start from
+		 * @param retval The labels found so far, which aren't followed again
+		 * @return The given set, with the labels found added in breadth-first order
+		 */
+		private Set<String> getReachable(String label, Set<String> retval) {
+			Deque<String> worklist = new ArrayDeque<String>();
+			if (objects.containsKey(label) && retval.add(label)) {
+				worklist.add(label);
+			}
+			while (!worklist.isEmpty()) {
+				for (String augmentation : objects.get(worklist.poll())) {
+					String value = augmentation.substring(augmentation.indexOf(' ') + 1);
+					if (value.startsWith("<") && objects.containsKey(value) && retval.add(value)) {
+						worklist.add(value);
+					}
+				}
+			}
+			return retval;
+		}
+
+		/**
+		 * @return Every "<label> ^attr value" augmentation of the given objects
+		 */
+		private Set<String> getAugmentations(Set<String> labels) {
+			Set<String> retval = new HashSet<String>();
+			for (String label : labels) {
+				for (String augmentation : objects.get(label)) {
+					retval.add(label + " " + augmentation);
+				}
+			}
+			return retval;
+		}
+
+		/**
+		 * @return Every "<label> ^attr value" augmentation of the given problem-space and the objects reachable from it
+		 */
+		private Set<String> getContextAugmentations(String name) {
+			return getAugmentations(getReachable(contexts.get(name), new LinkedHashSet<String>()));
+		}
+
+		/**
+		 * @return Every "<label> ^attr value" augmentation of the objects that aren't reachable from any problem-space
+		 */
+		private Set<String> getOtherAugmentations() {
+			Set<String> reachable = new HashSet<String>();
+			for (String root : contexts.values()) {
+				getReachable(root, reachable);
+			}
+			Set<String> others = new LinkedHashSet<String>(objects.keySet());
+			others.removeAll(reachable);
+			return getAugmentations(others);
+		}
+
+		private void writeObject(String label, Appendable out) throws IOException {
+			out.append("(").append(label);
+			String sep = " ";
+			for (String augmentation : objects.get(label)) {
+				out.append(sep).append(augmentation);
+				sep = "\r\n\t";
+			}
+			out.append(")\r\n");
+		}
+	}
+
+	private final Snapshot to;
+	private final List<String> added = new ArrayList<String>(),
+							   changed = new ArrayList<String>(),
+							   removed = new ArrayList<String>();
+	private int unchanged = 0;
+	private final boolean othersChanged;
+
+	/**
+	 * Compare two compiled versions of the instructions.
+	 * @param from The version an agent has loaded
+	 * @param to The version to update it to
+	 */
+	public InstructionDelta(Snapshot from, Snapshot to) {
+		this.to = to;
+		for (String name : to.getContextNames()) {
+			if (!from.contexts.containsKey(name)) {
+				added.add(name);
+			}
+			else if (!from.getContextAugmentations(name).equals(to.getContextAugmentations(name))) {
+				changed.add(name);
+			}
+			else {
+				++unchanged;
+			}
+		}
+		for (String name : from.getContextNames()) {
+			if (!to.contexts.containsKey(name)) {
+				removed.add(name);
+			}
+		}
+		othersChanged = !from.getOtherAugmentations().equals(to.getOtherAugmentations());
+	}
+
+	public List<String> getAdded() { return Collections.unmodifiableList(added); }
+	public List<String> getChanged() { return Collections.unmodifiableList(changed); }
+	public List<String> getRemoved() { return Collections.unmodifiableList(removed); }
+	public int getUnchangedCount() { return unchanged; }
+
+	/**
+	 * @return True if objects outside every problem-space, such as the standalone addresses, differ. The script doesn't update those.
+	 */
+	public boolean hasOtherChanges() { return othersChanged; }
+
+	/**
+	 * @return True if no problem-space was added, changed or removed
+	 */
+	public boolean isEmpty() {
+		return added.isEmpty() && changed.isEmpty() && removed.isEmpty();
+	}
+
+	/**
+	 * @return A summary such as "1 added, 2 changed, 1 removed and 5 unchanged problem-space(s)"
+	 */
+	public String getDescription() {
+		return added.size() + " added, " + changed.size() + " changed, " + removed.size() + " removed and " + unchanged + " unchanged problem-space(s)";
+	}
+
+	/**
+	 * Write the delta script.
+	 * @param out The destination
+	 * @param fromName The name of the loaded version, for the header
+	 * @param toName The name of the new version, for the header
+	 * @throws IOException If the destination can't be written
+	 */
+	public void write(Appendable out, String fromName, String toName) throws IOException {
+		out.append("# PROPs instruction delta from ").append(fromName).append(" to ").append(toName).append(": ").append(getDescription()).append(".\r\n");
+		out.append("# Apply it to an agent that loaded ").append(fromName).append(" with DeltaEnvironment.applyInstructionDelta(), which removes the\r\n");
+		out.append("# ^elab-context-name of each problem-space on an unlink line, so its old version is no longer retrieved, and then sources this file.\r\n\r\n");
+
+		for (String name : removed) {
+			out.append(UNLINK_PREFIX).append(name).append("\r\n");
+		}
+		for (String name : changed) {
+			out.append(UNLINK_PREFIX).append(name).append("\r\n");
+		}
+		if (added.isEmpty() && changed.isEmpty()) {
+			return;
+		}
+
+		// Add each new or changed problem-space whole, writing objects that several of them share only once
+		out.append("\r\nsmem --add {\r\n");
+		Set<String> written = new HashSet<String>();
+		List<String> names = new ArrayList<String>(added);
+		names.addAll(changed);
+		for (String name : names) {
+			out.append("\r\n###\r\n# ").append(name.replace("|", "").toUpperCase()).append("\r\n###\r\n");
+			for (String label : to.getReachable(to.contexts.get(name), new LinkedHashSet<String>())) {
+				if (written.add(label)) {
+					to.writeObject(label, out);
+				}
+			}
+		}
+		out.append("}\r\n");
+	}
+}
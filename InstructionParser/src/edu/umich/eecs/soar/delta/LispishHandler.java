@@ -0,0 +1,27 @@
+package edu.umich.eecs.soar.delta;
+
+/**
+ * Receives the tokens of lisp-style delta text as they are read by DeltaParser.read_lispish_events(), without a tree being built.
+ * Each callback returns false to stop reading, such as after reporting an error.
+ */
+public interface LispishHandler {
+
+	/**
+	 * Called for each '(' that starts a list.
+	 * @return False to stop reading
+	 */
+	boolean onOpen();
+
+	/**
+	 * Called for each atom, such as a command name, label, or quoted string.
+	 * @param text The text of the atom, without quotes
+	 * @return False to stop reading
+	 */
+	boolean onAtom(String text);
+
+	/**
+	 * Called for each ')' that ends a list. Unmatched ')' are reported by the reader and never passed on.
+	 * @return False to stop reading
+	 */
+	boolean onClose();
+}
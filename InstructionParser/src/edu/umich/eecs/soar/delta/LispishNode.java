@@ -0,0 +1,40 @@
+package edu.umich.eecs.soar.delta;
+
+/**
+ * Read-only access to one item of parsed lisp-style text: either a single atom, or a list of items within a parenthesis block.
+ * This is the view that parse_instructions() walks, so it can read either a LispishObject tree or a CompactLispTree.
+ */
+public interface LispishNode {
+
+	/**
+	 * @return True if this item is a parenthesis block, false if it is an atom
+	 */
+	boolean isList();
+
+	/**
+	 * @return True if this item holds no data at all
+	 */
+	boolean isEmpty();
+
+	/**
+	 * @return The number of items in this list, or 1 for an atom
+	 */
+	int size();
+
+	/**
+	 * Get the text of the item at the given index within this list, or of this atom for index 0.
+	 * List items are given in the form of toString().
+	 * @param index The index of the item, where 0 is the first index
+	 * @return The text of the item
+	 * @throws ArrayIndexOutOfBoundsException If there is no item at the index
+	 */
+	String getString(int index) throws ArrayIndexOutOfBoundsException;
+
+	/**
+	 * Get the item at the given index within this list.
+	 * @param index The index of the item, where 0 is the first index
+	 * @return The item at the given index
+	 * @throws ArrayIndexOutOfBoundsException If this isn't a list, or there is no item at the index
+	 */
+	LispishNode get(int index) throws ArrayIndexOutOfBoundsException;
+}
@@ -1,7 +1,11 @@
 package edu.umich.eecs.soar.delta;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * This class is for representing parsed text from a lisp-style file.
@@ -9,10 +13,24 @@ import java.util.List;
  * @author Bryan Stearns 
  * @since Oct 2020
  */
-public class LispishObject {
+public class LispishObject implements LispishNode, SmemWritable {
+	/**
+	 * Lists with at least this many items look up items by their first string through an index instead of scanning.
+	 */
+	public static final int INDEX_THRESHOLD = 8;
+	
 	private String data;
 	private LispishObject parentObject = null;
 	private ArrayList<LispishObject> dataList;
+	// A wide list can be looked up by its items' first strings or by their symbols, through one index each.
+	// Both are only built by the first lookup of their kind, so a list only pays for the one it is queried by:
+	// wm-space trees are built and merged by symbol alone, and string lookups are left to other trees and callers.
+	// Until its index is built, a list's mutators skip the bookkeeping for it.
+	private Map<String, List<Integer>> childIndex = null;	// Lazily built by getNamedSublistIndices(): each item's first string to its indices in dataList
+	private Map<Integer, List<Integer>> symbolIndex = null;	// Lazily built by getSymbolSublistIndices(): each item's symbol to its indices in dataList
+	private int symbol = -1;			// The symbol id of this object's first string, if it was added with one by addObject(String, int)
+	private String smemScope = null;	// For the root of a wm-space tree, the name of its problem-space
+	private String smemName = null;		// The wm-space node label, once first asked for
 	
 	public LispishObject(String str) {
 		data = str;
@@ -43,12 +61,18 @@ public class LispishObject {
 	 * Clears all contained data references
 	 */
 	public void clear() {
+		String oldKey = getIndexedKey();
 		data = null;
 		
 		if (dataList != null)
 			dataList.clear();
 		else
 			dataList = null;
+		childIndex = null;
+		symbolIndex = null;
+		dropSymbol();
+		
+		keyChanged(oldKey);
 	}
 	
 	public String getString(int index) throws ArrayIndexOutOfBoundsException {
@@ -91,19 +115,24 @@ public class LispishObject {
 	 * @return the new LispishObject instance
 	 */
 	public LispishObject addObject() {
+		String oldKey = getIndexedKey();
 		if (dataList == null)
 			dataList = new ArrayList<LispishObject>(3);
 		
 		// If there is a single String data so far only, convert that to the first list element
 		if (data != null) {
-			dataList.add(new LispishObject(data));
+			LispishObject obj = new LispishObject(data);
+			obj.parentObject = this;
+			dataList.add(obj);
 			data = null;
 		}
 		
 		LispishObject retVal = new LispishObject();
 		dataList.add(retVal);
 		retVal.parentObject = this;
+		// The new object is empty, so it has no first string to index until one is added to it
 		
+		keyChanged(oldKey);
 		return retVal;
 	}
 	
@@ -119,18 +148,39 @@ public class LispishObject {
 		return retval;
 	}
 	
+	/**
+	 * Add an object to the data list with the given string as its first item, and the string's symbol id, so getSymbolSublistIndices() can find it.
+	 * @param str The String to add as the first item of the new object
+	 * @param symbol The id of str in a SymbolTable. Every object added to this list with a symbol should use the same table.
+	 * @return The new LispishObject instance
+	 */
+	public LispishObject addObject(String str, int symbol) {
+		LispishObject retval = addObject(str);
+		retval.symbol = symbol;
+		if (symbolIndex != null) {
+			addToSymbolIndex(symbol, dataList.size() - 1);
+		}
+		return retval;
+	}
+	
 	/**
 	 * Set the contents of this object to a single string.
 	 * This overwrites any existing data in this object.
 	 * @param str
 	 */
 	public void setSingleData(String str) {
+		String oldKey = getIndexedKey();
 		data = str;
 		
 		if (dataList != null)
 			dataList.clear();
 		else
 			dataList = null;
+		childIndex = null;
+		symbolIndex = null;
+		dropSymbol();
+		
+		keyChanged(oldKey);
 	}
 	
 	/**
@@ -139,6 +189,11 @@ public class LispishObject {
 	 * @param strs
 	 */
 	public void setListData(ArrayList<String> strs) {
+		String oldKey = getIndexedKey();
+		childIndex = null;
+		symbolIndex = null;
+		dropSymbol();
+		
 		// Configure
 		if (dataList != null) {
 			dataList.clear();
@@ -155,6 +210,8 @@ public class LispishObject {
 			dataList.add(obj);
 			obj.parentObject = this;
 		}
+		
+		keyChanged(oldKey);
 	}
 	
 	/**
@@ -163,6 +220,8 @@ public class LispishObject {
 	 * @param str
 	 */
 	public void addString(String str) {
+		String oldKey = getIndexedKey();
+		
 		// Create the list if currently empty
 		if (dataList == null) {
 			dataList = new ArrayList<LispishObject>(3);
@@ -180,17 +239,208 @@ public class LispishObject {
 		LispishObject obj = new LispishObject(str);
 		obj.parentObject = this;
 		dataList.add(obj);
+		if (childIndex != null) {
+			addToIndex(str, dataList.size() - 1);
+		}
+		
+		keyChanged(oldKey);
+	}
+	
+	/**
+	 * @return The first string of this object, as it is matched by getNamedSublistIndices() on its parent, or null if it is empty
+	 */
+	private String getKey() {
+		if (dataList == null) {
+			return data;
+		}
+		return (dataList.isEmpty() ? null : dataList.get(0).toString());
+	}
+	
+	/**
+	 * @return getKey() if the parent has an index that uses it, or null otherwise. Mutators call this to avoid building keys when they aren't needed.
+	 */
+	private String getIndexedKey() {
+		return (parentObject != null && parentObject.childIndex != null ? getKey() : null);
+	}
+	
+	/**
+	 * Keep the indices of the ancestors of this object consistent after a change to it.
+	 * @param oldKey The value of getIndexedKey() before the change
+	 */
+	private void keyChanged(String oldKey) {
+		if (parentObject == null) {
+			return;
+		}
+		
+		// Update this object's entry in its parent's index, if its first string changed
+		if (parentObject.childIndex != null) {
+			String newKey = getKey();
+			if (newKey == null ? oldKey != null : !newKey.equals(oldKey)) {
+				parentObject.reindexItem(this, oldKey, newKey);
+			}
+		}
+		
+		// An object's text is part of the first string of a parent that it heads, so any change to it renames that parent too
+		LispishObject node = this;
+		while (node.parentObject != null && node.parentObject.headedBy(node)) {
+			node = node.parentObject;
+			if (node.parentObject == null) {
+				break;
+			}
+			node.parentObject.childIndex = null;
+		}
+	}
+	
+	/**
+	 * @return True if the given object is the first item of this list
+	 */
+	private boolean headedBy(LispishObject item) {
+		return (dataList != null && !dataList.isEmpty() && dataList.get(0) == item);
+	}
+	
+	/**
+	 * Move an item of this list to a new key in the index.
+	 */
+	private void reindexItem(LispishObject item, String oldKey, String newKey) {
+		// Find the item's index, checking the usual case of a just-added last item first
+		int index = dataList.size() - 1;
+		if (index < 0 || dataList.get(index) != item) {
+			index = -1;
+			List<Integer> oldIndices = (oldKey == null ? null : childIndex.get(oldKey));
+			if (oldIndices != null) {
+				for (int i : oldIndices) {
+					if (dataList.get(i) == item) {
+						index = i;
+						break;
+					}
+				}
+			}
+			if (index == -1) {
+				// Not found by key, so the index may be stale: rebuild it on the next lookup
+				childIndex = null;
+				return;
+			}
+		}
+		
+		if (oldKey != null) {
+			List<Integer> oldIndices = childIndex.get(oldKey);
+			if (oldIndices != null) {
+				oldIndices.remove(Integer.valueOf(index));
+				if (oldIndices.isEmpty()) {
+					childIndex.remove(oldKey);
+				}
+			}
+		}
+		if (newKey != null) {
+			addToIndex(newKey, index);
+		}
+	}
+	
+	/**
+	 * Add an item's index under the given key, keeping each list of indices ascending.
+	 */
+	private void addToIndex(String key, int index) {
+		List<Integer> indices = childIndex.get(key);
+		if (indices == null) {
+			indices = new ArrayList<Integer>(1);
+			childIndex.put(key, indices);
+		}
+		
+		int pos = indices.size();
+		while (pos > 0 && indices.get(pos - 1) > index) {
+			--pos;
+		}
+		indices.add(pos, index);
 	}
 	
+	/**
+	 * Build the index of this list's items by their first string.
+	 */
+	private void buildIndex() {
+		childIndex = new HashMap<String, List<Integer>>();
+		for (int i=0; i<dataList.size(); ++i) {
+			String key = dataList.get(i).getKey();
+			if (key != null) {
+				addToIndex(key, i);
+			}
+		}
+	}
+	
+	/**
+	 * Forget this object's symbol, since its first string is being replaced.
+	 */
+	private void dropSymbol() {
+		if (symbol != -1) {
+			symbol = -1;
+			if (parentObject != null) {
+				parentObject.symbolIndex = null;
+			}
+		}
+	}
+	
+	/**
+	 * Add an item's index under the given symbol. Items are only added at the end of the list, so the indices stay ascending.
+	 */
+	private void addToSymbolIndex(int key, int index) {
+		List<Integer> indices = symbolIndex.get(key);
+		if (indices == null) {
+			indices = new ArrayList<Integer>(1);
+			symbolIndex.put(key, indices);
+		}
+		indices.add(index);
+	}
+	
+	/**
+	 * Set the name that the smem labels of this wm-space root and the nodes below it are derived from, usually its problem-space name.
+	 * @param scope The name, or null to label the root by its hash code
+	 */
+	public void setSmemScope(String scope) {
+		smemScope = scope;
+		smemName = null;
+	}
+	
+	/**
+	 * Get this node's label in the smem --add file. It is derived from its parent's label, its attribute,
+	 * and its position among the parent's children with the same attribute, so it only depends on the node's place in the tree.
+	 * The labels are fixed the first time they are asked for, so the tree shouldn't change after it is written.
+	 */
 	public String getSmemVarName() {
-		return "<wm-" + String.valueOf(this.hashCode()) + ">";
+		if (smemName == null) {
+			if (parentObject != null) {
+				parentObject.nameChildren();
+			}
+			if (smemName == null) {
+				smemName = "<wm-" + (smemScope == null ? String.valueOf(this.hashCode()) : new SmemId("wm").add(smemScope).toString()) + ">";
+			}
+		}
+		return smemName;
+	}
+	
+	/**
+	 * Label each child node of this one from this node's label, as in getSmemVarName().
+	 */
+	private void nameChildren() {
+		String label = getSmemVarName();
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		for (LispishObject obj : dataList) {
+			if (obj.isList()) {
+				String attr = obj.getString(0);
+				Integer count = counts.get(attr);
+				count = (count == null ? 0 : count + 1);
+				counts.put(attr, count);
+				if (obj.smemName == null) {
+					obj.smemName = "<wm-" + new SmemId("wm").add(label).add(attr).add(count) + ">";
+				}
+			}
+		}
 	}
 	
 	/**
 	 * Get an ascending list of the indices in this object's data list whose first string matches the given string.
 	 * For example, if this object was "(foo bar berry (bar ...) cherry)" and the pattern was "bar", return [1,3]
+	 * Lists with at least INDEX_THRESHOLD items are searched through an index, so the lookup doesn't depend on the list length.
 	 * @param pattern The string to match
-	 * @return The list of indices in which the pattern was found
+	 * @return The read-only list of indices in which the pattern was found. It is only valid until this object is next changed.
 	 */
 	public List<Integer> getNamedSublistIndices(String pattern) {
 		List<Integer> retval = new ArrayList<Integer>();
@@ -207,9 +457,18 @@ public class LispishObject {
 			return retval;
 		}
 		
+		// Look up wide lists through the index
+		if (dataList.size() >= INDEX_THRESHOLD) {
+			if (childIndex == null) {
+				buildIndex();
+			}
+			List<Integer> indices = childIndex.get(pattern);
+			return (indices == null ? retval : Collections.unmodifiableList(indices));
+		}
+		
 		// Iterate and search
 		for (int i=0; i<dataList.size(); ++i) {
-			if (dataList.get(i).getString(0).equals(pattern)) {
+			if (pattern.equals(dataList.get(i).getKey())) {
 				retval.add(i);
 			}
 		}
@@ -218,28 +477,84 @@ public class LispishObject {
 	}
 	
 	/**
-	 * Returns a string suitable to include inside an "smem --add" command.
-	 * This method is recursive. The returned string represents both the given object and its descendants.
-	 * @return
+	 * Get an ascending list of the indices in this object's data list of the objects added with the given symbol by addObject(String, int).
+	 * This is getNamedSublistIndices() for trees built from interned names, comparing ids instead of strings. Objects added without a symbol,
+	 * such as the first string of a list, are never matched.
+	 * @param symbol The symbol id to match
+	 * @return The read-only list of indices in which the symbol was found. It is only valid until this object is next changed.
 	 */
-	public String toSmemString() {
-		// Terminating string:
+	public List<Integer> getSymbolSublistIndices(int symbol) {
+		List<Integer> retval = new ArrayList<Integer>();
 		if (!isList()) {
-			return data;
+			return retval;
 		}
 		
-		// Is a list: print as its own object
-		String varName = getSmemVarName();
-		String retval = "(" + varName;
-		
-		for (LispishObject obj : dataList) {
-			if (obj.isList()) 		// TODO
-			retval += "\t^child " + obj.getSmemVarName();
+		// Look up wide lists through the index
+		if (dataList.size() >= INDEX_THRESHOLD) {
+			if (symbolIndex == null) {
+				symbolIndex = new HashMap<Integer, List<Integer>>();
+				for (int i=0; i<dataList.size(); ++i) {
+					if (dataList.get(i).symbol != -1) {
+						addToSymbolIndex(dataList.get(i).symbol, i);
+					}
+				}
+			}
+			List<Integer> indices = symbolIndex.get(symbol);
+			return (indices == null ? retval : Collections.unmodifiableList(indices));
 		}
 		
+		for (int i=0; i<dataList.size(); ++i) {
+			if (dataList.get(i).symbol == symbol) {
+				retval.add(i);
+			}
+		}
 		return retval;
 	}
 	
+	/**
+	 * @return The number of objects that writeSmem() writes for this object: itself, and each of its list descendants
+	 */
+	public int countTreeNodes() {
+		int count = 1;
+		if (isList()) {
+			for (LispishObject obj : dataList) {
+				if (obj.isList())
+					count += obj.countTreeNodes();
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * Writes text suitable to include inside an "smem --add" command, treating this object as a node of a wm-space tree.
+	 * Each node is printed as its own object, linked to its attribute name (its first string) and to its child nodes.
+	 * This method is recursive. The written text represents both the given object and its descendants.
+	 */
+	@Override
+	public void writeSmem(Appendable out) throws IOException {
+		out.append("(").append(getSmemVarName());
+		
+		// The root is the state itself, so only its descendants are reached by an attribute
+		if (parentObject != null) {
+			out.append("\r\n\t^attribute ").append(getString(0));
+		}
+		if (isList()) {
+			for (LispishObject obj : dataList) {
+				if (obj.isList())
+					out.append("\r\n\t^child ").append(obj.getSmemVarName());
+			}
+		}
+		out.append(")\r\n");
+		
+		// Print the child nodes
+		if (isList()) {
+			for (LispishObject obj : dataList) {
+				if (obj.isList())
+					obj.writeSmem(out);
+			}
+		}
+	}
+	
 	@Override
 	public String toString() {
 		if (data != null) {
@@ -0,0 +1,566 @@
+package edu.umich.eecs.soar.delta;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Rough throughput measurements for the stages of the instruction parser.
+ * Usage: ParserBenchmark [source.delta] [copies]
+ *    or: ParserBenchmark -g [CorpusGenerator options]
+ * The source file is concatenated the given number of times into a temporary corpus before timing.
+ * With -g, the corpus is instead made by CorpusGenerator with the given options (without an output file), so it is repeatable for any settings.
+ */
+public class ParserBenchmark {
+
+	private static final int WARMUP_RUNS = 3,
+							 TIMED_RUNS = 5;
+
+	public static void main(String[] args) throws IOException {
+		Path corpus;
+		if (args.length > 0 && args[0].equals("-g")) {
+			CorpusGenerator generator = new CorpusGenerator();
+			for (int i=1; i+1<args.length; i+=2) {
+				if (!generator.setOption(args[i], args[i+1])) {
+					System.err.println("ERROR: Bad CorpusGenerator option '" + args[i] + "'.");
+					System.exit(1);
+				}
+			}
+			corpus = Files.createTempFile("delta-corpus", ".delta");
+			generator.write(corpus);
+			System.out.println("Corpus: generated with " + generator.getDescription() + " (" + (Files.size(corpus) / 1024) + " KB)");
+		}
+		else {
+			Path source = Paths.get(args.length > 0 ? args[0] : "test_instructions01.delta");
+			int copies = (args.length > 1 ? Integer.parseInt(args[1]) : 20000);
+			corpus = makeCorpus(source, copies);
+			System.out.println("Corpus: " + copies + " copies of " + source + " (" + (Files.size(corpus) / 1024) + " KB)");
+		}
+
+		try {
+			benchmarkStages(corpus);
+			benchmarkLexers(corpus);
+			benchmarkEmit(corpus);
+			benchmarkTrees(corpus);
+			benchmarkStreaming(corpus);
+			benchmarkDeltac(corpus);
+			benchmarkCompileRefs();
+		}
+		finally {
+			Files.deleteIfExists(corpus);
+		}
+	}
+
+	/**
+	 * The state passed from each stage of benchmarkStages() to the next.
+	 */
+	private static final class StageState {
+		final DeltaParser parser = new DeltaParser();
+		final LispishObject tree = new LispishObject();
+		final ContextMemory parsedIns = new ContextMemory();
+		final List<List<Map<String, LispishObject>>> varToObjs = new ArrayList<List<Map<String, LispishObject>>>();
+		final Path corpus, out;
+
+		StageState(Path corpus, Path out) {
+			this.corpus = corpus;
+			this.out = out;
+		}
+	}
+
+	private static final String[] STAGES = {"read_lispish_file", "parse_instructions", "compileRefs", "compileCondPrims", "smem emit"};
+
+	/**
+	 * Time each stage of converting the corpus on its own, on one thread, and print the time, bytes allocated, and rules per second of each.
+	 * compileRefs only merges the refs into wm trees here, and compileCondPrims also interns the Prims into the ContextMemory.
+	 */
+	private static void benchmarkStages(Path corpus) throws IOException {
+		long[] nanos = new long[STAGES.length],
+			   bytes = new long[STAGES.length];
+		int rules = 0;
+		Path out = Files.createTempFile("delta-stages", ".soar");
+		try {
+			for (int i=0; i<WARMUP_RUNS+TIMED_RUNS; ++i) {
+				StageState state = new StageState(corpus, out);
+				System.gc();
+				for (int stage=0; stage<STAGES.length; ++stage) {
+					long allocated = getAllocatedBytes(),
+						 start = System.nanoTime();
+					if (!runStage(stage, state)) {
+						System.err.println("ERROR: Stage " + STAGES[stage] + " failed on the corpus.");
+						return;
+					}
+					if (i >= WARMUP_RUNS) {
+						nanos[stage] += System.nanoTime() - start;
+						bytes[stage] += getAllocatedBytes() - allocated;
+					}
+				}
+				rules = 0;
+				for (ElaborationContext elab : state.parsedIns.getElabContexts()) {
+					rules += elab.getRules().size();
+				}
+			}
+		}
+		finally {
+			Files.deleteIfExists(out);
+		}
+
+		for (int stage=0; stage<STAGES.length; ++stage) {
+			double ms = nanos[stage] / 1000000.0 / TIMED_RUNS;
+			System.out.println(String.format("%-18s %8.1f ms, %,10d KB allocated, %,12.0f rules/sec", STAGES[stage], ms,
+					(bytes[stage] < 0 ? -1 : bytes[stage] / 1024 / TIMED_RUNS), rules / (ms / 1000.0)));
+		}
+	}
+
+	private static boolean runStage(int stage, StageState state) throws IOException {
+		switch (stage) {
+		case 0:
+			return state.parser.read_lispish_file(state.corpus, state.tree);
+		case 1:
+			return state.parser.parse_instructions(state.tree, state.parsedIns);
+		case 2:
+			for (ElaborationContext elab : state.parsedIns.getElabContexts()) {
+				state.varToObjs.add(elab.compileWM(ElaborationContext.MergeMode.BLIND));
+			}
+			return true;
+		case 3:
+			for (int e=0; e<state.parsedIns.getElabContexts().size(); ++e) {
+				ElaborationContext elab = state.parsedIns.getElabContexts().get(e);
+				if (!elab.compileCondPrims(state.varToObjs.get(e))) {
+					return false;
+				}
+				state.parsedIns.collectPrims(elab);
+			}
+			return true;
+		default:
+			emitStreaming(state.parsedIns, state.out);
+			return true;
+		}
+	}
+
+	/**
+	 * @return The bytes allocated so far by the current thread, or a negative number if the JVM can't tell
+	 */
+	private static long getAllocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return Long.MIN_VALUE;
+	}
+
+	/**
+	 * Time tokenizing the corpus with the old Scanner-based path and with DeltaLexer, and print tokens per second for each.
+	 */
+	private static void benchmarkLexers(Path corpus) throws IOException {
+		for (int i=0; i<WARMUP_RUNS; ++i) {
+			countScannerTokens(corpus);
+			countLexerTokens(corpus);
+		}
+
+		long scannerTokens = 0, lexerTokens = 0,
+			 scannerNanos = 0, lexerNanos = 0;
+		for (int i=0; i<TIMED_RUNS; ++i) {
+			long start = System.nanoTime();
+			scannerTokens = countScannerTokens(corpus);
+			scannerNanos += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			lexerTokens = countLexerTokens(corpus);
+			lexerNanos += System.nanoTime() - start;
+		}
+
+		report("Scanner", scannerTokens, scannerNanos / TIMED_RUNS);
+		report("DeltaLexer", lexerTokens, lexerNanos / TIMED_RUNS);
+		System.out.println(String.format("Speedup: x%.2f", (double) scannerNanos / lexerNanos));
+	}
+
+	/**
+	 * Time writing the compiled corpus to smem text, by materializing every construct's String first (the former approach),
+	 * and by streaming each construct to a buffered writer. Prints the time and peak heap used for each.
+	 */
+	private static void benchmarkEmit(Path corpus) throws IOException {
+		DeltaParser parser = new DeltaParser();
+		LispishObject fileTextStructs = new LispishObject();
+		ContextMemory parsedIns = new ContextMemory();
+		ForkJoinPool pool = new ForkJoinPool(1);
+		try {
+			if (!parser.read_lispish_file(corpus, fileTextStructs)
+					|| !parser.parse_instructions(fileTextStructs, parsedIns)
+					|| !parser.compile_instructions(parsedIns, pool)) {
+				System.err.println("ERROR: Could not compile corpus for emit benchmark.");
+				return;
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			e.printStackTrace();
+			return;
+		} finally {
+			pool.shutdown();
+		}
+		fileTextStructs = null;
+
+		Path out = Files.createTempFile("delta-emit", ".soar");
+		try {
+			for (int i=0; i<WARMUP_RUNS; ++i) {
+				emitStrings(parsedIns, out);
+				emitStreaming(parsedIns, out);
+			}
+
+			resetPeakHeap();
+			long start = System.nanoTime();
+			emitStrings(parsedIns, out);
+			long stringNanos = System.nanoTime() - start;
+			long stringPeak = getPeakHeap();
+
+			resetPeakHeap();
+			start = System.nanoTime();
+			emitStreaming(parsedIns, out);
+			long streamNanos = System.nanoTime() - start;
+			long streamPeak = getPeakHeap();
+
+			System.out.println(String.format("%-12s %.1f ms, peak heap %,d KB", "String emit", stringNanos / 1000000.0, stringPeak / 1024));
+			System.out.println(String.format("%-12s %.1f ms, peak heap %,d KB", "Stream emit", streamNanos / 1000000.0, streamPeak / 1024));
+		}
+		finally {
+			Files.deleteIfExists(out);
+		}
+	}
+
+	/**
+	 * Time compileRefs on synthetic problem-spaces of growing size, and print the time per ref address.
+	 * Each problem-space has one wide rule with addresses for every other rule, plus many rules with a few chained addresses each,
+	 * so the number of refs, the number of addresses within a ref, and the width of the wm tree all grow. Near-constant time per address means linear scaling.
+	 */
+	private static void benchmarkCompileRefs() {
+		final int[] sizes = {1000, 2000, 4000, 8000, 16000};
+		for (int i=0; i<WARMUP_RUNS; ++i) {
+			makeRefContext(sizes[0]).compileRefs();
+		}
+
+		for (int n : sizes) {
+			long nanos = 0;
+			int addresses = 0;
+			for (int i=0; i<TIMED_RUNS; ++i) {
+				ElaborationContext elab = makeRefContext(n);
+				addresses = countAddresses(elab);
+				long start = System.nanoTime();
+				elab.compileRefs();
+				nanos += System.nanoTime() - start;
+			}
+			nanos /= TIMED_RUNS;
+			System.out.println(String.format("compileRefs %,6d rules, %,7d addresses in %7.1f ms: %,.0f ns/address", n + 1, addresses, nanos / 1000000.0, (double) nanos / addresses));
+		}
+	}
+
+	/**
+	 * Make a problem-space with one rule that references n objects and n distinct slots under the same wm,
+	 * followed by n rules referencing chains like (s1 wm <wm>) (<wm> object <ob1>) (<ob1> feature.color <c1>) (<wm> slot5 <sl>) ...
+	 * The wm node is then wide, so each rule's slot lookup searches a node with 2n children.
+	 */
+	private static ElaborationContext makeRefContext(int n) {
+		ElaborationContext elab = new ElaborationContext(new ContextMemory(), "bench");
+		SymbolTable symbols = new SymbolTable();
+
+		WMERef wide = new WMERef(symbols);
+		wide.addWMEAddress("s1", "wm", "<wm>");
+		for (int i=0; i<n; ++i) {
+			wide.addWMEAddress("<wm>", "object", "<ob" + i + ">");
+			wide.addWMEAddress("<ob" + i + ">", "feature.size", "<s" + i + ">");
+			wide.addWMEAddress("<wm>", "slot" + i, "<sl" + i + ">");
+		}
+		elab.addRule(new Rule("bench-wide"));
+		elab.addRef(wide);
+
+		for (int r=0; r<n; ++r) {
+			WMERef ref = new WMERef(symbols);
+			// Add the addresses deepest first, so the chain resolves in reverse of the order it is listed
+			ref.addWMEAddress("<ob2>", "feature.value" + (r % 7), "<v>");
+			ref.addWMEAddress("<ob1>", "feature.color", "<c>");
+			ref.addWMEAddress("<wm>", "slot" + r, "<sl>");
+			ref.addWMEAddress("<wm>", "object", "<ob2>");
+			ref.addWMEAddress("<wm>", "object", "<ob1>");
+			ref.addWMEAddress("s1", "wm", "<wm>");
+			elab.addRule(new Rule("bench-" + r));
+			elab.addRef(ref);
+		}
+
+		return elab;
+	}
+
+	private static int countAddresses(ElaborationContext elab) {
+		int count = 0;
+		for (WMERef ref : elab.getRefs()) {
+			count += ref.getAddresses().size();
+		}
+		return count;
+	}
+
+	/**
+	 * Compare reading the corpus into a LispishObject tree and into a CompactLispTree.
+	 * Prints the heap retained by each tree per token, and the time and garbage collections taken to read, parse and compile from each.
+	 */
+	private static void benchmarkTrees(Path corpus) throws IOException {
+		long tokens = countLexerTokens(corpus);
+		DeltaParser parser = new DeltaParser();
+
+		// Retained size of each tree
+		long before = getUsedHeap();
+		LispishObject objectTree = new LispishObject();
+		parser.read_lispish_file(corpus, objectTree);
+		long objectBytes = getUsedHeap() - before;
+		objectTree = null;
+
+		before = getUsedHeap();
+		CompactLispTree compactTree = CompactLispTree.read(corpus);
+		long compactBytes = getUsedHeap() - before;
+		int compactNodes = compactTree.getNodeCount();
+		compactTree = null;
+
+		System.out.println(String.format("%-14s retains %,d KB, %.1f bytes/token", "LispishObject", objectBytes / 1024, (double) objectBytes / tokens));
+		System.out.println(String.format("%-14s retains %,d KB, %.1f bytes/token (%.1f in node arrays, the rest is source text)", "CompactLispTree",
+				compactBytes / 1024, (double) compactBytes / tokens, 16.0 * compactNodes / tokens));
+
+		// Time and collections for the whole front end
+		for (int i=0; i<WARMUP_RUNS; ++i) {
+			compileFromObjects(parser, corpus);
+			compileFromCompact(parser, corpus);
+		}
+		long objectNanos = 0, compactNanos = 0,
+			 objectGCs = 0, compactGCs = 0;
+		for (int i=0; i<TIMED_RUNS; ++i) {
+			System.gc();
+			long gcs = getCollectionCount();
+			long start = System.nanoTime();
+			compileFromObjects(parser, corpus);
+			objectNanos += System.nanoTime() - start;
+			objectGCs += getCollectionCount() - gcs;
+
+			System.gc();
+			gcs = getCollectionCount();
+			start = System.nanoTime();
+			compileFromCompact(parser, corpus);
+			compactNanos += System.nanoTime() - start;
+			compactGCs += getCollectionCount() - gcs;
+		}
+		System.out.println(String.format("%-14s read+parse+compile %.1f ms, %.1f GCs", "LispishObject", objectNanos / 1000000.0 / TIMED_RUNS, (double) objectGCs / TIMED_RUNS));
+		System.out.println(String.format("%-14s read+parse+compile %.1f ms, %.1f GCs", "CompactLispTree", compactNanos / 1000000.0 / TIMED_RUNS, (double) compactGCs / TIMED_RUNS));
+	}
+
+	/**
+	 * Compare the peak heap used to convert the corpus with convert_files() and with convert_files_streaming().
+	 */
+	private static void benchmarkStreaming(Path corpus) throws IOException {
+		DeltaParser parser = new DeltaParser();
+		parser.setParallelism(1);
+		List<Path> inPaths = Collections.singletonList(corpus);
+		Path out = Files.createTempFile("delta-stream", ".soar");
+		try {
+			resetPeakHeap();
+			long start = System.nanoTime();
+			parser.convert_files(inPaths, out);
+			long treeNanos = System.nanoTime() - start;
+			long treePeak = getPeakHeap();
+
+			resetPeakHeap();
+			start = System.nanoTime();
+			parser.convert_files_streaming(inPaths, out);
+			long streamNanos = System.nanoTime() - start;
+			long streamPeak = getPeakHeap();
+
+			System.out.println(String.format("%-14s %.1f ms, peak heap %,d KB", "convert_files", treeNanos / 1000000.0, treePeak / 1024));
+			System.out.println(String.format("%-14s %.1f ms, peak heap %,d KB", "streaming", streamNanos / 1000000.0, streamPeak / 1024));
+		}
+		finally {
+			Files.deleteIfExists(out);
+		}
+	}
+
+	/**
+	 * Compare compiling the corpus from its text with loading it precompiled from a .deltac file, and print the size of each file.
+	 */
+	private static void benchmarkDeltac(Path corpus) throws IOException {
+		DeltaParser parser = new DeltaParser();
+		Path binary = Files.createTempFile("delta-bench", DeltacFile.EXTENSION);
+		try {
+			if (!DeltacFile.write(compileFromCompact(parser, corpus), binary)) {
+				System.err.println("ERROR: Could not write corpus for .deltac benchmark.");
+				return;
+			}
+
+			for (int i=0; i<WARMUP_RUNS; ++i) {
+				compileFromCompact(parser, corpus);
+				DeltacFile.read(binary);
+			}
+			long textNanos = 0, binaryNanos = 0;
+			for (int i=0; i<TIMED_RUNS; ++i) {
+				System.gc();
+				long start = System.nanoTime();
+				compileFromCompact(parser, corpus);
+				textNanos += System.nanoTime() - start;
+
+				System.gc();
+				start = System.nanoTime();
+				DeltacFile.read(binary);
+				binaryNanos += System.nanoTime() - start;
+			}
+
+			System.out.println(String.format("%-14s %,d KB, read+parse+compile %.1f ms", ".delta text", Files.size(corpus) / 1024, textNanos / 1000000.0 / TIMED_RUNS));
+			System.out.println(String.format("%-14s %,d KB, load %.1f ms", ".deltac", Files.size(binary) / 1024, binaryNanos / 1000000.0 / TIMED_RUNS));
+		}
+		finally {
+			Files.deleteIfExists(binary);
+		}
+	}
+
+	private static ContextMemory compileFromObjects(DeltaParser parser, Path corpus) throws IOException {
+		LispishObject tree = new LispishObject();
+		ContextMemory parsedIns = new ContextMemory();
+		parser.read_lispish_file(corpus, tree);
+		parser.parse_instructions(tree, parsedIns);
+		compileSerially(parsedIns);
+		return parsedIns;
+	}
+
+	private static ContextMemory compileFromCompact(DeltaParser parser, Path corpus) throws IOException {
+		ContextMemory parsedIns = new ContextMemory();
+		parser.parse_instructions(CompactLispTree.read(corpus).getRoot(), parsedIns);
+		compileSerially(parsedIns);
+		return parsedIns;
+	}
+
+	private static void compileSerially(ContextMemory parsedIns) {
+		for (ElaborationContext elab : parsedIns.getElabContexts()) {
+			elab.compileRefs();
+			parsedIns.collectPrims(elab);
+		}
+	}
+
+	private static long getUsedHeap() {
+		for (int i=0; i<3; ++i) {
+			System.gc();
+		}
+		long used = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				used += pool.getUsage().getUsed();
+			}
+		}
+		return used;
+	}
+
+	private static long getCollectionCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, gc.getCollectionCount());
+		}
+		return count;
+	}
+
+	private static void emitStrings(ContextMemory parsedIns, Path out) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		for (ElaborationContext elab : parsedIns.getElabContexts()) {
+			lines.add(elab.toSmemString());
+		}
+		for (ElaborationContext elab : parsedIns.getElabContexts()) {
+			lines.add(elab.getPrimSmemString());
+		}
+		Files.write(out, lines, StandardCharsets.UTF_8);
+	}
+
+	private static void emitStreaming(ContextMemory parsedIns, Path out) throws IOException {
+		try (BufferedWriter writer = Files.newBufferedWriter(out, StandardCharsets.UTF_8)) {
+			parsedIns.writeSmem(writer);
+		}
+	}
+
+	private static void resetPeakHeap() {
+		System.gc();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+			}
+		}
+	}
+
+	/**
+	 * @return The sum of the peak usage of each heap memory pool since the last reset
+	 */
+	private static long getPeakHeap() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+
+	/**
+	 * The tokenizing loop formerly used by DeltaParser.read_lispish_file, counting tokens instead of building objects.
+	 */
+	private static long countScannerTokens(Path corpus) throws IOException {
+		long count = 0;
+		try (Scanner scanner = new Scanner(corpus.toFile())) {
+			scanner.useDelimiter("[\\p{javaWhitespace}]+|(?<=\\()|(?=\\))");
+			while (scanner.hasNext()) {
+				String token = scanner.next();
+				if (token.startsWith("\"")) {
+					if (!token.endsWith("\"")) {
+						scanner.useDelimiter("\"");
+						token += scanner.next();
+					}
+					scanner.useDelimiter("[\\p{javaWhitespace}]+|(?<=\\()|(?=\\))");
+				}
+				else if (token.startsWith(";")) {
+					scanner.nextLine();
+					continue;
+				}
+				++count;
+			}
+		}
+		return count;
+	}
+
+	private static long countLexerTokens(Path corpus) throws IOException {
+		long count = 0;
+		try (DeltaLexer lexer = new DeltaLexer(corpus)) {
+			DeltaLexer.TokenType token;
+			while ((token = lexer.next()) != DeltaLexer.TokenType.EOF) {
+				if (token == DeltaLexer.TokenType.ATOM) {
+					lexer.getText();
+				}
+				++count;
+			}
+		}
+		return count;
+	}
+
+	private static void report(String name, long tokens, long nanos) {
+		System.out.println(String.format("%-12s %,d tokens in %.1f ms: %,.0f tokens/sec", name, tokens, nanos / 1000000.0, tokens / (nanos / 1000000000.0)));
+	}
+
+	private static Path makeCorpus(Path source, int copies) throws IOException {
+		String text = new String(Files.readAllBytes(source), StandardCharsets.UTF_8);
+		Path corpus = Files.createTempFile("delta-corpus", ".delta");
+		try (BufferedWriter out = Files.newBufferedWriter(corpus, StandardCharsets.UTF_8)) {
+			for (int i=0; i<copies; ++i) {
+				out.write(text);
+				out.newLine();
+			}
+		}
+		return corpus;
+	}
+}
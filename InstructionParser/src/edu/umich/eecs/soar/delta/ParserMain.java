@@ -1,13 +1,195 @@
 package edu.umich.eecs.soar.delta;
 
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 public class ParserMain {
 
+	/**
+	 * Usage: ParserMain [-o output.soar] [-b output.deltac] [-j threads] [-c cachedir] [-m blind|optimal] [-v] [-d] [-p maxRules] [-x] [-r] [-f profile] [-u warn|prune] [-a] [-t tuning.soar] [-e old.soar delta.soar] [-s] input.delta|input.deltac|directory ...
+	 * Directories are expanded to the .delta and .deltac files they contain, in name order.
+	 * With -b, the compiled instructions are also saved in binary form. Giving that .deltac file as an input later loads it without parsing or compiling.
+	 * With -c, unchanged problem-spaces are reused from the given compile cache directory instead of being recompiled.
+	 * With -m optimal, each group of a rule's multi-attribute branches with the same attribute is matched to the wm tree branches it overlaps most
+	 * (Hungarian matching per group), which usually gives smaller wm trees at some cost in compile time. Groups and rules are merged greedily
+	 * in turn, so the trees aren't guaranteed to be minimal. With -v, the wm tree size that blind merging would give is also reported, which merges every tree twice.
+	 * With -d, ref addresses that no condition of their rule uses are removed before the wm trees are compiled, and the nodes saved are reported.
+	 * With -p, problem-spaces with more than maxRules rules are split into sub-contexts of at most that many rules, selected by routing deltas.
+	 * With -x, each problem-space also gets a discrimination index of its deltas by their constant tests, for retrieving only the deltas that can match.
+	 * This only emits the index: no PROPs engine rules read it yet, so the agent still retrieves every delta of a problem-space.
+	 * With -r, each rule ranks its conditions from most to least selective, as estimated by SelectivityModel, in a ^prop-rank object
+	 * whose ^0, ^1, ... values are its ^prop Prims in that order. With -f, the estimates
+	 * are read from the given profile of measured condition pass rates, which also implies -r. No PROPs engine rules read the rank yet.
+	 * With -u, each problem-space's rules are checked for ones that can never fire or are subsumed by another rule with the same operator,
+	 * as described in RuleAnalyzer. With -u warn they are reported, and with -u prune they are also left out of the output.
+	 * With -a, the output is a file of Soar proposal productions for the rules, to source instead of the smem instructions. It can't be used with -c or -s.
+	 * With -t, a Soar file of multi-attributes and chunk singleton settings sized to the compiled instructions is also written, for the agent to source after the PROPs library.
+	 * With -e, the output is compared with the given earlier output, and a script of the problem-spaces that were added, changed or removed
+	 * is written to delta.soar, for DeltaEnvironment.applyInstructionDelta() to update an agent that loaded the earlier output. It can't be used with -a.
+	 * With -s, each problem-space is compiled and written as soon as it is read, on one thread, so very large inputs compile in bounded memory.
+	 * With no arguments, converts test_instructions01.delta as a basic test of the parser.
+	 */
 	public static void main(String[] args) {
-		// Basic test of parser
-		
+		if (args.length == 0) {
+			// Basic test of parser
+			DeltaParser parser = new DeltaParser();
+			parser.convert_file("test_instructions01.delta", "test_instructions01.soar");
+			return;
+		}
+
 		DeltaParser parser = new DeltaParser();
-		parser.convert_file("test_instructions01.delta", "test_instructions01.soar");
+		Path outPath = null;
+		List<Path> inPaths = new ArrayList<Path>();
+		Path binaryOutPath = null;
+		boolean streaming = false,
+				productions = false,
+				deltaOutput = false;
+		Path cacheDir = null;
+
+		for (int i=0; i<args.length; ++i) {
+			if (args[i].equals("-o") && i+1 < args.length) {
+				outPath = Paths.get(args[++i]);
+			}
+			else if (args[i].equals("-b") && i+1 < args.length) {
+				binaryOutPath = Paths.get(args[++i]);
+			}
+			else if (args[i].equals("-j") && i+1 < args.length) {
+				parser.setParallelism(Integer.parseInt(args[++i]));
+			}
+			else if (args[i].equals("-c") && i+1 < args.length) {
+				cacheDir = Paths.get(args[++i]);
+				try {
+					parser.setCompileCache(new CompileCache(cacheDir));
+				} catch (IOException e) {
+					e.printStackTrace();
+					System.exit(1);
+				}
+			}
+			else if (args[i].equals("-a")) {
+				productions = true;
+			}
+			else if (args[i].equals("-p") && i+1 < args.length) {
+				int maxRules = Integer.parseInt(args[++i]);
+				if (maxRules < 1) {
+					System.err.println("ERROR: -p needs a positive number of rules.");
+					System.exit(1);
+				}
+				parser.setMaxContextRules(maxRules);
+			}
+			else if (args[i].equals("-d")) {
+				parser.setEliminateDeadRefs(true);
+			}
+			else if (args[i].equals("-x")) {
+				parser.setBuildIndexes(true);
+			}
+			else if (args[i].equals("-r")) {
+				parser.setSelectivityModel(new SelectivityModel());
+			}
+			else if (args[i].equals("-f") && i+1 < args.length) {
+				SelectivityModel model = SelectivityModel.load(Paths.get(args[++i]));
+				if (model == null) {
+					System.exit(1);
+				}
+				parser.setSelectivityModel(model);
+			}
+			else if (args[i].equals("-t") && i+1 < args.length) {
+				parser.setTuningOutput(Paths.get(args[++i]));
+			}
+			else if (args[i].equals("-e") && i+2 < args.length) {
+				parser.setDeltaOutput(Paths.get(args[i+1]), Paths.get(args[i+2]));
+				deltaOutput = true;
+				i += 2;
+			}
+			else if (args[i].equals("-u") && i+1 < args.length) {
+				try {
+					parser.setRuleCheck(RuleAnalyzer.Mode.valueOf(args[++i].toUpperCase()));
+				} catch (IllegalArgumentException e) {
+					System.err.println("ERROR: Unknown rule check mode '" + args[i] + "'. Use 'warn' or 'prune'.");
+					System.exit(1);
+				}
+			}
+			else if (args[i].equals("-s")) {
+				streaming = true;
+			}
+			else if (args[i].equals("-v")) {
+				parser.setCompareMerge(true);
+			}
+			else if (args[i].equals("-m") && i+1 < args.length) {
+				try {
+					parser.setMergeMode(ElaborationContext.MergeMode.valueOf(args[++i].toUpperCase()));
+				} catch (IllegalArgumentException e) {
+					System.err.println("ERROR: Unknown merge mode '" + args[i] + "'. Use 'blind' or 'optimal'.");
+					System.exit(1);
+				}
+			}
+			else if (!addInputPath(Paths.get(args[i]), inPaths)) {
+				System.exit(1);
+			}
+		}
+
+		if (inPaths.isEmpty()) {
+			System.err.println("ERROR: No input .delta files given.");
+			System.exit(1);
+		}
+		if (binaryOutPath != null) {
+			if (streaming) {
+				System.err.println("ERROR: -b can't be used with -s, since streaming doesn't keep the compiled instructions.");
+				System.exit(1);
+			}
+			parser.setBinaryOutput(binaryOutPath);
+		}
+		if (productions) {
+			if (streaming || cacheDir != null) {
+				System.err.println("ERROR: -a can't be used with -s or -c, since productions are written from the parsed rules.");
+				System.exit(1);
+			}
+			if (deltaOutput) {
+				System.err.println("ERROR: -a can't be used with -e, since deltas are made from smem output.");
+				System.exit(1);
+			}
+			parser.setProductionOutput(true);
+		}
+		if (outPath == null) {
+			// Default to naming the output after the first input
+			String first = inPaths.get(0).toString();
+			int extension = (first.endsWith(".delta") || first.endsWith(DeltacFile.EXTENSION) ? first.lastIndexOf('.') : first.length());
+			outPath = Paths.get(first.substring(0, extension) + ".soar");
+		}
+
+		if (!(streaming ? parser.convert_files_streaming(inPaths, outPath) : parser.convert_files(inPaths, outPath))) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Add the given file to the list of inputs, or if it is a directory, all .delta and .deltac files in it sorted by name.
+	 * @return False if the path couldn't be read
+	 */
+	private static boolean addInputPath(Path path, List<Path> inPaths) {
+		if (!Files.isDirectory(path)) {
+			inPaths.add(path);
+			return true;
+		}
+
+		List<Path> dirPaths = new ArrayList<Path>();
+		try (DirectoryStream<Path> dir = Files.newDirectoryStream(path, "*.{delta,deltac}")) {
+			for (Path p : dir) {
+				dirPaths.add(p);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		Collections.sort(dirPaths);
+		inPaths.addAll(dirPaths);
 
+		return true;
 	}
 
 }
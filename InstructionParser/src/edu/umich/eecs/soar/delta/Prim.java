@@ -1,6 +1,9 @@
 package edu.umich.eecs.soar.delta;
 
-public class Prim {
+import java.io.IOException;
+import java.util.Objects;
+
+public class Prim implements SmemWritable {
 
 	enum PrimType {
 		// Conditions:
@@ -107,6 +110,12 @@ public class Prim {
 		}
 	}
 	
+	/**
+	 * The address of args that refer to a delta's consts (e.g. "const A" in "(== <ob> feature const A)") instead of to WM.
+	 * The attribute of such an arg is the index of the value in the delta's const object.
+	 */
+	public static final LispishObject CONST_ADDRESS = new LispishObject("props$const");
+	
 	private PrimType type;
 	private LispishObject address1,	// The ID reference for arg1
 				   		  address2;	// The ID reference for arg2 (if there is one)
@@ -129,20 +138,74 @@ public class Prim {
 		this.attr2 = attr2;
 	}
 	
-	public String toSmemString() {
+	public PrimType getType() { return type; }
+	public LispishObject getAddress1() { return address1; }
+	public LispishObject getAddress2() { return address2; }
+	public String getAttr1() { return attr1; }
+	public String getAttr2() { return attr2; }
+	
+	/**
+	 * Prims are equal if they have the same type and attributes and test the very same wm tree nodes.
+	 * This lets identical conditions from different rules share a single Prim. (See ContextMemory.internPrim())
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof Prim)) {
+			return false;
+		}
+		Prim other = (Prim) obj;
+		return type == other.type
+				&& address1 == other.address1
+				&& address2 == other.address2
+				&& Objects.equals(attr1, other.attr1)
+				&& Objects.equals(attr2, other.attr2);
+	}
+	
+	@Override
+	public int hashCode() {
+		return Objects.hash(type, System.identityHashCode(address1), attr1, System.identityHashCode(address2), attr2);
+	}
+	
+	/**
+	 * @return The "<...>" label for this Prim's object in the smem --add file.
+	 */
+	public String getSmemVarName() {
+		return "<prop-" + (type.isCondition() ? "C" : "A") + getSmemId() + ">";
+	}
+	
+	/**
+	 * @return A hash of this Prim's type, attributes and the labels of its addresses, which also names it for PROPs
+	 */
+	private String getSmemId() {
+		return new SmemId("prop").add(type.toString())
+				.add(attr1).add(address1 == null ? null : getAddressSmemName(address1))
+				.add(attr2).add(address2 == null ? null : getAddressSmemName(address2)).toString();
+	}
+	
+	/**
+	 * @return The smem value linking to the given arg address
+	 */
+	private static String getAddressSmemName(LispishObject address) {
+		return (address == CONST_ADDRESS ? "|props$const|" : address.getSmemVarName());
+	}
+	
+	@Override
+	public void writeSmem(Appendable out) throws IOException {
 		String AC = (type.isCondition() ? "C" : "A");
-		String retval = "(<prop-" + AC + this.hashCode() + "> ^name |_P" + AC + this.hashCode() + "|";
-		retval += "\r\n\t^prop-type " + type.toString().toLowerCase();
-		retval += "\r\n\t^attr1 " + attr1;
-		retval += "\r\n\t^address1 " + address1.getSmemVarName();
+		String id = getSmemId();
+		out.append("(<prop-").append(AC).append(id).append("> ^name |_P").append(AC).append(id).append("|");
+		out.append("\r\n\t^prop-type ").append(type.toString().toLowerCase());
+		out.append("\r\n\t^attr1 ").append(attr1);
+		out.append("\r\n\t^address1 ").append(getAddressSmemName(address1));
 		if (address2 != null) {
-			retval += "\r\n\t^attr2 " + attr2;
-			retval += "\r\n\t^address2 " + address2.getSmemVarName();
+			out.append("\r\n\t^attr2 ").append(attr2);
+			out.append("\r\n\t^address2 ").append(getAddressSmemName(address2));
 		}
 		
-		retval += ") \r\n";
-		
-		return retval;
+		out.append(") \r\n");
 	}
 
 }
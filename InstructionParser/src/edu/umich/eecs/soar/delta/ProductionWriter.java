@@ -0,0 +1,306 @@
+package edu.umich.eecs.soar.delta;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A second backend for parsed instructions, which translates each rule straight into a Soar proposal production instead of smem deltas.
+ * The productions are meant to be sourced in place of the smem --add instructions, alongside the rest of the PROPs engine.
+ *
+ * For each problem-space, two elaborations add an ^elab-context with its ^elab-context-name to the state it would be loaded in:
+ * the top state when ^V.task names it, or an operator no-change substate when the superstate operator has its name.
+ * This also keeps the engine from trying to retrieve that problem-space from smem. Each rule then becomes a production that proposes its
+ * operator, with a ^delta naming it like an smem delta would, when its conditions hold. Ref paths are matched from the ^topstate.
+ *
+ * The interpreted deltas resolve each address of each condition separately, so conditions that share a var, such as
+ * "(== <ob> feature const A) (== <ob> feature const B)", can be satisfied by different objects of a multi-attribute.
+ * To fire in the same states, the production matches each condition arg's ref path from S1 with its own Soar vars, like "<v-ob-1>" and "<v-ob-2>".
+ */
+public class ProductionWriter {
+
+	static final String HEADER = "#####################################################################################\r\n"
+							   + "# THIS FILE TRANSLATES INSTRUCTIONS INTO SOAR PRODUCTIONS FOR A PRECOMPILED PROPS AGENT #\r\n"
+							   + "#####################################################################################\r\n"
+							   + "\r\n";
+	static final String FOOTER = "";
+
+	private static final String STATE_VAR = "<s>",
+								TOPSTATE_VAR = "<ts>";
+
+	private final Appendable out;
+	private final Set<String> productionNames = new HashSet<String>();
+	private int bindings = 0;	// Numbers each matched ref path of the current rule
+
+	private ProductionWriter(Appendable out) {
+		this.out = out;
+	}
+
+	/**
+	 * Write productions for every problem-space of the given instructions.
+	 * The rules must still have their conditions and refs, so contexts loaded from the compile cache can't be written.
+	 * @param parsedIns The parsed instructions
+	 * @param out The destination for the productions
+	 * @return Success status. Problems are reported on stderr.
+	 * @throws IOException If the destination can't be written
+	 */
+	public static boolean write(ContextMemory parsedIns, Appendable out) throws IOException {
+		ProductionWriter writer = new ProductionWriter(out);
+		for (ElaborationContext elab : parsedIns.getElabContexts()) {
+			if (!writer.writeContext(elab)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean writeContext(ElaborationContext elab) throws IOException {
+		if (elab.isCached()) {
+			System.err.println("ERROR in ProductionWriter: problem-space '" + elab.getName() + "' was loaded from the compile cache, and has no rules to translate.");
+			return false;
+		}
+		if (elab.getRefs().size() != elab.getRules().size()) {
+			System.err.println("ERROR in ProductionWriter: not every rule of problem-space '" + elab.getName() + "' has one (ref ...).");
+			return false;
+		}
+
+		String name = elab.getName();
+		out.append("###\r\n# ").append(name.toUpperCase()).append("\r\n###\r\n");
+
+		// Mark the states this problem-space would be loaded in
+		out.append("sp {").append(uniqueName("elaborate*props*aot*" + name + "*task")).append("\r\n");
+		out.append("    (state ").append(STATE_VAR).append(" ^superstate nil\r\n");
+		out.append("               ^V.task |").append(name).append("|)\r\n");
+		writeContextMarker(name);
+		out.append("sp {").append(uniqueName("elaborate*props*aot*" + name + "*substate")).append("\r\n");
+		out.append("    (state ").append(STATE_VAR).append(" ^superstate.operator.name |").append(name).append("|\r\n");
+		out.append("               ^impasse no-change\r\n");
+		out.append("               ^attribute operator)\r\n");
+		writeContextMarker(name);
+		out.append("\r\n");
+
+		for (int r=0; r<elab.getRules().size(); ++r) {
+			if (!writeRule(name, elab.getRule(r), elab.getRefs().get(r))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void writeContextMarker(String name) throws IOException {
+		out.append("-->\r\n");
+		out.append("    (").append(STATE_VAR).append(" ^elab-context <pe>)\r\n");
+		out.append("    (<pe> ^elab-context-name |").append(name).append("|)\r\n");
+		out.append("}\r\n");
+	}
+
+	/**
+	 * Write the proposal production for one rule.
+	 * @return False if the rule refers to a var its ref doesn't lead to from S1
+	 */
+	private boolean writeRule(String contextName, Rule rule, WMERef ref) throws IOException {
+		bindings = 0;
+		List<String> conds = new ArrayList<String>();
+		List<String> paths = new ArrayList<String>();
+		int values = 0;
+
+		for (Condition c : rule.getConditions()) {
+			boolean const1 = c.idvar1.equals("const"),
+					const2 = (c.idvar2 != null && c.idvar2.equals("const"));
+			String arg1 = (const1 ? rule.getConst(Integer.parseInt(c.attribute1)) : null),
+				   arg2 = (const2 ? rule.getConst(Integer.parseInt(c.attribute2)) : null);
+
+			// Match the ref path of each var arg from S1 outward
+			String var1 = null, var2 = null;
+			if (!const1 && (var1 = addPathTo(c.idvar1, ref, paths, rule)) == null) {
+				return false;
+			}
+			if (c.idvar2 != null && !const2 && (var2 = addPathTo(c.idvar2, ref, paths, rule)) == null) {
+				return false;
+			}
+
+			// Unary tests
+			if (c.idvar2 == null) {
+				if (const1) {
+					// A const always exists, so only a negated const can change whether the rule fires
+					if (c.command == Prim.PrimType.NEGATION || c.command == Prim.PrimType.INEXISTENCE) {
+						System.err.println("WARNING: Rule " + rule.getName() + " negates a const, so it can never fire. Skipping it.");
+						return true;
+					}
+					continue;
+				}
+				boolean negated = (c.command == Prim.PrimType.NEGATION || c.command == Prim.PrimType.INEXISTENCE);
+				conds.add("(" + var1 + (negated ? " -^" : " ^") + c.attribute1 + ")");
+				continue;
+			}
+
+			String op = getTestOp(c.command);
+			if (op == null) {
+				System.err.println("ERROR in ProductionWriter: rule " + rule.getName() + " has a condition of unknown type " + c.command);
+				return false;
+			}
+
+			if (const1 && const2) {
+				// Both args are known now, so the test is either always or never true
+				if (!constTestHolds(c.command, arg1, arg2)) {
+					System.err.println("WARNING: Rule " + rule.getName() + " compares two consts that never pass " + c + ". Skipping it.");
+					return true;
+				}
+			}
+			else if (const2) {
+				conds.add(writeConstTest(var1, c.attribute1, c.command, op, arg2));
+			}
+			else if (const1) {
+				// Swap the args, so the const comes second and the order test is reversed.
+				// A const arg only has the one value, so it lacks the other arg's value exactly when they differ.
+				Prim.PrimType type = (c.command == Prim.PrimType.INEXISTENCE ? Prim.PrimType.INEQUALITY : c.command);
+				conds.add(writeConstTest(var2, c.attribute2, type, reverseOp(getTestOp(type)), arg1));
+			}
+			else {
+				String val = "<c" + (++values) + ">";
+				if (c.command == Prim.PrimType.INEXISTENCE) {
+					// The second arg's value must not be under the first arg
+					conds.add("(" + var2 + " ^" + c.attribute2 + " " + val + ")");
+					conds.add("(" + var1 + " -^" + c.attribute1 + " " + val + ")");
+				}
+				else {
+					conds.add("(" + var2 + " ^" + c.attribute2 + " " + val + ")");
+					conds.add("(" + var1 + " ^" + c.attribute1 + " " + (op.isEmpty() ? "" : op + " ") + val + ")");
+				}
+			}
+		}
+
+		out.append("sp {").append(uniqueName("propose*props*aot*" + contextName + "*" + rule.getName())).append("\r\n");
+		if (!rule.getDescription().isEmpty()) {
+			out.append("    \"").append(rule.getDescription().replace("\"", "\\\"")).append("\"\r\n");
+		}
+		out.append("    (state ").append(STATE_VAR).append(" ^elab-context.elab-context-name |").append(contextName).append("|\r\n");
+		out.append("               ^topstate ").append(TOPSTATE_VAR).append(")\r\n");
+		for (String cond : paths) {
+			out.append("    ").append(cond).append("\r\n");
+		}
+		for (String cond : conds) {
+			out.append("    ").append(cond).append("\r\n");
+		}
+		out.append("-->\r\n");
+		out.append("    (").append(STATE_VAR).append(" ^operator <o> + =)\r\n");
+		out.append("    (<o> ^name |").append(rule.getAction()).append("|\r\n");
+		out.append("         ^delta <d>)\r\n");
+		out.append("    (<d> ^op-name |").append(rule.getAction()).append("|)\r\n");
+		out.append("    (dont-learn ").append(STATE_VAR).append(")\r\n");
+		out.append("}\r\n\r\n");
+		return true;
+	}
+
+	/**
+	 * Add the conditions that match the given var's ref path from S1, with Soar vars of their own.
+	 * @return The Soar var bound to the var, or null if the var has no address, or its addresses don't lead back to S1
+	 */
+	private String addPathTo(String var, WMERef ref, List<String> paths, Rule rule) {
+		List<WMEAddress> chain = new ArrayList<WMEAddress>();
+		String cur = var;
+		while (!cur.equals("S1")) {
+			WMEAddress addr = ref.getAddressTo(cur);
+			if (addr == null || chain.size() > ref.getAddresses().size()) {
+				System.err.println("ERROR in ProductionWriter: Variable '" + cur + "' in rule " + rule.getName() + " isn't referenced from S1");
+				return null;
+			}
+			chain.add(addr);
+			cur = addr.getIDName();
+		}
+
+		String binding = "-" + (++bindings), from = TOPSTATE_VAR;
+		for (int i=chain.size()-1; i>=0; --i) {
+			WMEAddress addr = chain.get(i);
+			String to = toSoarVar(addr.getVarName(), binding);
+			paths.add("(" + from + " ^" + addr.getPathString() + " " + to + ")");
+			from = to;
+		}
+		return from;
+	}
+
+	/**
+	 * @return The Soar condition for a test of the given arg against a const value
+	 */
+	private static String writeConstTest(String id, String attr, Prim.PrimType type, String op, String value) {
+		if (type == Prim.PrimType.INEXISTENCE) {
+			return "(" + id + " -^" + attr + " " + value + ")";
+		}
+		return "(" + id + " ^" + attr + " " + (op.isEmpty() ? "" : op + " ") + value + ")";
+	}
+
+	/**
+	 * @return The Soar value test that compares arg1's value to arg2's (e.g. "<" for LESS_THAN, "" for EQUALITY), or null for a non-binary type
+	 */
+	private static String getTestOp(Prim.PrimType type) {
+		switch (type) {
+		case EQUALITY:		return "";
+		case INEQUALITY:	return "<>";
+		case INEXISTENCE:	return "";		// Written as a negated condition instead
+		case TYPE_EQUALITY:	return "<=>";
+		case LESS_THAN:		return "<";
+		case GREATER_THAN:	return ">";
+		case LESS_EQUAL:	return "<=";
+		case GREATER_EQUAL:	return ">=";
+		default:			return null;
+		}
+	}
+
+	/**
+	 * @return The test op for the same comparison with its args swapped
+	 */
+	private static String reverseOp(String op) {
+		switch (op) {
+		case "<":	return ">";
+		case ">":	return "<";
+		case "<=":	return ">=";
+		case ">=":	return "<=";
+		default:	return op;
+		}
+	}
+
+	/**
+	 * @return Whether a test between two const values passes, comparing numerically when both are numbers
+	 */
+	private static boolean constTestHolds(Prim.PrimType type, String a, String b) {
+		int cmp;
+		try {
+			cmp = Double.compare(Double.parseDouble(a), Double.parseDouble(b));
+		} catch (NumberFormatException e) {
+			cmp = a.compareTo(b);
+		}
+		switch (type) {
+		case EQUALITY:		return cmp == 0;
+		case INEQUALITY:
+		case INEXISTENCE:	return cmp != 0;
+		case TYPE_EQUALITY:	return true;
+		case LESS_THAN:		return cmp < 0;
+		case GREATER_THAN:	return cmp > 0;
+		case LESS_EQUAL:	return cmp <= 0;
+		case GREATER_EQUAL:	return cmp >= 0;
+		default:			return false;
+		}
+	}
+
+	/**
+	 * @return The Soar var for a rule var in the given binding of its path, renamed so it can't collide with the production's own vars
+	 */
+	private static String toSoarVar(String var, String binding) {
+		String inner = (var.startsWith("<") && var.endsWith(">") ? var.substring(1, var.length() - 1) : var);
+		return "<v-" + inner + binding + ">";
+	}
+
+	/**
+	 * @return The given production name, or a numbered variant of it if it was already used
+	 */
+	private String uniqueName(String name) {
+		String retval = name;
+		for (int n = 2; !productionNames.add(retval); ++n) {
+			retval = name + "*" + n;
+		}
+		return retval;
+	}
+
+}
@@ -1,26 +1,37 @@
 package edu.umich.eecs.soar.delta;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
-public class Rule {
+public class Rule implements SmemWritable {
 	
 	private String name;
 	private List<String> consts;
+	private Map<String, Integer> constIndices;	// The index of each value in consts
+	private ConstTuple constTuple;				// The shared object for consts, once interned
 	//private List<WMERef> refs;
 	private List<Condition> conditions;
 	private List<Prim> condPrims;
+	private boolean propsRanked;	// Whether condPrims were ordered by selectivity, and the order is written as a ^prop-rank object
 	private String action;			// Only a single action; might refer to a context though
 	private String description;
+	private String contextName;		// The problem-space this rule is in, for its smem var name
 	
 	public Rule(String name) {
 		this.name = name;
 		this.consts = new ArrayList<String>(4);
+		this.constIndices = new HashMap<String, Integer>(4);
+		this.constTuple = null;
 		//this.refs = new ArrayList<WMERef>(4);
 		this.conditions = new ArrayList<Condition>(4);
 		this.condPrims = new ArrayList<Prim>(4);
+		this.propsRanked = false;
 		this.action = "";
 		this.description = "";
+		this.contextName = null;
 		
 		// Add default WMERefs
 	}
@@ -28,8 +39,13 @@ public class Rule {
 	//public void addRef(WMERef ref) { this.refs.add(ref); }
 	public void addCondition(Condition c) { this.conditions.add(c); }
 	public void addCondPrim(Prim p) { this.condPrims.add(p); }
+	public void setCondPrim(int index, Prim p) { this.condPrims.set(index, p); }
+	public void clearCondPrims() { this.condPrims.clear(); }
 	public void setAction(String action) { this.action = action; }
 	public void setDescription(String desc) { this.description = desc; }
+	public void setPropsRanked(boolean ranked) { this.propsRanked = ranked; }
+	public boolean isPropsRanked() { return propsRanked; }
+	void setContextName(String name) { this.contextName = name; }
 	
 	/**
 	 * Add the given String value to the list of consts for this rule.
@@ -38,17 +54,40 @@ public class Rule {
 	 * @return The index of the added value in the consts list for this rule
 	 */
 	public int addConst(String c) {
-		int index = consts.indexOf(c);
-		if (index != -1) {
+		Integer index = constIndices.get(c);
+		if (index != null) {
 			return index;
 		}
+		index = consts.size();
 		this.consts.add(c);
-		return consts.size()-1;
+		constIndices.put(c, index);
+		constTuple = null;
+		return index;
+	}
+	
+	/**
+	 * Link this rule to the given shared object for its consts.
+	 * @param tuple A ConstTuple with the same values as this rule's consts
+	 */
+	public void setConstTuple(ConstTuple tuple) { this.constTuple = tuple; }
+	
+	/**
+	 * @return The object for this rule's consts, or null if it has none. If no shared object was set, this rule gets its own.
+	 */
+	public ConstTuple getConstTuple() {
+		if (constTuple == null && consts.size() > 0) {
+			constTuple = new ConstTuple(new ArrayList<String>(consts));
+		}
+		return constTuple;
 	}
 	
 	public String getName() { return name; }
 	public String getConst(int index) { return consts.get(index); }
-	public int getConstInd(String c) { return consts.indexOf(c); }
+	public int getConstInd(String c) {
+		Integer index = constIndices.get(c);
+		return (index == null ? -1 : index);
+	}
+	public List<String> getConsts() { return consts; }
 	//public WMERef getRef(int index) { return refs.get(index); }
 	public Condition getCondition(int index) { return conditions.get(index); }
 	public Prim getCondPrim(int index) { return condPrims.get(index); }
@@ -72,27 +111,54 @@ public class Rule {
 		return null;
 	}*/
 	
-	public String toSmemString() {
-		String retval = "(<drule-" + this.hashCode() + "> ^op-name |" + action + "|";
+	/**
+	 * @return The "<...>" label for this rule's delta object in the smem --add file.
+	 */
+	public String getSmemVarName() {
+		SmemId id = new SmemId("drule").add(contextName).add(name).add(action).add(consts.size());
+		for (String c : consts) {
+			id.add(c);
+		}
+		for (Prim p : condPrims) {
+			id.add(p.getSmemVarName());
+		}
+		return "<drule-" + id + ">";
+	}
+	
+	/**
+	 * @return The "<...>" label for the object that ranks this rule's conditions, if they were ordered by selectivity.
+	 */
+	public String getRankSmemVarName() {
+		return "<R" + new SmemId("R").add(getSmemVarName()) + ">";
+	}
+	
+	@Override
+	public void writeSmem(Appendable out) throws IOException {
+		out.append("(").append(getSmemVarName()).append(" ^op-name |").append(action).append("|");
 		
-		// Print the link to the consts object
-		if (consts != null) {
-			retval += "\r\n\t^const <Q" + consts.hashCode() + "> ";
+		// Print the link to the consts object, which is printed by the context since rules can share it
+		if (consts.size() > 0) {
+			out.append("\r\n\t^const ").append(getConstTuple().getSmemVarName()).append(" ");
 		}
 		
 		// Print out the conditions
-		/*for (Prim p : conditions) {
-			retval += "\r\n\t^prop <prop-C" + p.hashCode() + "> ";
+		for (Prim p : condPrims) {
+			out.append("\r\n\t^prop ").append(p.getSmemVarName()).append(" ");
 		}
-		reval += ")\r\n";*/
 		
-		// Print out the consts for this rule
-		if (consts != null && consts.size() > 0) {
-			retval += "(<Q" + consts.hashCode() + "> ";
-			for (int i=0; i<consts.size(); ++i) {
-				retval += "\r\n\t^" + i + " " + consts.get(i);
+		// smem keeps no order among the ^prop values, so a selectivity order is given by this rule's own index object, most selective at ^0.
+		// It can't go on the Prims themselves, since other rules share them.
+		boolean ranked = (propsRanked && condPrims.size() > 0);
+		if (ranked) {
+			out.append("\r\n\t^prop-rank ").append(getRankSmemVarName()).append(" ");
+		}
+		out.append(")\r\n");
+		if (ranked) {
+			out.append("(").append(getRankSmemVarName()).append(" ");
+			for (int i=0; i<condPrims.size(); ++i) {
+				out.append("\r\n\t^").append(String.valueOf(i)).append(" ").append(condPrims.get(i).getSmemVarName());
 			}
-			retval += ")\r\n";
+			out.append(")\r\n");
 		}
 		
 		// Print out the rule-specific WM refs
@@ -102,7 +168,5 @@ public class Rule {
 		}*/
 		
 		// TODO: This only covers plain elaboration context rules, not apply actions
-		
-		return retval;
 	}
 }
@@ -0,0 +1,307 @@
+package edu.umich.eecs.soar.delta;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * A static check of a compiled problem-space's rules for ones that can never fire, and ones that never add a proposal of their own.
+ * A rule can never fire if a condition compares two consts and is false, such as "(== const A const B)" or "(< const 5 const 2)".
+ * Tests on wm nodes aren't contradictions, even together, since a node such as wm.object stands for every matching object,
+ * and a PROPs condition holds if any of them satisfies it. So "(== &lt;ob&gt; feature const A) (== &lt;ob&gt; feature const C)" and
+ * "(- &lt;ob&gt; shape) (== &lt;ob&gt; shape const v7)" can both hold, on different objects or values.
+ *
+ * A rule is subsumed by another rule of the problem-space with the same operator if every condition Prim of the other rule is also one of its own,
+ * so the other rule proposes the operator whenever it does. Of rules with the same conditions and operator, all but the first are subsumed.
+ * Rules that can never fire don't subsume others.
+ */
+public class RuleAnalyzer {
+
+	/**
+	 * What to do with the rules found by the check.
+	 */
+	public enum Mode {
+		/** Print a warning for each rule found, and leave them in. */
+		WARN,
+		/** Print a warning for each rule found, and remove them from their problem-space. */
+		PRUNE
+	}
+
+	/**
+	 * A condition Prim compared by what it tests: the wm nodes by identity, like in Prim.equals(), and const args by their value instead of their index.
+	 * The args of symmetric tests are put in a fixed order.
+	 */
+	private static final class PrimKey {
+		final Prim.PrimType type;
+		final LispishObject address1, address2;
+		final String attr1, attr2;
+
+		PrimKey(Prim.PrimType type, LispishObject address1, String attr1, LispishObject address2, String attr2) {
+			if (address2 != null && isSymmetric(type) && rank(address1, attr1) > rank(address2, attr2)) {
+				this.type = type;
+				this.address1 = address2;
+				this.attr1 = attr2;
+				this.address2 = address1;
+				this.attr2 = attr1;
+			}
+			else {
+				this.type = type;
+				this.address1 = address1;
+				this.attr1 = attr1;
+				this.address2 = address2;
+				this.attr2 = attr2;
+			}
+		}
+
+		private static boolean isSymmetric(Prim.PrimType type) {
+			return (type == Prim.PrimType.EQUALITY || type == Prim.PrimType.INEQUALITY || type == Prim.PrimType.TYPE_EQUALITY);
+		}
+
+		private static long rank(LispishObject address, String attr) {
+			// Consts sort last, so that "(== const A <ob> foo)" and "(== <ob> foo const A)" compare equal
+			return (address == Prim.CONST_ADDRESS ? Long.MAX_VALUE : ((long) System.identityHashCode(address) << 32) + attr.hashCode());
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof PrimKey)) {
+				return false;
+			}
+			PrimKey other = (PrimKey) obj;
+			return type == other.type && address1 == other.address1 && address2 == other.address2
+					&& Objects.equals(attr1, other.attr1) && Objects.equals(attr2, other.attr2);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(type, System.identityHashCode(address1), attr1, System.identityHashCode(address2), attr2);
+		}
+	}
+
+	private final ElaborationContext elab;
+	private final Map<Rule, String> unsatisfiable = new LinkedHashMap<Rule, String>();	// Each rule that can never fire, and why
+	private final Map<Rule, Rule> subsumed = new LinkedHashMap<Rule, Rule>();			// Each subsumed rule, and a rule that subsumes it
+
+	/**
+	 * Check the rules of the given problem-space.
+	 * @param elab A problem-space whose rules' conditions have been compiled to Prims, and not yet collected into its ContextMemory
+	 */
+	public RuleAnalyzer(ElaborationContext elab) {
+		this.elab = elab;
+
+		List<Set<PrimKey>> ruleKeys = new ArrayList<Set<PrimKey>>(elab.getRules().size());
+		for (Rule rule : elab.getRules()) {
+			Set<PrimKey> keys = getKeys(rule);
+			ruleKeys.add(keys);
+			String reason = findContradiction(keys);
+			if (reason != null) {
+				unsatisfiable.put(rule, reason);
+			}
+		}
+		findSubsumed(ruleKeys);
+	}
+
+	/**
+	 * @return True if some rule can never fire or is subsumed
+	 */
+	public boolean hasFindings() { return !(unsatisfiable.isEmpty() && subsumed.isEmpty()); }
+
+	public int getUnsatisfiableCount() { return unsatisfiable.size(); }
+	public int getSubsumedCount() { return subsumed.size(); }
+
+	/**
+	 * @return The number of distinct condition Prims of the problem-space's rules, which PROPs evaluates each decision the problem-space is loaded.
+	 * Prims that several rules share are interned into one by ContextMemory.collectPrims(), so they are counted once.
+	 */
+	public int getConditionCount() {
+		Set<Prim> prims = new HashSet<Prim>();
+		for (Rule rule : elab.getRules()) {
+			prims.addAll(rule.getCondPrims());
+		}
+		return prims.size();
+	}
+
+	/**
+	 * @return The number of distinct condition Prims that only the rules found use, which PROPs wouldn't need to evaluate without them.
+	 * Prims that a kept rule shares aren't counted.
+	 */
+	public int getFoundConditionCount() {
+		Set<Prim> found = new HashSet<Prim>(),
+				  kept = new HashSet<Prim>();
+		for (Rule rule : elab.getRules()) {
+			(unsatisfiable.containsKey(rule) || subsumed.containsKey(rule) ? found : kept).addAll(rule.getCondPrims());
+		}
+		found.removeAll(kept);
+		return found.size();
+	}
+
+	/**
+	 * Print a warning for each rule found.
+	 * @param removing Whether the rules are being removed, to say so in each warning
+	 */
+	public void printWarnings(boolean removing) {
+		String suffix = (removing ? " Removing it." : "");
+		for (Map.Entry<Rule, String> entry : unsatisfiable.entrySet()) {
+			System.err.println("WARNING: Rule '" + entry.getKey().getName() + "' in problem-space '" + elab.getName() + "' can never fire: "
+					+ entry.getValue() + "." + suffix);
+		}
+		for (Map.Entry<Rule, Rule> entry : subsumed.entrySet()) {
+			System.err.println("WARNING: Rule '" + entry.getKey().getName() + "' in problem-space '" + elab.getName() + "' is subsumed by rule '"
+					+ entry.getValue().getName() + "', which proposes operator '" + entry.getKey().getAction() + "' whenever it does." + suffix);
+		}
+	}
+
+	/**
+	 * Remove the rules found from the problem-space, with their refs.
+	 * The compiled wm tree keeps any nodes that only the removed rules used, until the problem-space is compiled again with recompileRefs().
+	 */
+	public void prune() {
+		Set<Rule> found = new HashSet<Rule>(unsatisfiable.keySet());
+		found.addAll(subsumed.keySet());
+		elab.removeRules(found);
+	}
+
+	private static Set<PrimKey> getKeys(Rule rule) {
+		Set<PrimKey> retval = new LinkedHashSet<PrimKey>();
+		for (Prim prim : rule.getCondPrims()) {
+			retval.add(new PrimKey(prim.getType(), prim.getAddress1(), getArgAttr(rule, prim.getAddress1(), prim.getAttr1()),
+					prim.getAddress2(), getArgAttr(rule, prim.getAddress2(), prim.getAttr2())));
+		}
+		return retval;
+	}
+
+	/**
+	 * @return The attribute of a Prim arg, or the const value itself for a const arg
+	 */
+	private static String getArgAttr(Rule rule, LispishObject address, String attr) {
+		return (address == Prim.CONST_ADDRESS ? rule.getConst(Integer.parseInt(attr)) : attr);
+	}
+
+	/**
+	 * Only tests between two consts are checked, since those are the only tests that are false for every binding of the rule.
+	 * A test on a wm node, even "(- &lt;ob&gt; shape)" beside "(== &lt;ob&gt; shape const v7)", can hold on one of the several objects the node stands for.
+	 * @return Why the conditions of a rule with the given keys can't all hold, or null if no contradiction was found
+	 */
+	private static String findContradiction(Set<PrimKey> keys) {
+		for (PrimKey key : keys) {
+			if (key.address1 == Prim.CONST_ADDRESS && key.address2 == Prim.CONST_ADDRESS && !evaluateConsts(key.type, key.attr1, key.attr2)) {
+				return "(" + key.type.toString().toLowerCase() + " const " + key.attr1 + " const " + key.attr2 + ") is false";
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Evaluate a test between two const values. Comparisons are only evaluated between numbers.
+	 * @return False if the test is certainly false
+	 */
+	private static boolean evaluateConsts(Prim.PrimType type, String value1, String value2) {
+		switch (type) {
+		case EQUALITY:
+			return value1.equals(value2);
+		case INEQUALITY:
+			return !value1.equals(value2);
+		case LESS_THAN:
+		case GREATER_THAN:
+		case LESS_EQUAL:
+		case GREATER_EQUAL:
+			double a, b;
+			try {
+				a = Double.parseDouble(value1);
+				b = Double.parseDouble(value2);
+			} catch (NumberFormatException e) {
+				return true;
+			}
+			switch (type) {
+			case LESS_THAN:
+				return a < b;
+			case GREATER_THAN:
+				return a > b;
+			case LESS_EQUAL:
+				return a <= b;
+			default:
+				return a >= b;
+			}
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * Find the rules subsumed by another satisfiable rule with the same operator.
+	 * Candidates for being subsumed by a rule are only looked for among the rules that share its least common condition.
+	 */
+	private void findSubsumed(List<Set<PrimKey>> ruleKeys) {
+		List<Rule> rules = elab.getRules();
+
+		// Group the satisfiable rules by operator, and index each group's rules by condition
+		Map<String, List<Integer>> byAction = new LinkedHashMap<String, List<Integer>>();
+		for (int r=0; r<rules.size(); ++r) {
+			if (unsatisfiable.containsKey(rules.get(r))) {
+				continue;
+			}
+			List<Integer> group = byAction.get(rules.get(r).getAction());
+			if (group == null) {
+				group = new ArrayList<Integer>();
+				byAction.put(rules.get(r).getAction(), group);
+			}
+			group.add(r);
+		}
+
+		for (List<Integer> group : byAction.values()) {
+			if (group.size() < 2) {
+				continue;
+			}
+			Map<PrimKey, List<Integer>> withKey = new HashMap<PrimKey, List<Integer>>();
+			for (int r : group) {
+				for (PrimKey key : ruleKeys.get(r)) {
+					List<Integer> list = withKey.get(key);
+					if (list == null) {
+						list = new ArrayList<Integer>();
+						withKey.put(key, list);
+					}
+					list.add(r);
+				}
+			}
+
+			for (int general : group) {
+				if (subsumed.containsKey(rules.get(general))) {
+					continue;	// A rule that subsumes it subsumes the same rules
+				}
+				Set<PrimKey> generalKeys = ruleKeys.get(general);
+				List<Integer> candidates = group;
+				for (PrimKey key : generalKeys) {
+					if (withKey.get(key).size() < candidates.size()) {
+						candidates = withKey.get(key);
+					}
+				}
+
+				for (int specific : candidates) {
+					Set<PrimKey> specificKeys = ruleKeys.get(specific);
+					if (specific == general || subsumed.containsKey(rules.get(specific)) || !specificKeys.containsAll(generalKeys)) {
+						continue;
+					}
+					// Of two rules with the same conditions, keep the first
+					if (specificKeys.size() > generalKeys.size() || specific > general) {
+						subsumed.put(rules.get(specific), rules.get(general));
+					}
+				}
+			}
+		}
+
+		// Name a subsuming rule that is kept
+		for (Map.Entry<Rule, Rule> entry : subsumed.entrySet()) {
+			Rule general = entry.getValue();
+			while (subsumed.containsKey(general)) {
+				general = subsumed.get(general);
+			}
+			entry.setValue(general);
+		}
+	}
+}
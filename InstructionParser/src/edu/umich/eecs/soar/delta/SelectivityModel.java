@@ -0,0 +1,176 @@
+package edu.umich.eecs.soar.delta;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Estimates how often each condition Prim of a rule is true, so that rules can rank their most selective conditions first.
+ * smem keeps no order among a delta's ^prop values, so a ranked rule also links a ^prop-rank object that lists its Prims by index (see Rule.writeSmem()).
+ * Without measurements, a constant equality test is assumed most selective, then other tests against constants, then existence tests,
+ * and then comparisons between two WM addresses, which are also the most costly to match since either side may be a multi-attribute.
+ *
+ * A profile from earlier runs can give measured rates instead. Each line of a profile holds a pass rate from 0 to 1 and a condition signature,
+ * separated by a tab, such as "0.02	equality wm.object feature const A". Blank lines and lines starting with '#' are ignored.
+ * A signature names the Prim type and each arg's S1 path and attribute, with const args shown as "const" and their value (see signatureOf()).
+ */
+public class SelectivityModel {
+
+	/** The assumed pass rates of each kind of condition, when there is no measured rate. */
+	public static final double CONST_EQUALITY_RATE = 0.1,
+							   CONST_COMPARISON_RATE = 0.3,
+							   EXISTENCE_RATE = 0.5,
+							   ADDRESS_COMPARISON_RATE = 0.8;
+
+	private final Map<String, Double> measuredRates;
+	private final String id;
+
+	/**
+	 * Make a model that only uses the assumed rates.
+	 */
+	public SelectivityModel() {
+		this(new HashMap<String, Double>(), "default");
+	}
+
+	private SelectivityModel(Map<String, Double> measuredRates, String id) {
+		this.measuredRates = measuredRates;
+		this.id = id;
+	}
+
+	/**
+	 * Read measured pass rates from a profile file. Malformed lines are reported and skipped.
+	 * @param profile The profile to read
+	 * @return The model, or null if the file couldn't be read
+	 */
+	public static SelectivityModel load(Path profile) {
+		List<String> lines;
+		try {
+			lines = Files.readAllLines(profile, StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			System.err.println("ERROR in SelectivityModel.load(): Could not read profile " + profile + ": " + e.getMessage());
+			return null;
+		}
+
+		Map<String, Double> rates = new HashMap<String, Double>();
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);	// Every Java platform is required to support SHA-256
+		}
+		for (int l=0; l<lines.size(); ++l) {
+			String line = lines.get(l).trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			int tab = line.indexOf('\t');
+			try {
+				double rate = Double.parseDouble(line.substring(0, Math.max(tab, 0)));
+				if (tab < 0 || rate < 0 || rate > 1) {
+					throw new NumberFormatException();
+				}
+				String signature = line.substring(tab + 1).trim();
+				rates.put(signature, rate);
+				digest.update((rate + "\t" + signature + "\n").getBytes(StandardCharsets.UTF_8));
+			} catch (NumberFormatException e) {
+				System.err.println("WARNING: Skipping line " + (l+1) + " of profile " + profile + ": expected a rate from 0 to 1, a tab, and a signature.");
+			}
+		}
+
+		System.out.println("Read " + rates.size() + " measured condition rate(s) from " + profile + ".");
+		// Key the cache on the rates read, in file order, so any change to them compiles anew
+		StringBuilder id = new StringBuilder("profile");
+		for (byte b : digest.digest()) {
+			id.append(Character.forDigit((b >> 4) & 0xF, 16));
+			id.append(Character.forDigit(b & 0xF, 16));
+		}
+		return new SelectivityModel(rates, id.toString());
+	}
+
+	/**
+	 * @return A short identifier of the rates this model uses, for CompileCache keys
+	 */
+	public String getId() { return id; }
+
+	/**
+	 * Estimate how often the given condition Prim of a rule is true.
+	 * @param rule The rule the Prim belongs to, whose consts give the values of const args
+	 * @param prim A condition Prim of the rule
+	 * @return The measured rate from the profile if there is one, or else the assumed rate for its kind of test
+	 */
+	public double estimate(Rule rule, Prim prim) {
+		Double measured = measuredRates.get(signatureOf(rule, prim));
+		if (measured != null) {
+			return measured;
+		}
+
+		boolean constArg = (prim.getAddress1() == Prim.CONST_ADDRESS || prim.getAddress2() == Prim.CONST_ADDRESS);
+		if (prim.getAddress2() == null) {
+			return EXISTENCE_RATE;
+		}
+		if (constArg) {
+			return (prim.getType() == Prim.PrimType.EQUALITY ? CONST_EQUALITY_RATE : CONST_COMPARISON_RATE);
+		}
+		return ADDRESS_COMPARISON_RATE;
+	}
+
+	/**
+	 * Sort the condition Prims of the given compiled rule from most to least selective, and mark the rule to write that rank.
+	 * Prims with equal estimates keep their source order.
+	 * @param rule A rule whose conditions have been compiled to Prims
+	 */
+	public void order(final Rule rule) {
+		List<Prim> prims = rule.getCondPrims();
+		final Map<Prim, Double> estimates = new IdentityHashMap<Prim, Double>();
+		for (Prim prim : prims) {
+			estimates.put(prim, estimate(rule, prim));
+		}
+		Collections.sort(prims, new Comparator<Prim>() {
+			@Override
+			public int compare(Prim a, Prim b) {
+				return Double.compare(estimates.get(a), estimates.get(b));
+			}
+		});
+		rule.setPropsRanked(true);
+	}
+
+	/**
+	 * Get the profile signature of a condition Prim, such as "equality wm.object feature const A" or "inequality wm.object foo wm.object foo".
+	 * @param rule The rule the Prim belongs to, whose consts give the values of const args
+	 * @param prim A condition Prim of the rule
+	 * @return The signature
+	 */
+	public static String signatureOf(Rule rule, Prim prim) {
+		StringBuilder retval = new StringBuilder(prim.getType().toString().toLowerCase());
+		appendArg(retval, rule, prim.getAddress1(), prim.getAttr1());
+		if (prim.getAddress2() != null) {
+			appendArg(retval, rule, prim.getAddress2(), prim.getAttr2());
+		}
+		return retval.toString();
+	}
+
+	private static void appendArg(StringBuilder out, Rule rule, LispishObject address, String attr) {
+		if (address == Prim.CONST_ADDRESS) {
+			out.append(" const ").append(rule.getConst(Integer.parseInt(attr)));
+			return;
+		}
+
+		// Name the wm-space node by the attributes leading to it from the state root
+		List<String> path = new ArrayList<String>();
+		for (LispishObject node = address; node.getParent() != null; node = node.getParent()) {
+			path.add(node.getString(0));
+		}
+		Collections.reverse(path);
+		out.append(' ').append(path.isEmpty() ? "S1" : String.join(".", path)).append(' ').append(attr);
+	}
+}
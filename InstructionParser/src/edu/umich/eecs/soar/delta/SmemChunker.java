@@ -0,0 +1,99 @@
+package edu.umich.eecs.soar.delta;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits compiled instructions into a series of complete "smem --add {...}" commands, to be run one at a time in an agent
+ * (e.g. through Agent.ExecuteCommandLine()) instead of writing and sourcing a .soar file.
+ * The "<...>" variables of an smem --add command are local to that command, so a problem-space's text and its Prims are never split between commands.
+ * Whole problem-spaces are batched into each command until it reaches the chunk size. A problem-space larger than that gets a command of its own.
+ * The section header comments of the .soar file are left out, since they are only for readers of the file.
+ */
+public class SmemChunker {
+
+	/**
+	 * The default number of chars of smem text batched into each command.
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 1 << 18;
+
+	private static final String COMMAND_START = "smem --add {\r\n",
+								COMMAND_END = "}\r\n";
+
+	private final int chunkSize;
+	private final List<String> chunks = new ArrayList<String>(),
+							   labels = new ArrayList<String>();
+	private final StringBuilder curChunk = new StringBuilder();
+	private String firstName = null,	// The first and last problem-spaces in the current chunk
+				   lastName = null;
+
+	/**
+	 * @param chunkSize The number of chars of smem text to batch into each command, at least
+	 */
+	public SmemChunker(int chunkSize) {
+		this.chunkSize = Math.max(1, chunkSize);
+	}
+
+	/**
+	 * Split the given compiled instructions into smem --add commands of the default size.
+	 * @param compiledIns Instructions whose problem-spaces have all been compiled, and whose Prims have been collected
+	 * @return The chunker holding the commands
+	 */
+	public static SmemChunker chunk(ContextMemory compiledIns) {
+		SmemChunker retval = new SmemChunker(DEFAULT_CHUNK_SIZE);
+		retval.addContexts(compiledIns);
+		retval.finish();
+		return retval;
+	}
+
+	/**
+	 * Add the text of every problem-space of the given instructions, and the Prims it links to, to the commands.
+	 * @param compiledIns Instructions whose problem-spaces have all been compiled, and whose Prims have been collected
+	 */
+	public void addContexts(ContextMemory compiledIns) {
+		for (ElaborationContext elab : compiledIns.getElabContexts()) {
+			if (curChunk.length() == 0) {
+				curChunk.append(COMMAND_START);
+				firstName = elab.getName();
+			}
+			lastName = elab.getName();
+
+			try {
+				elab.writeSmem(curChunk);
+				curChunk.append("\r\n");
+				elab.writePrimSmem(curChunk);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);	// Shouldn't happen: StringBuilder doesn't throw
+			}
+
+			if (curChunk.length() >= chunkSize) {
+				finish();
+			}
+		}
+	}
+
+	/**
+	 * End the current command, if it has any problem-spaces. Call this after the last addContexts().
+	 */
+	public void finish() {
+		if (curChunk.length() == 0) {
+			return;
+		}
+		curChunk.append(COMMAND_END);
+		chunks.add(curChunk.toString());
+		labels.add(firstName.equals(lastName) ? "problem-space " + firstName : "problem-spaces " + firstName + " to " + lastName);
+		curChunk.setLength(0);
+	}
+
+	/**
+	 * @return The complete smem --add commands, in problem-space order
+	 */
+	public List<String> getChunks() { return chunks; }
+
+	/**
+	 * @return A description of the problem-spaces in each command, for reporting where a load failed
+	 */
+	public List<String> getLabels() { return labels; }
+}
@@ -0,0 +1,57 @@
+package edu.umich.eecs.soar.delta;
+
+/**
+ * Builds a stable label for an emitted smem object from a 64-bit FNV-1a hash of what the object contains, such as a rule's name and Prims.
+ * The same instructions then give the same smem text on every run, so the output of two compiles can be compared (see InstructionDelta).
+ */
+public class SmemId {
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L,
+							  FNV_PRIME = 0x100000001b3L;
+
+	private long hash = FNV_OFFSET;
+
+	/**
+	 * @param kind The kind of object, such as "drule", so that different kinds with the same content get different labels
+	 */
+	public SmemId(String kind) {
+		add(kind);
+	}
+
+	/**
+	 * Add a number to the hashed content.
+	 * @return This object, to add more content
+	 */
+	public SmemId add(long value) {
+		for (int i=0; i<64; i+=8) {
+			hash = (hash ^ ((value >>> i) & 0xFF)) * FNV_PRIME;
+		}
+		return this;
+	}
+
+	/**
+	 * Add a string to the hashed content. Its length is hashed too, so ("ab", "c") and ("a", "bc") differ.
+	 * @param value The string, or null
+	 * @return This object, to add more content
+	 */
+	public SmemId add(String value) {
+		if (value == null) {
+			return add(-1);
+		}
+		add(value.length());
+		for (int i=0; i<value.length(); ++i) {
+			char c = value.charAt(i);
+			hash = (hash ^ (c & 0xFF)) * FNV_PRIME;
+			hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+		}
+		return this;
+	}
+
+	/**
+	 * @return The hash in base 36, to follow a label prefix such as "<drule-"
+	 */
+	@Override
+	public String toString() {
+		return Long.toUnsignedString(hash, 36);
+	}
+}
@@ -0,0 +1,152 @@
+package edu.umich.eecs.soar.delta;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+
+/**
+ * The destination for a compiled smem --add Soar file.
+ * The output is written to a temporary file next to the destination, opened once, and is only renamed into place by commit().
+ * If the sink is closed without committing, the temporary file is deleted and any existing output file is left untouched,
+ * so a failed compile never leaves a half-written "smem --add {" block behind.
+ */
+public class SmemOutputSink implements Closeable {
+
+	private static final String NL = System.lineSeparator();
+	private static final String HEADER = "#############################################################################" + NL
+									   + "# THIS FILE TRANSLATES INSTRUCTIONS INTO SMEM FORMAT FOR A SOAR PROPS AGENT #" + NL
+									   + "#############################################################################" + NL
+									   + NL
+									   + "smem --add {" + NL
+									   + NL;
+	private static final String FOOTER = "}" + NL;
+	private static final Set<PosixFilePermission> NEW_FILE_PERMISSIONS = PosixFilePermissions.fromString("rw-r--r--");
+
+	private final String footer;
+	private final Path outPath, tmpPath;
+	private final FileChannel channel;
+	private final Writer writer;
+	private boolean committed = false;
+
+	/**
+	 * Open the sink and write the file header.
+	 * @param outPath The final output file path. It will be created, or replaced on commit if it exists.
+	 * @throws IOException If the temporary file can't be created
+	 */
+	public SmemOutputSink(Path outPath) throws IOException {
+		this(outPath, HEADER, FOOTER);
+	}
+
+	/**
+	 * Open a sink for some other kind of Soar file, such as the productions from ProductionWriter, and write its header.
+	 * @param outPath The final output file path. It will be created, or replaced on commit if it exists.
+	 * @param header The text to start the file with
+	 * @param footer The text to end the file with on commit
+	 * @throws IOException If the temporary file can't be created
+	 */
+	public SmemOutputSink(Path outPath, String header, String footer) throws IOException {
+		this.outPath = outPath;
+		this.footer = footer;
+		this.tmpPath = createTempFileFor(outPath);
+		FileChannel channel = null;
+		try {
+			channel = FileChannel.open(tmpPath, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			this.writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), -1), 1 << 16);
+			writer.write(header);
+		} catch (IOException | RuntimeException e) {
+			// Nothing can close a sink that failed to open, so release its file here
+			try {
+				if (channel != null) {
+					channel.close();
+				}
+				Files.deleteIfExists(tmpPath);
+			} catch (IOException e2) {
+				e.addSuppressed(e2);
+			}
+			throw e;
+		}
+		this.channel = channel;
+	}
+
+	/**
+	 * Create a temporary file next to the given output file, to write it in and then move it into place.
+	 * Files.createTempFile() only lets the owner read a temporary file, and the move keeps that, so on a POSIX file system the temporary file
+	 * gets the permissions of the output file it will replace, or rw-r--r-- if there is none yet.
+	 * @param outPath The output file
+	 * @return The empty temporary file
+	 * @throws IOException If the file can't be created
+	 */
+	static Path createTempFileFor(Path outPath) throws IOException {
+		Path tmp = Files.createTempFile(outPath.toAbsolutePath().getParent(), outPath.getFileName().toString(), ".tmp");
+		try {
+			PosixFileAttributeView view = Files.getFileAttributeView(tmp, PosixFileAttributeView.class);
+			if (view != null) {
+				view.setPermissions(Files.exists(outPath) ? Files.getPosixFilePermissions(outPath) : NEW_FILE_PERMISSIONS);
+			}
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(tmp);
+			throw e;
+		}
+		return tmp;
+	}
+
+	/**
+	 * @return The writer for the body of the smem --add block
+	 */
+	public Writer getWriter() { return writer; }
+
+	/**
+	 * Write the given construct into the body of the smem --add block.
+	 * @param construct The construct to write
+	 * @throws IOException If the write fails
+	 */
+	public void write(SmemWritable construct) throws IOException {
+		construct.writeSmem(writer);
+	}
+
+	/**
+	 * Write the footer closing the smem --add block, sync the file to disk, and atomically move it to the output path.
+	 * @throws IOException If any step fails. The output path is then left as it was.
+	 */
+	public void commit() throws IOException {
+		writer.write(footer);
+		writer.flush();
+		channel.force(true);
+		writer.close();
+
+		try {
+			Files.move(tmpPath, outPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmpPath, outPath, StandardCopyOption.REPLACE_EXISTING);
+		}
+		committed = true;
+	}
+
+	/**
+	 * Close the sink. If it wasn't committed, the partial output is discarded.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (committed) {
+			return;
+		}
+		try {
+			writer.close();
+		} finally {
+			Files.deleteIfExists(tmpPath);
+		}
+	}
+}
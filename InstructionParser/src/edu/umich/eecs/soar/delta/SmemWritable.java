@@ -0,0 +1,31 @@
+package edu.umich.eecs.soar.delta;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * A compiled construct that can write its own text for inclusion inside an "smem --add" command.
+ * Output is streamed straight to an Appendable, such as a buffered Writer on the output file, so no intermediate Strings are built.
+ */
+public interface SmemWritable {
+
+	/**
+	 * Write the smem text for this construct.
+	 * @param out The destination to write to
+	 * @throws IOException If the destination can't be written
+	 */
+	void writeSmem(Appendable out) throws IOException;
+
+	/**
+	 * @return The text that writeSmem() would write, as a String
+	 */
+	default String toSmemString() {
+		StringBuilder retval = new StringBuilder();
+		try {
+			writeSmem(retval);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);	// Shouldn't happen: StringBuilder doesn't throw
+		}
+		return retval.toString();
+	}
+}
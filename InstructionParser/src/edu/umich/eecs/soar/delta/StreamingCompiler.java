@@ -0,0 +1,168 @@
+package edu.umich.eecs.soar.delta;
+
+import java.io.IOException;
+
+/**
+ * A LispishHandler that compiles instruction text one top-level block at a time, as it is read.
+ * Only the tokens of the current (problem-space ...) block are kept. When its closing paren arrives, the block is parsed, compiled,
+ * and written out, and then released, so memory use is bounded by the largest problem-space instead of by the whole input.
+ * Condition Prims are shared within each problem-space, but not across them, since earlier problem-spaces are no longer kept.
+ */
+public class StreamingCompiler implements LispishHandler {
+
+	private final DeltaParser parser;
+	private final ElaborationContext.MergeMode mergeMode;
+	private final CompileCache compileCache;
+	private final Appendable out;
+	private AgentTuning tuning = null;
+
+	private LispishObject block = null,		// The top-level block being read, or null between blocks
+						  curObj = null;	// The innermost open list of the block
+	private int depth = 0;
+
+	private int contexts = 0,
+				distinctPrims = 0,
+				primRequests = 0;
+
+	/**
+	 * @param parser The parser to parse each block with
+	 * @param mergeMode How to merge each problem-space's wm tree
+	 * @param compileCache The cache to reuse and store compiled problem-spaces in, or null to always compile
+	 * @param out The destination for the smem text of each compiled problem-space. The "smem --add {" wrapper isn't written.
+	 */
+	public StreamingCompiler(DeltaParser parser, ElaborationContext.MergeMode mergeMode, CompileCache compileCache, Appendable out) {
+		this.parser = parser;
+		this.mergeMode = mergeMode;
+		this.compileCache = compileCache;
+		this.out = out;
+	}
+
+	/**
+	 * Write the header that comes before the first problem-space.
+	 * @throws IOException If the destination can't be written
+	 */
+	public void start() throws IOException {
+		out.append(ContextMemory.PROBLEM_SPACES_HEADER);
+	}
+
+	public int getContextCount() { return contexts; }
+
+	/**
+	 * Also count each written problem-space in the given AgentTuning.
+	 * @param tuning The settings to count problem-spaces in, or null for none
+	 */
+	public void setTuning(AgentTuning tuning) {
+		this.tuning = tuning;
+	}
+	public int getDistinctPrimCount() { return distinctPrims; }
+	public int getPrimRequests() { return primRequests; }
+
+	@Override
+	public boolean onOpen() {
+		if (depth == 0) {
+			block = new LispishObject();
+			curObj = block;
+		}
+		else {
+			curObj = curObj.addObject();
+		}
+		++depth;
+		return true;
+	}
+
+	@Override
+	public boolean onAtom(String text) {
+		if (depth == 0) {
+			System.err.println("ERROR in StreamingCompiler: expected (problem-space ...) command, found String: '" + text + "'");
+			return false;
+		}
+		curObj.addString(text);
+		return true;
+	}
+
+	@Override
+	public boolean onClose() {
+		--depth;
+		if (depth > 0) {
+			curObj = curObj.getParent();
+			return true;
+		}
+
+		// The block is complete: compile it, write it, and let it go
+		boolean success = finishBlock(block);
+		block = null;
+		curObj = null;
+		return success;
+	}
+
+	/**
+	 * Write already compiled problem-spaces, such as those loaded from a DeltacFile, between the blocks being read.
+	 * @param compiledIns The compiled problem-spaces, with their Prims collected
+	 * @return Success status
+	 */
+	public boolean writeCompiled(ContextMemory compiledIns) {
+		try {
+			for (ElaborationContext elab : compiledIns.getElabContexts()) {
+				parser.index_context(elab);
+				ContextMemory.writeContextHeader(elab, out);
+				elab.writeSmem(out);
+				out.append("\r\n");
+				elab.writePrimSmem(out);
+				if (tuning != null) {
+					tuning.add(elab);
+				}
+				++contexts;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+
+		distinctPrims += compiledIns.getPrims().size();
+		primRequests += compiledIns.getPrimRequests();
+		return true;
+	}
+
+	/**
+	 * Parse, compile, and write one top-level block.
+	 * @return Success status
+	 */
+	private boolean finishBlock(LispishObject blockObj) {
+		ContextMemory blockIns = new ContextMemory();
+
+		// Reuse a cached compile of a named problem-space if there is one
+		String key = null;
+		if (compileCache != null && blockObj.isList() && blockObj.size() >= 2
+				&& blockObj.getString(0).equals("problem-space") && !blockObj.get(1).isList()) {
+			key = compileCache.keyOf(blockObj, parser.getCompileOptions());
+			ElaborationContext cached = compileCache.load(key, blockIns, blockObj.getString(1));
+			if (cached != null) {
+				parser.check_context_name(cached.getName());
+				blockIns.addElabContext(cached);
+			}
+		}
+
+		if (blockIns.getElabContexts().isEmpty()) {
+			if (!parser.parse_instructions(blockObj, blockIns)) {
+				return false;
+			}
+			for (ElaborationContext elab : blockIns.getElabContexts()) {
+				elab.setCacheKey(key);
+			}
+			parser.eliminate_dead_refs(blockIns);
+			parser.partition_contexts(blockIns);
+			for (ElaborationContext elab : blockIns.getElabContexts()) {
+				elab.compileRefs(mergeMode);
+				parser.order_prims(elab);
+				parser.check_rules(elab);
+				blockIns.collectPrims(elab);
+				parser.index_context(elab);
+				if (compileCache != null) {
+					compileCache.store(elab);
+				}
+			}
+		}
+
+		return writeCompiled(blockIns);
+	}
+}
@@ -0,0 +1,78 @@
+package edu.umich.eecs.soar.delta;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps each distinct instruction token, such as an attribute name, a &lt;var&gt; label or a const value, to a dense int id, starting from 0.
+ * One table is shared by a whole compile session, so that each distinct token is held as one canonical String, and structures such as
+ * WMEAddress paths can hold and compare ids instead of Strings. Ids are only meaningful within the table that gave them.
+ * Safe to use from several parsing threads at once.
+ */
+public class SymbolTable {
+
+	private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+	private volatile String[] names = new String[64];	// The canonical String of each id
+	private int count = 0;
+
+	/**
+	 * Get the id of the given token, adding it if it is new.
+	 * @param symbol The token
+	 * @return Its id
+	 */
+	public int getId(String symbol) {
+		Integer id = ids.get(symbol);
+		if (id != null) {
+			return id;
+		}
+
+		synchronized (this) {
+			id = ids.get(symbol);
+			if (id != null) {
+				return id;
+			}
+			if (count == names.length) {
+				names = Arrays.copyOf(names, count * 2);
+			}
+			// Store the name before publishing the id, so any thread that finds the id can read its name
+			names[count] = symbol;
+			ids.put(symbol, count);
+			return count++;
+		}
+	}
+
+	/**
+	 * Get the id of the given token without adding it.
+	 * @param symbol The token
+	 * @return Its id, or -1 if it isn't in the table
+	 */
+	public int findId(String symbol) {
+		Integer id = ids.get(symbol);
+		return (id == null ? -1 : id);
+	}
+
+	/**
+	 * @param id An id from this table
+	 * @return The canonical String of the id
+	 */
+	public String getName(int id) {
+		return names[id];
+	}
+
+	/**
+	 * Get the canonical instance of the given token, adding it if it is new.
+	 * Every token equal to it is then the same String instance, so its equals() returns on the identity check.
+	 * @param symbol The token, or null
+	 * @return The canonical String, or null for null
+	 */
+	public String intern(String symbol) {
+		return (symbol == null ? null : getName(getId(symbol)));
+	}
+
+	/**
+	 * @return The number of distinct tokens in the table
+	 */
+	public int size() {
+		return ids.size();
+	}
+}
@@ -1,6 +1,7 @@
 package edu.umich.eecs.soar.delta;
 
-import java.util.Arrays;
+import java.io.IOException;
+import java.util.AbstractList;
 import java.util.List;
 
 /**
@@ -8,17 +9,19 @@ import java.util.List;
  * @author bryan
  *
  */
-public class WMEAddress {
+public class WMEAddress implements SmemWritable {
 	private String idName, varName, smemName;
-	private List<String> attr_path;
+	private final SymbolTable symbols;		// The table that the path ids belong to
+	private final int[] attr_path;			// The attribute path as symbol ids
 	
 	/**
 	 * Create a WME address object.
+	 * @param symbols The session's symbol table, which the id, path attributes and name are interned in
 	 * @param id The identifier (variable label) for the source of this WME address. E.g. "<x>" in "(<x> foo.bar <y>)"
 	 * @param path The attribute path of this WME address. E.g. "foo.bar" in "(<x> foo.bar <y>)"
 	 * @param name The label for the value at this address. E.g. "<y>" in "(<x> foo.bar <y>)"
 	 */
-	public WMEAddress(String id, String path, String name) {
+	public WMEAddress(SymbolTable symbols, String id, String path, String name) {
 		/*if (path.equals("state")) {
 			attr_path = null;
 			smemName = "props$rootstate";
@@ -29,12 +32,41 @@ public class WMEAddress {
 		}
 		else {*/
 		
-		this.idName = id;
-		this.varName = name;
-		this.attr_path = Arrays.asList(path.split("\\."));
-		smemName = "<Addr-" + this.hashCode() + ">";
+		this.symbols = symbols;
+		this.idName = symbols.intern(id);
+		this.varName = symbols.intern(name);
+		this.attr_path = toSymbols(symbols, path);
 	}
 	
+	/**
+	 * Split a dotted attribute path into the ids of its attributes.
+	 */
+	private static int[] toSymbols(SymbolTable symbols, String path) {
+		int steps = 1;
+		for (int i=0; i<path.length(); ++i) {
+			if (path.charAt(i) == '.') {
+				++steps;
+			}
+		}
+		
+		int[] retval = new int[steps];
+		int start = 0;
+		for (int s=0; s<steps; ++s) {
+			int end = path.indexOf('.', start);
+			if (end < 0) {
+				end = path.length();
+			}
+			retval[s] = symbols.getId(path.substring(start, end));
+			start = end + 1;
+		}
+		return retval;
+	}
+	
+	/**
+	 * @return The symbol table that this address's path ids belong to
+	 */
+	public SymbolTable getSymbols() { return symbols; }
+	
 	/**
 	 * @return The identifier (variable label) for the source of this WME address. E.g. "<x>" in "(<x> foo.bar <y>)"
 	 */
@@ -46,9 +78,29 @@ public class WMEAddress {
 	public String getVarName() { return varName; }
 	
 	/**
-	 * @return The list of attribute links that make up this WME Address
+	 * @return The list of attribute links that make up this WME Address, as a read-only view of its ids
+	 */
+	public List<String> getPath() {
+		return new AbstractList<String>() {
+			@Override
+			public String get(int index) { return symbols.getName(attr_path[index]); }
+			@Override
+			public int size() { return attr_path.length; }
+		};
+	}
+	
+	/**
+	 * @return The number of attributes in the path
 	 */
-	public List<String> getPath() { return attr_path; }
+	public int getPathLength() { return attr_path.length; }
+	
+	/**
+	 * Get the symbol id of the attribute path element at the given index.
+	 * Two addresses from the same table have the same attribute at an index exactly when these ids are equal.
+	 * @param index The index of the element to get
+	 * @return The id of the attribute in the symbol table
+	 */
+	public int getPathSymbol(int index) { return attr_path[index]; }
 	
 	/**
 	 * Get the attribute path element at the given index.
@@ -56,47 +108,57 @@ public class WMEAddress {
 	 * @param index The index of the element to get
 	 * @return The String name of the attribute at the given index.
 	 */
-	public String getPathAt(int index) { return attr_path.get(index); }
+	public String getPathAt(int index) { return symbols.getName(attr_path[index]); }
 	
 	/**
 	 * Get the String of the attribute path from S1 contained in this WMERef.
 	 * Ex: for a WME "foo.bar <wme>", the returned String would be "foo.bar"
 	 * @return The String of the attribute path
 	 */
-	public String getPathString() { return String.join(".", attr_path); }
+	public String getPathString() { return String.join(".", getPath()); }
 	
 	/**
 	 * @return The "<...>" label for this address reference for printing in the smem --add file.
 	 */
 	public String getSmemVarName() {
+		if (smemName == null) {
+			smemName = "<Addr-" + getSmemHash() + ">";
+		}
 		return smemName;
 	}
 	
-	public String toSmemString() {
+	/**
+	 * @return The hash that this address's labels are derived from. Addresses with the same path write the same objects, so the path alone names them.
+	 */
+	private String getSmemHash() {
+		return new SmemId("Addr").add(getPathString()).toString();
+	}
+	
+	@Override
+	public void writeSmem(Appendable out) throws IOException {
 		// Don't print if only the state or const keyword
 		if (attr_path == null)
-			return "";
+			return;
 		
-		String hash = String.valueOf(this.hashCode());
+		String hash = getSmemHash();
 		
 		// Print the main Ref object and its links to each element of the path
-		String retval = "(" + smemName + " ^size " + attr_path.size();
-		for (int i=1; i<=attr_path.size(); ++i) {
-			retval += "\r\n\t^step <AddrStep-" + hash + "-" + i + ">";
+		out.append("(").append(getSmemVarName()).append(" ^size ").append(String.valueOf(attr_path.length));
+		for (int i=1; i<=attr_path.length; ++i) {
+			out.append("\r\n\t^step <AddrStep-").append(hash).append("-").append(String.valueOf(i)).append(">");
 		}
-		retval += "\r\n\t^final <AddrStep-" + hash + "-" + attr_path.size() + ">"; // Note which link is the end of the chain
-		retval += ")\r\n";
+		out.append("\r\n\t^final <AddrStep-").append(hash).append("-").append(String.valueOf(attr_path.length)).append(">"); // Note which link is the end of the chain
+		out.append(")\r\n");
 		
 		// Print the objects for each element of the path
 		String prevID = "props$rootstate";
-		for (int i=1; i<=attr_path.size(); ++i) {
-			retval += "(<AddrStep-" + hash + "-" + i + "> ^prev " + prevID;
-			retval += "\r\n\t^attribute " + attr_path.get(i-1);
-			retval += ")\r\n";
-			prevID = "<AddrStep-" + hash + "-" + i + ">";
+		for (int i=1; i<=attr_path.length; ++i) {
+			String stepID = "<AddrStep-" + hash + "-" + i + ">";
+			out.append("(").append(stepID).append(" ^prev ").append(prevID);
+			out.append("\r\n\t^attribute ").append(getPathAt(i-1));
+			out.append(")\r\n");
+			prevID = stepID;
 		}
-
-		return retval;
 	}
 
 }
@@ -1,26 +1,40 @@
 package edu.umich.eecs.soar.delta;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class WMERef {
 
+	private final SymbolTable symbols;				// The session's symbol table, which the addresses are interned in
 	private LispishObject ins_wm;					// The WM tree that represents the WMEAddresses needed for just this (ref)
 	private List<WMEAddress> addresses;				// A list of the addresses defined for this (ref)
 	private Map<String, WMEAddress> varNameMap;		// A map of <var> names to the WMEAddress that they reference; specific to one (ins)
+	private Map<String, List<WMEAddress>> idNameMap;	// A map of <var> names to the WMEAddresses that start from them, in order
 	
 	/**
 	 * This object holds the LispishObject tree representation of referenced WM structures within the scope of a single instructed rule.
-	 * @param name The variable name for this WME. For example, for "S1.foo.bar <name>", enter "<name>".
+	 * @param symbols The session's symbol table, which the addresses' attributes and vars are interned in
 	 */
-	public WMERef() {
+	public WMERef(SymbolTable symbols) {
+		this.symbols = symbols;
 		this.ins_wm = new LispishObject("S1");
 		this.addresses = new ArrayList<WMEAddress>(3);
 		this.varNameMap = new HashMap<String, WMEAddress>(3);
+		this.idNameMap = new HashMap<String, List<WMEAddress>>(3);
 	}
 	
+	/**
+	 * @return The symbol table that the addresses of this ref are interned in
+	 */
+	public SymbolTable getSymbols() { return symbols; }
+	
 	/**
 	 * @return The list of WMEAddresses representing individual (<x> foo.bar <y>) reference commands
 	 */
@@ -58,11 +72,88 @@ public class WMERef {
 		if (id.equals("s1")) {
 			id = "S1";	// Make case-insensitive state reference
 		}
-		WMEAddress addr = new WMEAddress(id, path, varName);
+		WMEAddress addr = new WMEAddress(symbols, id, path, varName);
 		addresses.add(addr);
-		varNameMap.put(varName, addr);
+		varNameMap.put(addr.getVarName(), addr);
+		
+		List<WMEAddress> fromID = idNameMap.get(addr.getIDName());
+		if (fromID == null) {
+			fromID = new ArrayList<WMEAddress>(2);
+			idNameMap.put(addr.getIDName(), fromID);
+		}
+		fromID.add(addr);
+	}
+	
+	/**
+	 * Get the addresses that start from the given identifier, such as all "(<x> ...)" addresses for "<x>".
+	 * @param id The identifier (variable label), or "S1" for the state
+	 * @return The matching addresses in the order they were added, or an empty list if none
+	 */
+	public List<WMEAddress> getAddressesFrom(String id) {
+		List<WMEAddress> retval = idNameMap.get(id);
+		return (retval == null ? Collections.<WMEAddress>emptyList() : retval);
+	}
+
+	/**
+	 * Get the address whose value is labeled with the given var, such as "(<x> foo.bar <y>)" for "<y>".
+	 * @param varName The var label
+	 * @return The address, or null if no address of this ref is labeled with the var
+	 */
+	public WMEAddress getAddressTo(String varName) {
+		return varNameMap.get(varName);
 	}
 
+	/**
+	 * Find the addresses whose values no condition of the given rule uses, either directly or as the source of a used address.
+	 * For example, in "(s1 wm <wm>) (<wm> object <ob1>) (<wm> object <ob2>)" with conditions only on <ob1>, "(<wm> object <ob2>)" is unused.
+	 * @param rule The rule this ref belongs to
+	 * @return The unused addresses, in the order they were added
+	 */
+	public List<WMEAddress> getUnusedAddresses(Rule rule) {
+		// Start from the condition vars, and mark the source var of each used address as used too
+		Set<String> used = new HashSet<String>();
+		Deque<String> worklist = new ArrayDeque<String>();
+		for (Condition c : rule.getConditions()) {
+			for (String var : new String[] {c.idvar1, c.idvar2}) {
+				if (var != null && used.add(var)) {
+					worklist.add(var);
+				}
+			}
+		}
+		while (!worklist.isEmpty()) {
+			WMEAddress addr = varNameMap.get(worklist.poll());
+			if (addr != null && used.add(addr.getIDName())) {
+				worklist.add(addr.getIDName());
+			}
+		}
+		
+		List<WMEAddress> retval = new ArrayList<WMEAddress>();
+		for (WMEAddress addr : addresses) {
+			if (!used.contains(addr.getVarName())) {
+				retval.add(addr);
+			}
+		}
+		return retval;
+	}
+	
+	/**
+	 * Remove the given addresses from this ref. The WM tree of this ref isn't updated.
+	 * @param toRemove Addresses of this ref
+	 */
+	public void removeAddresses(List<WMEAddress> toRemove) {
+		for (WMEAddress addr : toRemove) {
+			addresses.remove(addr);
+			if (varNameMap.get(addr.getVarName()) == addr) {
+				varNameMap.remove(addr.getVarName());
+			}
+			List<WMEAddress> fromID = idNameMap.get(addr.getIDName());
+			fromID.remove(addr);
+			if (fromID.isEmpty()) {
+				idNameMap.remove(addr.getIDName());
+			}
+		}
+	}
+	
 	/**
 	 * Get a list of indices for which WMEAddress objects have an attribute path that starts with the given attribute
 	 * @param pathAttr The attribute to scan for
@@ -71,14 +162,15 @@ public class WMERef {
 	public List<Integer> getMultiAttributeIndices(String pathAttr) {
 		List<Integer> retval = new ArrayList<Integer>();
 		
-		// Check that there are addresses
-		if (addresses.size() == 0) {
+		// Check that there are addresses, and that the attribute is known at all
+		int symbol = symbols.findId(pathAttr);
+		if (addresses.size() == 0 || symbol < 0) {
 			return retval;
 		}
 		
 		// Iterate and collect
 		for (int i=0; i<addresses.size(); ++i) {
-			if (addresses.get(i).getPathAt(0).equals(pathAttr)) {
+			if (addresses.get(i).getPathSymbol(0) == symbol) {
 				retval.add(i);
 			}
 		}
@@ -0,0 +1,90 @@
+package edu.umich.eecs.soar.delta;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Checks that -t writes a tuning file when some compiled wm trees are only the bare S1 root, as for a problem-space whose addresses -d removes as dead,
+ * and alongside the routing contexts made by -p.
+ *
+ * Usage: AgentTuningTest, with the src and test directories compiled together. Exits with status 1 if a check fails.
+ */
+public class AgentTuningTest {
+
+	private static final String INSTRUCTIONS =
+			"(problem-space split-space\r\n"
+			+ "\t(ins rule-a\r\n"
+			+ "\t\t(ref (s1 wm <wm>) (<wm> object <ob1>) (<wm> object <ob2>))\r\n"
+			+ "\t\t(condition (== <ob1> feature <ob2> feature))\r\n"
+			+ "\t\t(operator \"op-a\")\r\n"
+			+ "\t\t(description \"One cluster\"))\r\n"
+			+ "\t(ins rule-b\r\n"
+			+ "\t\t(ref (s1 wm <wm>) (<wm> object <ob1>) (<wm> object <ob2>))\r\n"
+			+ "\t\t(condition (<> <ob1> size <ob2> size))\r\n"
+			+ "\t\t(operator \"op-b\")\r\n"
+			+ "\t\t(description \"Another cluster\"))\r\n"
+			+ ")\r\n"
+			// Every address is dead, since the only condition tests consts
+			+ "(problem-space dead-space\r\n"
+			+ "\t(ins rule-c\r\n"
+			+ "\t\t(ref (s1 wm <wm>))\r\n"
+			+ "\t\t(condition (== const A const A))\r\n"
+			+ "\t\t(operator \"op-c\")\r\n"
+			+ "\t\t(description \"No wm tests\"))\r\n"
+			+ ")\r\n";
+
+	public static void main(String[] args) throws IOException {
+		Path dir = Files.createTempDirectory("agent-tuning");
+		Path inPath = dir.resolve("in.delta"),
+			 outPath = dir.resolve("out.soar"),
+			 tuningPath = dir.resolve("tuning.soar");
+		try {
+			Files.write(inPath, INSTRUCTIONS.getBytes(StandardCharsets.UTF_8));
+
+			check("-p 1", inPath, outPath, tuningPath, false, 1, false);
+			check("-s -p 1", inPath, outPath, tuningPath, true, 1, false);
+			check("-d", inPath, outPath, tuningPath, false, 0, true);
+			check("-s -d", inPath, outPath, tuningPath, true, 0, true);
+		} finally {
+			for (Path path : new Path[] {inPath, outPath, tuningPath, dir}) {
+				Files.deleteIfExists(path);
+			}
+		}
+		System.out.println("AgentTuningTest passed.");
+	}
+
+	/**
+	 * Compile the instructions with -t and the given options, and check that the tuning file was written.
+	 */
+	private static void check(String options, Path inPath, Path outPath, Path tuningPath, boolean streaming, int maxRules, boolean deadRefs) throws IOException {
+		Files.deleteIfExists(tuningPath);
+		DeltaParser parser = new DeltaParser();
+		parser.setTuningOutput(tuningPath);
+		if (maxRules > 0) {
+			parser.setMaxContextRules(maxRules);
+		}
+		parser.setEliminateDeadRefs(deadRefs);
+
+		boolean ok;
+		try {
+			ok = (streaming ? parser.convert_files_streaming(Arrays.asList(inPath), outPath) : parser.convert_files(Arrays.asList(inPath), outPath));
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			ok = false;
+		}
+		if (!ok) {
+			fail("-t " + options + " didn't compile");
+		}
+		if (!Files.exists(tuningPath)) {
+			fail("-t " + options + " didn't write the tuning file");
+		}
+	}
+
+	private static void fail(String message) {
+		System.err.println("FAILED: AgentTuningTest: " + message);
+		System.exit(1);
+	}
+}
@@ -0,0 +1,91 @@
+package edu.umich.eecs.soar.delta;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks that each routing delta made by -p tests at least one condition, even when its rules only test objects of a multi-attribute,
+ * and that a problem-space with a rule that shares no condition to route by is left whole.
+ *
+ * Usage: ContextPartitionerTest, with the src and test directories compiled together. Exits with status 1 if a check fails.
+ */
+public class ContextPartitionerTest {
+
+	private static final String INSTRUCTIONS =
+			"(problem-space multi-space\r\n"
+			+ "\t(ins rule-a\r\n"
+			+ "\t\t(ref (s1 wm <wm>) (<wm> object <ob1>) (<wm> object <ob2>))\r\n"
+			+ "\t\t(condition (== <ob1> feature <ob2> feature))\r\n"
+			+ "\t\t(operator \"op-a\")\r\n"
+			+ "\t\t(description \"One cluster\"))\r\n"
+			+ "\t(ins rule-b\r\n"
+			+ "\t\t(ref (s1 wm <wm>) (<wm> object <ob1>) (<wm> object <ob2>))\r\n"
+			+ "\t\t(condition (<> <ob1> size <ob2> size))\r\n"
+			+ "\t\t(operator \"op-b\")\r\n"
+			+ "\t\t(description \"Another cluster\"))\r\n"
+			+ ")\r\n"
+			// rule-d only tests that an attribute is missing from one of two objects, which gives nothing to route by
+			+ "(problem-space negation-space\r\n"
+			+ "\t(ins rule-c\r\n"
+			+ "\t\t(ref (s1 wm <wm>))\r\n"
+			+ "\t\t(condition (? <wm> color))\r\n"
+			+ "\t\t(operator \"op-c\")\r\n"
+			+ "\t\t(description \"Tests color\"))\r\n"
+			+ "\t(ins rule-d\r\n"
+			+ "\t\t(ref (s1 wm <wm>) (<wm> object <ob1>) (<wm> object <ob2>))\r\n"
+			+ "\t\t(condition (- <ob1> shape))\r\n"
+			+ "\t\t(operator \"op-d\")\r\n"
+			+ "\t\t(description \"Lacks shape\"))\r\n"
+			+ ")\r\n";
+
+	public static void main(String[] args) throws IOException {
+		Path inPath = Files.createTempFile("context-partitioner", ".delta");
+		try {
+			Files.write(inPath, INSTRUCTIONS.getBytes(StandardCharsets.UTF_8));
+
+			DeltaParser parser = new DeltaParser();
+			parser.setMaxContextRules(1);
+			ContextMemory compiledIns = parser.compile_files(Arrays.asList(inPath));
+			if (compiledIns == null) {
+				fail("the instructions didn't compile");
+			}
+
+			int routes = 0;
+			boolean negationWhole = false;
+			for (ElaborationContext elab : compiledIns.getElabContexts()) {
+				for (Rule rule : elab.getRules()) {
+					if (rule.getName().endsWith("*route")) {
+						++routes;
+						if (rule.getConditions().isEmpty()) {
+							fail("the routing delta " + rule.getName() + " has no conditions");
+						}
+					}
+				}
+				if (elab.getName().equals("negation-space")) {
+					negationWhole = (elab.getRules().size() == 2);
+				}
+				else if (elab.getName().startsWith("negation-space" + ContextPartitioner.PART_SUFFIX)) {
+					fail("negation-space was partitioned, though rule-d shares no condition to route by");
+				}
+			}
+			if (routes != 2) {
+				fail("expected a routing delta for each of the two parts of multi-space, but got " + routes);
+			}
+			if (!negationWhole) {
+				fail("expected negation-space to keep both its rules");
+			}
+		} finally {
+			Files.deleteIfExists(inPath);
+		}
+		System.out.println("ContextPartitionerTest passed.");
+	}
+
+	private static void fail(String message) {
+		System.err.println("FAILED: ContextPartitionerTest: " + message);
+		System.exit(1);
+	}
+}
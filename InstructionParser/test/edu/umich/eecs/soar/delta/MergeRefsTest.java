@@ -0,0 +1,66 @@
+package edu.umich.eecs.soar.delta;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Checks that merging refs that repeat an attribute down a chain, like (<a> kind <b>) (<b> kind <c>), gives one wm tree node per step.
+ * A wm node is headed by its own attribute name, which must not be taken for a child branch with that attribute.
+ *
+ * Usage: MergeRefsTest, with the src and test directories compiled together. Exits with status 1 if a check fails.
+ */
+public class MergeRefsTest {
+
+	private static final String INSTRUCTIONS =
+			"(problem-space chain-space\r\n"
+			+ "\t(ins repeated-attribute\r\n"
+			+ "\t\t(ref (s1 kind <a>) (<a> kind <b>) (<b> kind <c>))\r\n"
+			+ "\t\t(condition (== <c> color const red))\r\n"
+			+ "\t\t(operator \"op-a\")\r\n"
+			+ "\t\t(description \"Repeated attribute\"))\r\n"
+			+ ")\r\n";
+
+	public static void main(String[] args) throws IOException {
+		Path inPath = Files.createTempFile("merge-refs", ".delta");
+		try {
+			Files.write(inPath, INSTRUCTIONS.getBytes(StandardCharsets.UTF_8));
+
+			ContextMemory compiledIns = new DeltaParser().compile_files(Arrays.asList(inPath));
+			if (compiledIns == null) {
+				fail("the instructions didn't compile");
+			}
+			ElaborationContext elab = compiledIns.getElabContexts().get(0);
+
+			// S1 and one node for each of the three "kind" steps
+			LispishObject wm = elab.getWM();
+			if (wm.countTreeNodes() != 4) {
+				fail("expected 4 wm tree nodes, but got " + wm.countTreeNodes() + ": " + wm);
+			}
+
+			// Follow the only branch of each node down to the deepest one
+			LispishObject deepest = wm;
+			for (int depth=0; depth<3; ++depth) {
+				if (deepest.size() != 2 || !deepest.get(1).isList()) {
+					fail("expected one kind branch at depth " + depth + ", but got " + deepest);
+				}
+				deepest = deepest.get(1);
+			}
+
+			Prim prim = elab.getRules().get(0).getCondPrim(0);
+			if (prim.getAddress1() != deepest) {
+				fail("expected the condition on <c> to address the deepest kind node, but it addresses " + prim.getAddress1());
+			}
+		} finally {
+			Files.deleteIfExists(inPath);
+		}
+		System.out.println("MergeRefsTest passed.");
+	}
+
+	private static void fail(String message) {
+		System.err.println("FAILED: MergeRefsTest: " + message);
+		System.exit(1);
+	}
+}
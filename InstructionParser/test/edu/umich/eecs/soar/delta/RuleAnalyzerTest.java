@@ -0,0 +1,89 @@
+package edu.umich.eecs.soar.delta;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks that -u prune only removes rules that can never fire. A negation and a value test on the same attribute of one wm node
+ * can both hold, on different objects of the node, so such rules must stay in. Also checks that the wm tree nodes only a removed rule used
+ * aren't written.
+ *
+ * Usage: RuleAnalyzerTest, with the src and test directories compiled together. Exits with status 1 if a check fails.
+ */
+public class RuleAnalyzerTest {
+
+	private static final String REF = "\t\t(ref (s1 wm <wm>) (<wm> object <ob>))\r\n";
+
+	private static final String INSTRUCTIONS =
+			"(problem-space check-space\r\n"
+			// Can fire: one object lacks ^shape while another has shape v7
+			+ "\t(ins negation-and-value\r\n" + REF
+			+ "\t\t(condition (- <ob> shape) (== <ob> shape const v7))\r\n"
+			+ "\t\t(operator \"op-a\")\r\n"
+			+ "\t\t(description \"Negated and tested attribute\"))\r\n"
+			// Can fire: two objects can have different ^size values
+			+ "\t(ins negation-and-self-compare\r\n" + REF
+			+ "\t\t(condition (- <ob> size) (<> <ob> size <ob> size))\r\n"
+			+ "\t\t(operator \"op-b\")\r\n"
+			+ "\t\t(description \"Negated and compared attribute\"))\r\n"
+			// Can never fire
+			+ "\t(ins false-consts\r\n" + REF
+			+ "\t\t(condition (== const A const B) (== <ob> color const red))\r\n"
+			+ "\t\t(operator \"op-c\")\r\n"
+			+ "\t\t(description \"False const test\"))\r\n"
+			// Can never fire, and is the only rule that references wm.deep.thing
+			+ "\t(ins false-consts-deep\r\n"
+			+ "\t\t(ref (s1 wm.deep.thing <t>))\r\n"
+			+ "\t\t(condition (== const 1 const 2) (? <t> foo))\r\n"
+			+ "\t\t(operator \"op-d\")\r\n"
+			+ "\t\t(description \"False const test on its own path\"))\r\n"
+			+ ")\r\n";
+
+	public static void main(String[] args) throws IOException {
+		Path inPath = Files.createTempFile("rule-check", ".delta");
+		try {
+			Files.write(inPath, INSTRUCTIONS.getBytes(StandardCharsets.UTF_8));
+
+			DeltaParser parser = new DeltaParser();
+			parser.setRuleCheck(RuleAnalyzer.Mode.PRUNE);
+			ContextMemory compiledIns = parser.compile_files(Arrays.asList(inPath));
+			if (compiledIns == null) {
+				fail("the instructions didn't compile");
+			}
+
+			List<String> kept = new ArrayList<String>();
+			for (ElaborationContext elab : compiledIns.getElabContexts()) {
+				for (Rule rule : elab.getRules()) {
+					kept.add(rule.getName());
+				}
+			}
+			if (!kept.equals(Arrays.asList("negation-and-value", "negation-and-self-compare"))) {
+				fail("expected only false-consts and false-consts-deep to be pruned, but kept " + kept);
+			}
+
+			// The kept rules only reference wm.object, so the tree is S1, wm and wm.object
+			StringBuilder smem = new StringBuilder();
+			compiledIns.writeSmem(smem);
+			if (smem.indexOf("^attribute deep") >= 0 || smem.indexOf("^attribute thing") >= 0) {
+				fail("the wm tree nodes of the pruned rule false-consts-deep were written");
+			}
+			int nodes = compiledIns.getElabContexts().get(0).getWMNodeCount();
+			if (nodes != 3) {
+				fail("expected 3 wm tree nodes after pruning, but got " + nodes);
+			}
+		} finally {
+			Files.deleteIfExists(inPath);
+		}
+		System.out.println("RuleAnalyzerTest passed.");
+	}
+
+	private static void fail(String message) {
+		System.err.println("FAILED: RuleAnalyzerTest: " + message);
+		System.exit(1);
+	}
+}
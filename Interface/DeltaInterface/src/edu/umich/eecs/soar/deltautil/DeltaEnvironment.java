@@ -5,10 +5,15 @@ import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
 import java.util.PriorityQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javafx.util.Pair;
 
@@ -22,6 +27,9 @@ import edu.umich.soar.debugger.SWTApplication;
 
 @SuppressWarnings("restriction")
 public abstract class DeltaEnvironment implements UpdateEventInterface/*, RunEventInterface*/ {
+	private static final String DELTA_UNLINK_PREFIX = "# unlink ";		// Names a problem-space to unlink in an instruction delta script (see applyInstructionDelta())
+	private static final Pattern LTI_PATTERN = Pattern.compile("@[A-Za-z]?\\d+");	// A long-term identifier in smem command output
+	
 	// Fixed raw input space, x2 for t and t-1
 	private ArrayList<GhostWME> dltaInputs1, 
 								dltaInputs2;  // For efficiency, alternate which one is t and t-1
@@ -51,7 +59,10 @@ public abstract class DeltaEnvironment implements UpdateEventInterface/*, RunEve
 							ATTR_INPUT_CHANGED = "input-changed";
 	private String outFileName = "AgentOutput.txt",
 					agent_instruction_file = "",
+					agent_tuning_file = "",		// Settings generated for the instructions by the instruction parser (-t), if set
 					agent_genericsoar_file = "";
+	private List<String> agent_instruction_chunks = null,	// smem --add commands to load instead of agent_instruction_file, if set
+						 agent_instruction_labels = null;
 	private String taskName = "TEST",
 					taskSequenceName = "TEST";
 	
@@ -70,6 +81,8 @@ public abstract class DeltaEnvironment implements UpdateEventInterface/*, RunEve
 	
 	private long elapsedAgentMSEC = 0;
 	private long elapsedAgentDCs = 0;
+	private long taskStartDCs = 0,				// The elapsed decision cycles when the current task was set
+				 firstCorrectActionDCs = -1;	// The decision cycles taken to the first correct action of the current task, or -1 if none yet
 	private double msecPerDecision = 50;
 	
 	private int numAgentInputs = 3,
@@ -148,6 +161,33 @@ public abstract class DeltaEnvironment implements UpdateEventInterface/*, RunEve
 		return true;
 	}
 	
+	/**
+	 * Run each of the smem --add instruction commands in the agent, timing each one.
+	 * @return False if any command failed. The failing command's label and the agent's error are reported.
+	 */
+	private boolean loadInstructionChunks() {
+		long totalTime = 0;
+		for (int i=0; i<agent_instruction_chunks.size(); ++i) {
+			String label = (agent_instruction_labels != null && i < agent_instruction_labels.size() ? agent_instruction_labels.get(i) : "chunk " + (i+1));
+			
+			long startTime = System.nanoTime();
+			String result = agent.ExecuteCommandLine(agent_instruction_chunks.get(i));
+			long chunkTime = System.nanoTime() - startTime;
+			totalTime += chunkTime;
+			
+			if (!agent.GetLastCommandLineResult()) {
+				System.err.println("ERROR: SMEM instruction chunk " + (i+1) + " of " + agent_instruction_chunks.size() + " (" + label + ") failed to load: " + result);
+				return false;
+			}
+			if (verbose) {
+				System.out.println(String.format("Loaded SMEM instruction chunk %d of %d (%s) in %.1f ms.", i+1, agent_instruction_chunks.size(), label, nanoToMilli(chunkTime)));
+			}
+		}
+		
+		System.out.println(String.format("Loaded %d SMEM instruction chunk(s) in %.1f ms.", agent_instruction_chunks.size(), nanoToMilli(totalTime)));
+		return true;
+	}
+	
 	private void loadUserAgentFiles() {
 		// Load the list of user-provided agent files
 		for (String s : userAgentFiles) {
@@ -183,6 +223,8 @@ public abstract class DeltaEnvironment implements UpdateEventInterface/*, RunEve
 		
 		elapsedAgentMSEC = 0;
 		elapsedAgentDCs = 0;
+		taskStartDCs = 0;
+		firstCorrectActionDCs = -1;
 
 		// Load the agent files
 		if (using_props) {
@@ -193,14 +235,26 @@ public abstract class DeltaEnvironment implements UpdateEventInterface/*, RunEve
 				return false;
 			}
 
-			if (agent_instruction_file == "") {
+			if (agent_instruction_file == "" && agent_instruction_chunks == null) {
 				System.err.println("ERROR: User did not provide the SMEM instruction file! Aborting.");
 				initOkay = false;
 				return false;
 			}
 			
 			agent.LoadProductions(props_dir + "_firstload_props.soar");			// props library
-			agent.LoadProductions(agent_instruction_file);		// The props instructions
+			if (agent_tuning_file != "") {
+				agent.LoadProductions(agent_tuning_file);		// Overrides the library's multi-attributes for these instructions
+			}
+			if (agent_instruction_chunks != null) {
+				// The props instructions, compiled in this process
+				if (!loadInstructionChunks()) {
+					initOkay = false;
+					return false;
+				}
+			}
+			else {
+				agent.LoadProductions(agent_instruction_file);		// The props instructions
+			}
 
 			agent.ExecuteCommandLine("chunk confidence-threshold " + currentLearnMode.getChunkThreshold());
 			
@@ -250,6 +304,58 @@ public abstract class DeltaEnvironment implements UpdateEventInterface/*, RunEve
 		return true;
 	}
 	
+	/**
+	 * Update the props instructions of the loaded agent from an instruction delta script, written by the instruction parser with -e, instead of
+	 * reloading them with initAgent(). Each problem-space on an "# unlink |name|" line of the script has its ^elab-context-name removed from smem,
+	 * so PROPs no longer retrieves its old version, and the script is then sourced to add the new and changed problem-spaces.
+	 * The instructions file isn't changed, so set it to the new instructions too if the agent will be reinitialized.
+	 * @param filename The delta script
+	 * @return False if there is no agent, or the script couldn't be read or applied
+	 */
+	public boolean applyInstructionDelta(String filename) {
+		if (agent == null) {
+			System.err.println("ERROR: No agent to apply instruction delta '" + filename + "' to. Call initAgent() first.");
+			return false;
+		}
+		List<String> lines;
+		try {
+			lines = Files.readAllLines(Paths.get(filename), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			System.err.println("ERROR: Could not read instruction delta '" + filename + "': " + e.getMessage());
+			return false;
+		}
+		
+		long startTime = System.nanoTime();
+		int unlinked = 0;
+		for (String line : lines) {
+			if (!line.startsWith(DELTA_UNLINK_PREFIX)) {
+				continue;
+			}
+			String name = line.substring(DELTA_UNLINK_PREFIX.length()).trim();
+			
+			// Find the loaded problem-space's long-term identifier, then remove the name that it is retrieved by
+			String result = agent.ExecuteCommandLine("smem --query {(<c> ^elab-context-name " + name + ")}");
+			Matcher lti = LTI_PATTERN.matcher(result);
+			if (!agent.GetLastCommandLineResult() || !lti.find()) {
+				System.err.println("WARNING: Problem-space " + name + " of instruction delta '" + filename + "' isn't loaded, so it wasn't unlinked.");
+				continue;
+			}
+			result = agent.ExecuteCommandLine("smem --remove {(" + lti.group() + " ^elab-context-name " + name + ")}");
+			if (!agent.GetLastCommandLineResult()) {
+				System.err.println("ERROR: Could not unlink problem-space " + name + " for instruction delta '" + filename + "': " + result);
+				return false;
+			}
+			++unlinked;
+		}
+		
+		if (!agent.LoadProductions(filename)) {
+			System.err.println("ERROR: Could not load the smem instructions of instruction delta '" + filename + "'.");
+			return false;
+		}
+		System.out.println(String.format("Applied instruction delta '%s' in %.1f ms, unlinking %d problem-space(s).", filename, nanoToMilli(System.nanoTime() - startTime), unlinked));
+		return true;
+	}
+	
 	public void setUserAgentFiles(List<String> filenames) {
 		userAgentFiles = new ArrayList<String>(filenames);
 	}
@@ -273,7 +379,30 @@ public abstract class DeltaEnvironment implements UpdateEventInterface/*, RunEve
 	
 	public void setPropsDir(String dir) { props_dir = dir; }
 	
+	/**
+	 * Set the Soar file of props instructions to load in initAgent(). This is either the smem --add instructions from the instruction parser,
+	 * or the precompiled proposal productions it writes with -a, which are loaded the same way.
+	 * @param filename The instructions file
+	 */
 	public void setInstructionsFile(String filename) { agent_instruction_file = filename; }
+	
+	/**
+	 * Set a Soar file of multi-attributes and chunk singleton settings that the instruction parser generated for the instructions (with -t).
+	 * It is loaded in initAgent() right after the props library, so its declarations replace the library's defaults.
+	 * @param filename The tuning file, or "" for none
+	 */
+	public void setTuningFile(String filename) { agent_tuning_file = filename; }
+	
+	/**
+	 * Load the props instructions from the given smem --add commands instead of from the instructions file, with no intermediate file.
+	 * The commands are usually made in the same process by the instruction parser (see SmemChunker), and are run in order by initAgent().
+	 * @param chunks The complete smem --add commands, or null to load the instructions file again
+	 * @param labels A description of each command to report if it fails to load, or null to number them instead
+	 */
+	public void setInstructionChunks(List<String> chunks, List<String> labels) {
+		agent_instruction_chunks = (chunks == null ? null : new ArrayList<String>(chunks));
+		agent_instruction_labels = (labels == null ? null : new ArrayList<String>(labels));
+	}
 	public void setSoarAgentFile(String filename) { agent_genericsoar_file = filename; }
 	
 	public void setAgentName(String name) { agentName = name; }
@@ -507,11 +636,30 @@ public abstract class DeltaEnvironment implements UpdateEventInterface/*, RunEve
 		return elapsedAgentDCs;
 	}
 	
+	/**
+	 * Note that the agent just made a correct action, for comparing how quickly instruction modes reach one.
+	 * Call this from user_outputListener(). Only the first call after each setTask() is recorded.
+	 */
+	protected void markCorrectAction() {
+		if (firstCorrectActionDCs < 0) {
+			firstCorrectActionDCs = elapsedAgentDCs - taskStartDCs;
+		}
+	}
+	
+	/**
+	 * @return The decision cycles from when the task was set to the first correct action, or -1 if there hasn't been one
+	 */
+	public long getDecisionsToFirstCorrectAction() {
+		return firstCorrectActionDCs;
+	}
+	
 	public void setTask(String task, String taskInstance) {
 		if (agent == null) {
 			if (!initAgent())
 				throw new RuntimeException();
 		}
+		taskStartDCs = elapsedAgentDCs;
+		firstCorrectActionDCs = -1;
 		
 		// Clear input if any
 		//clearPerception();